@@ -29,6 +29,7 @@ import mobac.program.Logging;
 import mobac.program.ProgramInfo;
 import mobac.program.commandline.CommandLineEmpty;
 import mobac.program.commandline.CreateAtlas;
+import mobac.program.commandline.TransferTileStore;
 import mobac.program.interfaces.CommandLineAction;
 import mobac.program.model.Settings;
 import mobac.program.tilestore.TileStore;
@@ -93,6 +94,14 @@ public class Main {
 					cmdAction = new CreateAtlas(args[1]);
 				return;
 			}
+			if (args.length > 2 && "export".equalsIgnoreCase(args[0])) {
+				cmdAction = new TransferTileStore(args[1], args[2], true);
+				return;
+			}
+			if (args.length > 2 && "import".equalsIgnoreCase(args[0])) {
+				cmdAction = new TransferTileStore(args[2], args[1], false);
+				return;
+			}
 		}
 	}
 
@@ -23,18 +23,47 @@ public class DownloadFailedException extends IOException {
 
 	private final int httpResponseCode;
 	private HttpURLConnection connection;
+	private final long retryAfter;
 
 	public DownloadFailedException(HttpURLConnection connection, int httpResponseCode)
 			throws IOException {
 		super("Invaild HTTP response: " + httpResponseCode);
 		this.connection = connection;
 		this.httpResponseCode = httpResponseCode;
+		this.retryAfter = getRetryAfter(connection);
 	}
 
 	public int getHttpResponseCode() {
 		return httpResponseCode;
 	}
 
+	/**
+	 * @return the delay in milliseconds requested by the server via the <code>Retry-After</code> header or
+	 *         <code>-1</code> if the server did not send it
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Parses the <code>Retry-After</code> header which contains either the delay in seconds or a HTTP date.
+	 * 
+	 * @return the delay in milliseconds or <code>-1</code> if the header is missing or invalid
+	 */
+	public static long getRetryAfter(HttpURLConnection connection) {
+		String value = connection.getHeaderField("Retry-After");
+		if (value == null)
+			return -1;
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		} catch (NumberFormatException e) {
+		}
+		long date = connection.getHeaderFieldDate("Retry-After", -1);
+		if (date < 0)
+			return -1;
+		return Math.max(0, date - System.currentTimeMillis());
+	}
+
 	@Override
 	public String getMessage() {
 		return super.getMessage() + "\n" + connection.getURL();
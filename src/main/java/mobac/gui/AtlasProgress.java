@@ -45,6 +45,7 @@ import mobac.program.AtlasThread;
 import mobac.program.Logging;
 import mobac.program.interfaces.AtlasInterface;
 import mobac.program.interfaces.LayerInterface;
+import mobac.program.interfaces.MapCreationProgress;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSourceListener;
 import mobac.program.model.AtlasOutputFormat;
@@ -61,7 +62,7 @@ import org.apache.log4j.Logger;
  * A window showing the progress while {@link AtlasThread} downloads and processes the map tiles.
  * 
  */
-public class AtlasProgress extends JFrame implements ActionListener, MapSourceListener {
+public class AtlasProgress extends JFrame implements ActionListener, MapSourceListener, MapCreationProgress {
 
 	private static Logger log = Logger.getLogger(AtlasProgress.class);
 
@@ -98,6 +99,15 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 		int prevMapsRetryErrors = 0;
 		int prevMapsPermanentErrors = 0;
 		boolean paused = false;
+		/**
+		 * Sum of the progress of all maps currently created in parallel (see {@link ParallelMapCreationProgress})
+		 */
+		int parallelCreationProgress = 0;
+		int parallelCreationMax = 0;
+		/**
+		 * Part of the total progress of the maps currently created in parallel that has not been reached yet
+		 */
+		int parallelCreationRemaining = 0;
 	}
 
 	private final Data data = new Data();
@@ -351,7 +361,10 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 	public void initMapDownload(MapInterface map) {
 		int index = mapInfos.indexOf(new MapInfo(map, 0, 0));
 		data.mapInfo = mapInfos.get(index);
-		data.totalProgress = data.mapInfo.tileCountOnStart;
+		synchronized (data) {
+			// Maps before this one may still be created in parallel
+			data.totalProgress = data.mapInfo.tileCountOnStart - data.parallelCreationRemaining;
+		}
 		data.map = map;
 		data.mapDownloadNumberOfTiles = (int) map.calculateTilesToDownload();
 		initialMapDownloadTime = System.currentTimeMillis();
@@ -383,7 +396,9 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	public void incMapDownloadProgress() {
 		data.mapDownloadProgress++;
-		data.totalProgress++;
+		synchronized (data) {
+			data.totalProgress++;
+		}
 		updateGUI();
 	}
 
@@ -397,11 +412,26 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 	public void setMapCreationProgress(int progress) {
 		data.mapCreationProgress = progress;
-		data.totalProgress = data.mapInfo.tileCountOnStart + data.mapInfo.mapTiles
-				+ (int) (((long) data.mapInfo.mapTiles) * data.mapCreationProgress / data.mapCreationMax);
+		synchronized (data) {
+			data.totalProgress = data.mapInfo.tileCountOnStart + data.mapInfo.mapTiles
+					+ (int) (((long) data.mapInfo.mapTiles) * data.mapCreationProgress / data.mapCreationMax)
+					- data.parallelCreationRemaining;
+		}
 		updateGUI();
 	}
 
+	/**
+	 * Creates the progress receiver for a map that is created in parallel to the download of the following maps.
+	 * 
+	 * @param map
+	 *            the map that has been downloaded completely
+	 * @return the progress receiver to be used instead of this instance while creating the map
+	 */
+	public ParallelMapCreationProgress createParallelMapCreationProgress(MapInterface map) {
+		int index = mapInfos.indexOf(new MapInfo(map, 0, 0));
+		return new ParallelMapCreationProgress(mapInfos.get(index));
+	}
+
 	public boolean ignoreDownloadErrors() {
 		return ignoreDlErrors.isSelected();
 	}
@@ -632,8 +662,13 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 
 			// map progress
 			mapCreation.setText(I18nUtils.localizedStringForKey("dlg_download_map_create_title"));
-			mapCreationProgressBar.setValue(data.mapCreationProgress);
-			mapCreationProgressBar.setMaximum(data.mapCreationMax);
+			if (data.parallelCreationMax > 0) {
+				mapCreationProgressBar.setValue(data.parallelCreationProgress);
+				mapCreationProgressBar.setMaximum(data.parallelCreationMax);
+			} else {
+				mapCreationProgressBar.setValue(data.mapCreationProgress);
+				mapCreationProgressBar.setMaximum(data.mapCreationMax);
+			}
 			atlasMapsDone.setText(String.format(I18nUtils.localizedStringForKey("dlg_download_map_done_count"),
 					(data.currentMapNumber - 1), data.totalNumberOfMaps));
 
@@ -678,6 +713,98 @@ public class AtlasProgress extends JFrame implements ActionListener, MapSourceLi
 		}
 	}
 
+	/**
+	 * Progress of one map created in parallel to other maps. The map creation progress bar shows the combined progress
+	 * of all maps currently created, the atlas progress includes the progress of each map. Does not affect the progress
+	 * and the estimated time of the map currently downloaded.
+	 */
+	public class ParallelMapCreationProgress implements MapCreationProgress {
+
+		private final MapInfo mapInfo;
+
+		private int progress = 0;
+
+		private int max = 0;
+
+		/**
+		 * Part of the tiles of the map already added to the total progress
+		 */
+		private int contribution = 0;
+
+		private boolean finished = false;
+
+		private ParallelMapCreationProgress(MapInfo mapInfo) {
+			this.mapInfo = mapInfo;
+			synchronized (data) {
+				data.parallelCreationRemaining += mapInfo.mapTiles;
+			}
+		}
+
+		public void initMapCreation(int maxTilesToProcess) {
+			synchronized (data) {
+				if (finished)
+					return;
+				data.parallelCreationMax += maxTilesToProcess - max;
+				data.parallelCreationProgress -= progress;
+				max = maxTilesToProcess;
+				progress = 0;
+			}
+			updateGUI();
+		}
+
+		public void incMapCreationProgress() {
+			incMapCreationProgress(1);
+		}
+
+		public void incMapCreationProgress(int stepSize) {
+			synchronized (data) {
+				setProgress(progress + stepSize);
+			}
+			updateGUI();
+		}
+
+		public void setMapCreationProgress(int progress) {
+			synchronized (data) {
+				setProgress(progress);
+			}
+			updateGUI();
+		}
+
+		/**
+		 * Has to be called while holding the lock on {@link AtlasProgress#data}.
+		 */
+		private void setProgress(int newProgress) {
+			if (finished)
+				return;
+			data.parallelCreationProgress += newProgress - progress;
+			progress = newProgress;
+			if (max > 0)
+				setContribution((int) (((long) mapInfo.mapTiles) * Math.min(progress, max) / max));
+		}
+
+		private void setContribution(int newContribution) {
+			int delta = newContribution - contribution;
+			contribution = newContribution;
+			data.totalProgress += delta;
+			data.parallelCreationRemaining -= delta;
+		}
+
+		/**
+		 * Marks the map creation as ended (successfully or not) and removes the map from the combined progress.
+		 */
+		public void finish() {
+			synchronized (data) {
+				if (finished)
+					return;
+				setContribution(mapInfo.mapTiles);
+				data.parallelCreationProgress -= progress;
+				data.parallelCreationMax -= max;
+				finished = true;
+			}
+			updateGUI();
+		}
+	}
+
 	private class UpdateTask extends TimerTask {
 
 		@Override
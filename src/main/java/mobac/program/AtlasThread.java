@@ -16,22 +16,42 @@
  ******************************************************************************/
 package mobac.program;
 
+import java.awt.Point;
 import java.awt.Toolkit;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
 import mobac.exceptions.AtlasTestException;
+import mobac.exceptions.MapCreationException;
 import mobac.exceptions.MapDownloadSkippedException;
 import mobac.gui.AtlasProgress;
 import mobac.gui.AtlasProgress.AtlasCreationController;
+import mobac.gui.AtlasProgress.ParallelMapCreationProgress;
 import mobac.program.atlascreators.AtlasCreator;
 import mobac.program.atlascreators.tileprovider.DownloadedTileProvider;
 import mobac.program.atlascreators.tileprovider.FilteredMapSourceProvider;
+import mobac.program.atlascreators.tileprovider.PipelinedTileProvider;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.download.DownloadJobProducerThread;
+import mobac.program.download.HostConcurrencyControl;
+import mobac.program.download.HttpConnectionPool;
+import mobac.program.download.TileCompletionIndex;
+import mobac.program.download.TileDownLoader;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
 import mobac.program.interfaces.AtlasInterface;
 import mobac.program.interfaces.DownloadJobListener;
 import mobac.program.interfaces.DownloadableElement;
@@ -43,17 +63,36 @@ import mobac.program.interfaces.MapSource.LoadMethod;
 import mobac.program.model.AtlasOutputFormat;
 import mobac.program.model.Settings;
 import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
 import mobac.utilities.GUIExceptionHandler;
 import mobac.utilities.I18nUtils;
 import mobac.utilities.Utilities;
 import mobac.utilities.tar.TarIndex;
 import mobac.utilities.tar.TarIndexedArchive;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
 public class AtlasThread extends Thread implements DownloadJobListener, AtlasCreationController {
 
 	private static final Logger log = Logger.getLogger(AtlasThread.class);
+
+	/**
+	 * Answers of the dialog shown after too many download errors
+	 */
+	private static final int DOWNLOAD_ERRORS_CONTINUE = 0;
+	private static final int DOWNLOAD_ERRORS_RETRY = 1;
+	private static final int DOWNLOAD_ERRORS_SKIP = 2;
+	private static final int DOWNLOAD_ERRORS_ABORT = 3;
+
+	private static final String TILE_ARCHIVE_PREFIX = "MOBAC_";
+
+	/**
+	 * Tile archives of aborted downloads (see {@link Settings#atlasResumableDownloads}) that have not been modified
+	 * for this time are deleted
+	 */
+	private static final long TILE_ARCHIVE_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
 	private static int threadNum = 0;
 
 	private File customAtlasDir = null;
@@ -73,6 +112,31 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 	private int jobsPermanentError = 0;
 	private int maxDownloadRetries = 1;
 
+	/**
+	 * Only set while a map is created in pipelined download-and-build mode
+	 */
+	private volatile TileCompletionIndex tileCompletionIndex = null;
+
+	/**
+	 * Set if the user did not accept the missing tiles of the current map. The downloaded tiles are then deleted even
+	 * if downloads are resumable.
+	 */
+	private volatile boolean missingTilesDeclined = false;
+
+	/**
+	 * Only used if maps are created in parallel - see {@link Settings#atlasParallelMapCreationThreads}
+	 */
+	private ThreadPoolExecutor mapCreationExecutor = null;
+	private final List<Future<?>> mapCreationTasks = new LinkedList<Future<?>>();
+
+	/**
+	 * Limits the estimated heap memory (in KiB) used by the maps created in parallel to half of the maximum heap
+	 * size - see {@link AtlasCreator#estimateMapCreationMemory()}
+	 */
+	private final int mapCreationMemoryLimit = (int) Math.min(Integer.MAX_VALUE,
+			Runtime.getRuntime().maxMemory() / 2048);
+	private final Semaphore mapCreationMemory = new Semaphore(mapCreationMemoryLimit);
+
 	public AtlasThread(AtlasInterface atlas) throws AtlasTestException {
 		this(atlas, atlas.getOutputFormat().createAtlasCreatorInstance());
 	}
@@ -88,6 +152,100 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		pauseResumeHandler = new PauseResumeHandler();
 	}
 
+	/**
+	 * Shows the error dialog for a map that could not be downloaded or created.
+	 * 
+	 * @param e
+	 * @throws InterruptedException
+	 *             if the user decided to abort the atlas creation
+	 */
+	private void handleMapCreationError(Exception e) throws InterruptedException {
+		log.error("", e);
+		String[] options = { I18nUtils.localizedStringForKey("Continue"), I18nUtils.localizedStringForKey("Abort"),
+				I18nUtils.localizedStringForKey("dlg_download_show_error_report") };
+		int a = JOptionPane.showOptionDialog(null, I18nUtils.localizedStringForKey("dlg_download_erro_head")
+				+ e.getMessage() + "\n[" + e.getClass().getSimpleName() + "]\n\n",
+				I18nUtils.localizedStringForKey("Error"), 0, JOptionPane.ERROR_MESSAGE, null, options, options[0]);
+		switch (a) {
+		case 2:
+			GUIExceptionHandler.processException(e);
+		case 1:
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Processes the results of the map creation tasks executed in parallel (if any).
+	 * 
+	 * @param waitForAll
+	 *            if <code>true</code> this method blocks until all map creation tasks have been finished, otherwise
+	 *            only the already finished tasks are processed
+	 * @throws InterruptedException
+	 */
+	private void checkMapCreationTasks(boolean waitForAll) throws InterruptedException {
+		Iterator<Future<?>> it = mapCreationTasks.iterator();
+		while (it.hasNext()) {
+			Future<?> task = it.next();
+			if (!waitForAll && !task.isDone())
+				continue;
+			it.remove();
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof InterruptedException)
+					throw (InterruptedException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				handleMapCreationError((Exception) cause);
+			}
+		}
+	}
+
+	private static class MapCreationTask implements Callable<Object> {
+
+		private final AtlasCreator mapContext;
+		private final ParallelMapCreationProgress progress;
+		private final TarIndex tileIndex;
+		private final Semaphore memory;
+		private final int memoryPermits;
+
+		public MapCreationTask(AtlasCreator mapContext, ParallelMapCreationProgress progress, TarIndex tileIndex,
+				Semaphore memory, int memoryPermits) {
+			this.mapContext = mapContext;
+			this.progress = progress;
+			this.tileIndex = tileIndex;
+			this.memory = memory;
+			this.memoryPermits = memoryPermits;
+		}
+
+		public Object call() throws MapCreationException, InterruptedException {
+			try {
+				mapContext.createMap();
+			} finally {
+				progress.finish();
+				memory.release(memoryPermits);
+				if (tileIndex != null)
+					tileIndex.closeAndDelete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Creates {@link DelayedInterruptThread}s as the map creation may access the tile store (e.g. store-backed tiles).
+	 */
+	private static class MapCreationThreadFactory implements ThreadFactory {
+
+		private int threadNum = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new DelayedInterruptThread(r, "MapCreationThread " + (++threadNum));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
 	private void testAtlas() throws AtlasTestException {
 		try {
 			for (LayerInterface layer : atlas) {
@@ -191,9 +349,24 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		ap.initAtlas(atlas);
 		ap.setVisible(true);
 
+		deleteOrphanedTileArchives();
+
 		Settings s = Settings.getInstance();
 
-		downloadJobDispatcher = new JobDispatcher(s.downloadThreadCount, pauseResumeHandler, ap);
+		int threadCount = s.downloadThreadCount;
+		if (s.adaptiveDownloadConcurrency)
+			// The effective number of parallel downloads is limited per host by HostConcurrencyControl
+			threadCount = Math.max(threadCount, s.adaptiveMaxDownloadThreadCount);
+		downloadJobDispatcher = new JobDispatcher(threadCount, pauseResumeHandler, ap);
+		int mapCreationThreadCount = s.atlasParallelMapCreationThreads;
+		if (mapCreationThreadCount > 1 && atlasCreator.supportsParallelMapCreation()) {
+			log.debug("Parallel map creation enabled - using " + mapCreationThreadCount + " threads");
+			// If all threads are busy and the queue is full the AtlasThread creates the map itself which
+			// limits the number of downloaded but not yet processed maps
+			mapCreationExecutor = new ThreadPoolExecutor(mapCreationThreadCount, mapCreationThreadCount, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(mapCreationThreadCount),
+					new MapCreationThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
 		try {
 			for (LayerInterface layer : atlas) {
 				atlasCreator.initLayerCreation(layer);
@@ -206,23 +379,11 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 					} catch (MapDownloadSkippedException e) {
 						// Do nothing and continue with next map
 					} catch (Exception e) {
-						log.error("", e);
-						String[] options = { I18nUtils.localizedStringForKey("Continue"),
-								I18nUtils.localizedStringForKey("Abort"),
-								I18nUtils.localizedStringForKey("dlg_download_show_error_report") };
-						int a = JOptionPane.showOptionDialog(null,
-								I18nUtils.localizedStringForKey("dlg_download_erro_head") + e.getMessage() + "\n["
-										+ e.getClass().getSimpleName() + "]\n\n",
-								I18nUtils.localizedStringForKey("Error"), 0, JOptionPane.ERROR_MESSAGE, null, options,
-								options[0]);
-						switch (a) {
-						case 2:
-							GUIExceptionHandler.processException(e);
-						case 1:
-							throw new InterruptedException();
-						}
+						handleMapCreationError(e);
 					}
+					checkMapCreationTasks(false);
 				}
+				checkMapCreationTasks(true);
 				atlasCreator.finishLayerCreation();
 			}
 		} catch (InterruptedException e) {
@@ -232,10 +393,17 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 			atlasCreator.abortAtlasCreation();
 			throw e;
 		} finally {
+			if (mapCreationExecutor != null) {
+				mapCreationExecutor.shutdownNow();
+				mapCreationExecutor = null;
+			}
 			// In case of an abort: Stop create new download jobs
 			if (djp != null)
 				djp.cancel();
 			downloadJobDispatcher.terminateAllWorkerThreads();
+			HostConcurrencyControl.getInstance().logStatistics();
+			HttpConnectionPool.getInstance().logStatistics();
+			log.debug("Tile requests shared with a concurrent request: " + TileDownLoader.getSharedRequestCount());
 			if (!atlasCreator.isAborted())
 				atlasCreator.finishAtlasCreation();
 			ap.atlasCreationFinished();
@@ -253,10 +421,12 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 	public boolean createMap(MapInterface map) throws Exception {
 		TarIndex tileIndex = null;
 		TarIndexedArchive tileArchive = null;
+		boolean deleteTileArchive = true;
 
 		jobsCompleted = 0;
 		jobsRetryError = 0;
 		jobsPermanentError = 0;
+		missingTilesDeclined = false;
 
 		ap.initMapDownload(map);
 		if (currentThread().isInterrupted())
@@ -281,51 +451,61 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 				// For online maps we download the tiles first and then start creating the map if
 				// we are sure we got all tiles
 				if (!AtlasOutputFormat.TILESTORE.equals(atlas.getOutputFormat())) {
-					String tempSuffix = "MOBAC_" + atlas.getName() + "_" + zoom + "_";
-					File tempDir = null;
-					String swapDir = Settings.getInstance().getSwapDir();
-					if (swapDir != null) {
-						tempDir = new File(swapDir);
-						if (!tempDir.exists())
-							tempDir = null;
+					String tempSuffix = TILE_ARCHIVE_PREFIX + atlas.getName() + "_" + zoom + "_";
+					File tempDir = getTileArchiveDir();
+					int tileSize = map.getMapSource().getMapSpace().getTileSize();
+					Point minCoord = map.getMinTileCoordinate();
+					Point maxCoord = map.getMaxTileCoordinate();
+					File tileArchiveFile;
+					File journalFile = null;
+					if (Settings.getInstance().atlasResumableDownloads) {
+						// Same file names for the same map so that a later run can resume the download
+						String mapId = DigestUtils.shaHex(atlas.getName() + "|" + map.getLayer().getName() + "|"
+								+ map.getName() + "|" + map.getMapSource().getName() + "|" + zoom + "|" + minCoord
+								+ "|" + maxCoord);
+						String baseName = tempSuffix + mapId.substring(0, 16);
+						tileArchiveFile = new File(tempDir, baseName + ".tar");
+						journalFile = new File(tempDir, baseName + ".journal");
+					} else {
+						tileArchiveFile = File.createTempFile(tempSuffix, ".tar", tempDir);
+						// If something goes wrong the temp file only persists until the VM exits
+						tileArchiveFile.deleteOnExit();
 					}
-					if (tempDir == null) 
-						tempDir = DirectoryManager.tempDir;
-					File tileArchiveFile = File.createTempFile(tempSuffix, ".tar", tempDir);
-					// If something goes wrong the temp file only persists until the VM exits
-					tileArchiveFile.deleteOnExit();
 					log.debug("Writing downloaded tiles to " + tileArchiveFile.getPath());
-					tileArchive = new TarIndexedArchive(tileArchiveFile, tileCount);
+					tileArchive = new TarIndexedArchive(tileArchiveFile, journalFile, minCoord.x / tileSize,
+							minCoord.y / tileSize, maxCoord.x / tileSize, maxCoord.y / tileSize);
 				} else
 					log.debug("Downloading to tile store only");
 
-				djp = new DownloadJobProducerThread(this, downloadJobDispatcher, tileArchive, (DownloadableElement) map);
+				if (tileArchive != null && Settings.getInstance().atlasPipelinedCreation
+						&& atlasCreator.supportsPipelinedMapCreation()) {
+					tileIndex = tileArchive.getTarIndex();
+					return createMapPipelined(map, tileArchive, tileIndex);
+				}
+
+				djp = new DownloadJobProducerThread(this, downloadJobDispatcher, tileArchive,
+						Settings.getInstance().atlasDownloadOrder, (DownloadableElement) map);
 
 				boolean failedMessageAnswered = false;
 
-				while (djp.isAlive() || (downloadJobDispatcher.getWaitingJobCount() > 0)
-						|| downloadJobDispatcher.isAtLeastOneWorkerActive()) {
-					Thread.sleep(500);
-					if (!failedMessageAnswered && (jobsRetryError > 50) && !ap.ignoreDownloadErrors()) {
-						pauseResumeHandler.pause();
-						String[] answers = new String[] { I18nUtils.localizedStringForKey("Continue"),
-								I18nUtils.localizedStringForKey("Retry"), I18nUtils.localizedStringForKey("Skip"),
-								I18nUtils.localizedStringForKey("Abort") };
-						int answer = JOptionPane.showOptionDialog(ap,
-								I18nUtils.localizedStringForKey("dlg_download_errors_todo_msg"),
-								I18nUtils.localizedStringForKey("dlg_download_errors_todo"), 0,
-								JOptionPane.QUESTION_MESSAGE, null, answers, answers[0]);
+				while (true) {
+					// Both waits return immediately when the producer respectively the last download job finishes
+					if (djp.isAlive())
+						djp.join(500);
+					else if (downloadJobDispatcher.waitForAllJobsFinished(500))
+						break;
+					if (!failedMessageAnswered && hasTooManyDownloadErrors()) {
+						int answer = askForDownloadErrorsAction();
 						failedMessageAnswered = true;
 						switch (answer) {
-						case 0: // Continue
-							pauseResumeHandler.resume();
+						case DOWNLOAD_ERRORS_CONTINUE:
 							break;
-						case 1: // Retry
+						case DOWNLOAD_ERRORS_RETRY:
 							djp.cancel();
 							djp = null;
 							downloadJobDispatcher.cancelOutstandingJobs();
 							return false;
-						case 2: // Skip
+						case DOWNLOAD_ERRORS_SKIP:
 							downloadJobDispatcher.cancelOutstandingJobs();
 							throw new MapDownloadSkippedException();
 						default: // Abort or close dialog
@@ -341,17 +521,8 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 					tileArchive.writeEndofArchive();
 					tileArchive.close();
 					tileIndex = tileArchive.getTarIndex();
-					if (tileIndex.size() < tileCount && !ap.ignoreDownloadErrors()) {
-						int missing = tileCount - tileIndex.size();
-						log.debug("Expected tile count: " + tileCount + " downloaded tile count: " + tileIndex.size()
-								+ " missing: " + missing);
-						int answer = JOptionPane.showConfirmDialog(ap, String.format(
-								I18nUtils.localizedStringForKey("dlg_download_errors_missing_tile_msg"), missing),
-								I18nUtils.localizedStringForKey("dlg_download_errors_missing_tile"),
-								JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE);
-						if (answer != JOptionPane.YES_OPTION)
-							throw new InterruptedException();
-					}
+					if (!confirmMissingTiles(tileCount, tileIndex.size()))
+						throw new InterruptedException();
 				}
 				downloadJobDispatcher.cancelOutstandingJobs();
 				log.debug("Starting to create atlas from downloaded tiles");
@@ -360,13 +531,45 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 				// We don't need to download anything. Everything is already stored locally therefore we can just use it
 				mapTileProvider = new FilteredMapSourceProvider(map, LoadMethod.DEFAULT);
 			}
-			atlasCreator.initializeMap(map, mapTileProvider);
-			atlasCreator.createMap();
+			if (mapCreationExecutor != null) {
+				AtlasCreator mapContext = atlasCreator.createMapContext();
+				mapContext.initializeMap(map, mapTileProvider);
+				// Each map reports its own progress which is combined with the other maps created in parallel
+				ParallelMapCreationProgress progress = ap.createParallelMapCreationProgress(map);
+				mapContext.setAtlasProgress(progress);
+				// A map that exceeds the limit on its own is created while no other map is in progress
+				long memoryKiB = (mapContext.estimateMapCreationMemory() + 1023) / 1024;
+				int memoryPermits = (int) Math.max(1, Math.min(mapCreationMemoryLimit, memoryKiB));
+				mapCreationMemory.acquire(memoryPermits);
+				try {
+					// The map creation task is now responsible for deleting the downloaded tiles
+					mapCreationTasks.add(mapCreationExecutor.submit(new MapCreationTask(mapContext, progress,
+							tileIndex, mapCreationMemory, memoryPermits)));
+				} catch (RuntimeException e) {
+					progress.finish();
+					mapCreationMemory.release(memoryPermits);
+					throw e;
+				}
+				tileIndex = null;
+				tileArchive = null;
+			} else {
+				atlasCreator.initializeMap(map, mapTileProvider);
+				atlasCreator.createMap();
+			}
+		} catch (InterruptedException e) {
+			// Keep the tiles downloaded so far so that the download of the aborted map can be resumed
+			deleteTileArchive = missingTilesDeclined || !Settings.getInstance().atlasResumableDownloads;
+			throw e;
 		} catch (Error e) {
 			log.error("Error in createMap: " + e.getMessage(), e);
 			throw e;
 		} finally {
-			if (tileIndex != null)
+			if (tileArchive != null)
+				tileArchive.close();
+			if (!deleteTileArchive) {
+				if (tileIndex != null)
+					tileIndex.close();
+			} else if (tileIndex != null)
 				tileIndex.closeAndDelete();
 			else if (tileArchive != null)
 				tileArchive.delete();
@@ -374,6 +577,225 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		return true;
 	}
 
+	/**
+	 * Pipelined download-and-build mode: The tiles are downloaded in the order the atlas creator processes them
+	 * (column by column) and the map is created while the download is running. Each tile request of the atlas creator
+	 * blocks until the download job of the requested tile has been finished.
+	 * <p>
+	 * The download errors are handled like in the regular mode by a {@link PipelinedDownloadMonitor}. Tiles that could
+	 * not be downloaded are only released to the atlas creator after the user has accepted the missing tiles at the
+	 * end of the download. Therefore a map with missing tiles is never written without asking the user.
+	 * </p>
+	 * 
+	 * @param map
+	 * @param tileArchive
+	 *            archive the download jobs are writing to
+	 * @param tileIndex
+	 *            index for reading from <code>tileArchive</code>
+	 * @return <code>false</code> if the user decided to retry the map download
+	 * @throws Exception
+	 */
+	protected boolean createMapPipelined(MapInterface map, TarIndexedArchive tileArchive, TarIndex tileIndex)
+			throws Exception {
+		log.debug("Starting pipelined download and map creation");
+		TileCompletionIndex completionIndex = new TileCompletionIndex(map);
+		tileCompletionIndex = completionIndex;
+		djp = new DownloadJobProducerThread(this, downloadJobDispatcher, tileArchive, DownloadJobOrder.COLUMN_MAJOR,
+				(DownloadableElement) map);
+		PipelinedDownloadMonitor monitor = new PipelinedDownloadMonitor(djp, completionIndex, tileIndex,
+				(int) map.calculateTilesToDownload());
+		try {
+			boolean interrupted = false;
+			try {
+				atlasCreator.initializeMap(map, new PipelinedTileProvider(tileIndex, completionIndex, map));
+				atlasCreator.createMap();
+				monitor.join();
+			} catch (MapCreationException e) {
+				// An interrupted tile request is reported by the atlas creator as MapCreationException
+				if (!Thread.interrupted())
+					throw e;
+				interrupted = true;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			// The monitor interrupts this thread if the user does not want to continue
+			int answer = monitor.getAnswer();
+			if (answer < 0) {
+				if (interrupted || Thread.interrupted())
+					throw new InterruptedException(); // User has aborted the atlas creation
+			} else {
+				Thread.interrupted();
+				switch (answer) {
+				case DOWNLOAD_ERRORS_CONTINUE:
+					break;
+				case DOWNLOAD_ERRORS_RETRY:
+					return false;
+				case DOWNLOAD_ERRORS_SKIP:
+					throw new MapDownloadSkippedException();
+				default:
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			tileCompletionIndex = null;
+			if (monitor.isAlive()) {
+				djp.cancel();
+				downloadJobDispatcher.cancelOutstandingJobs();
+				monitor.interrupt();
+			}
+			djp = null;
+		}
+		tileArchive.writeEndofArchive();
+		log.debug("Pipelined download and map creation finished");
+		return true;
+	}
+
+	private synchronized boolean hasTooManyDownloadErrors() {
+		return (jobsRetryError > 50) && !ap.ignoreDownloadErrors();
+	}
+
+	/**
+	 * Pauses the download and asks the user how to continue after too many download errors. The download is only
+	 * resumed if the user decides to continue.
+	 * 
+	 * @return one of {@link #DOWNLOAD_ERRORS_CONTINUE}, {@link #DOWNLOAD_ERRORS_RETRY}, {@link #DOWNLOAD_ERRORS_SKIP}
+	 *         or {@link #DOWNLOAD_ERRORS_ABORT}
+	 */
+	private int askForDownloadErrorsAction() {
+		pauseResumeHandler.pause();
+		String[] answers = new String[] { I18nUtils.localizedStringForKey("Continue"),
+				I18nUtils.localizedStringForKey("Retry"), I18nUtils.localizedStringForKey("Skip"),
+				I18nUtils.localizedStringForKey("Abort") };
+		int answer = JOptionPane.showOptionDialog(ap, I18nUtils.localizedStringForKey("dlg_download_errors_todo_msg"),
+				I18nUtils.localizedStringForKey("dlg_download_errors_todo"), 0, JOptionPane.QUESTION_MESSAGE, null,
+				answers, answers[0]);
+		if (answer == DOWNLOAD_ERRORS_CONTINUE)
+			pauseResumeHandler.resume();
+		else if (answer != DOWNLOAD_ERRORS_RETRY && answer != DOWNLOAD_ERRORS_SKIP)
+			answer = DOWNLOAD_ERRORS_ABORT;
+		return answer;
+	}
+
+	/**
+	 * Asks the user if the map should be created although some tiles could not be downloaded.
+	 * 
+	 * @return <code>true</code> if no tiles are missing, download errors are ignored or the user accepted the missing
+	 *         tiles
+	 */
+	private boolean confirmMissingTiles(int tileCount, int downloadedTileCount) {
+		if (downloadedTileCount >= tileCount || ap.ignoreDownloadErrors())
+			return true;
+		int missing = tileCount - downloadedTileCount;
+		log.debug("Expected tile count: " + tileCount + " downloaded tile count: " + downloadedTileCount
+				+ " missing: " + missing);
+		int answer = JOptionPane.showConfirmDialog(ap, String.format(
+				I18nUtils.localizedStringForKey("dlg_download_errors_missing_tile_msg"), missing),
+				I18nUtils.localizedStringForKey("dlg_download_errors_missing_tile"), JOptionPane.YES_NO_OPTION,
+				JOptionPane.ERROR_MESSAGE);
+		if (answer == JOptionPane.YES_OPTION)
+			return true;
+		missingTilesDeclined = true;
+		return false;
+	}
+
+	/**
+	 * @return the directory the downloaded tiles are written to
+	 */
+	private static File getTileArchiveDir() {
+		String swapDir = Settings.getInstance().getSwapDir();
+		if (swapDir != null) {
+			File tempDir = new File(swapDir);
+			if (tempDir.exists())
+				return tempDir;
+		}
+		return DirectoryManager.tempDir;
+	}
+
+	/**
+	 * Deletes the tile archives and journals of aborted or crashed downloads that have not been resumed within
+	 * {@link #TILE_ARCHIVE_MAX_AGE}.
+	 */
+	private static void deleteOrphanedTileArchives() {
+		File[] files = getTileArchiveDir().listFiles();
+		if (files == null)
+			return;
+		long minLastModified = System.currentTimeMillis() - TILE_ARCHIVE_MAX_AGE;
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(TILE_ARCHIVE_PREFIX) || !(name.endsWith(".tar") || name.endsWith(".journal")))
+				continue;
+			if (file.isFile() && file.lastModified() < minLastModified && file.delete())
+				log.debug("Deleted orphaned tile archive file " + file);
+		}
+	}
+
+	/**
+	 * Watches the download of a map created in the pipelined mode. It performs the same download error checks as the
+	 * regular mode and signals the end of the download to the {@link TileCompletionIndex} as soon as all download jobs
+	 * of the map have been generated and executed (or cancelled). If the user does not want to continue the map
+	 * creation the {@link AtlasThread} is interrupted.
+	 */
+	private class PipelinedDownloadMonitor extends Thread {
+
+		private final DownloadJobProducerThread producer;
+		private final TileCompletionIndex completionIndex;
+		private final TarIndex tileIndex;
+		private final int tileCount;
+
+		/**
+		 * The user's decision or -1 if the user has not been asked
+		 */
+		private volatile int answer = -1;
+
+		public PipelinedDownloadMonitor(DownloadJobProducerThread producer, TileCompletionIndex completionIndex,
+				TarIndex tileIndex, int tileCount) {
+			super("PipelinedDownloadMonitor");
+			this.producer = producer;
+			this.completionIndex = completionIndex;
+			this.tileIndex = tileIndex;
+			this.tileCount = tileCount;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				boolean failedMessageAnswered = false;
+				while (true) {
+					if (producer.isAlive())
+						producer.join(500);
+					else if (downloadJobDispatcher.waitForAllJobsFinished(500))
+						break;
+					if (!failedMessageAnswered && hasTooManyDownloadErrors()) {
+						failedMessageAnswered = true;
+						int a = askForDownloadErrorsAction();
+						if (a != DOWNLOAD_ERRORS_CONTINUE) {
+							stopMapCreation(a);
+							return;
+						}
+					}
+				}
+				if (!confirmMissingTiles(tileCount, tileIndex.size()))
+					stopMapCreation(DOWNLOAD_ERRORS_ABORT);
+			} catch (InterruptedException e) {
+			} finally {
+				completionIndex.downloadFinished();
+			}
+		}
+
+		private void stopMapCreation(int answer) {
+			this.answer = answer;
+			producer.cancel();
+			downloadJobDispatcher.cancelOutstandingJobs();
+			AtlasThread.this.interrupt();
+		}
+
+		public int getAnswer() {
+			return answer;
+		}
+	}
+
 	public void pauseResumeAtlasCreation() {
 		if (pauseResumeHandler.isPaused()) {
 			log.debug("Atlas creation resumed");
@@ -417,16 +839,19 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 		activeDownloads++;
 	}
 
-	public void jobFinishedSuccessfully(int bytesDownloaded) {
+	public void jobFinishedSuccessfully(int x, int y, int bytesDownloaded) {
 		synchronized (this) {
 			ap.incMapDownloadProgress();
 			activeDownloads--;
 			jobsCompleted++;
 		}
+		TileCompletionIndex completionIndex = tileCompletionIndex;
+		if (completionIndex != null)
+			completionIndex.tileFinished(x, y);
 		ap.updateGUI();
 	}
 
-	public void jobFinishedWithError(boolean retry) {
+	public void jobFinishedWithError(int x, int y, boolean retry) {
 		synchronized (this) {
 			activeDownloads--;
 			if (retry)
@@ -436,6 +861,12 @@ public class AtlasThread extends Thread implements DownloadJobListener, AtlasCre
 				ap.incMapDownloadProgress();
 			}
 		}
+		if (!retry && ap.ignoreDownloadErrors()) {
+			// Otherwise the missing tile is released after the user has accepted the missing tiles
+			TileCompletionIndex completionIndex = tileCompletionIndex;
+			if (completionIndex != null)
+				completionIndex.tileFinished(x, y);
+		}
 		if (!ap.ignoreDownloadErrors())
 			Toolkit.getDefaultToolkit().beep();
 		ap.setErrorCounter(jobsRetryError, jobsPermanentError);
@@ -17,8 +17,14 @@
 package mobac.program;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import mobac.exceptions.StopAllDownloadsException;
 import mobac.program.interfaces.MapSourceListener;
@@ -28,14 +34,18 @@ import org.apache.log4j.Logger;
 
 /**
  * Controls the worker threads that are downloading the map tiles in parallel. Additionally the job queue containing the
- * unprocessed tile download jobs can be accessed via this class.
+ * unprocessed tile download jobs can be accessed via this class. Failed jobs can be rescheduled with a delay: they wait
+ * in a {@link DelayQueue} until the {@link RetrySchedulerThread} moves them to the job queue.
  */
 public class JobDispatcher {
 
 	private static Logger log = Logger.getLogger(JobDispatcher.class);
 
-	protected int maxJobsInQueue = 100;
-	protected int minJobsInQueue = 50;
+	/**
+	 * Maximum number of jobs added via {@link #addJob(Job)} that can wait in the job queue. Jobs rescheduled via
+	 * {@link #addErrorJob(Job)} do not count to this limit.
+	 */
+	protected int maxJobsInQueue = 200;
 
 	protected WorkerThread[] workers;
 
@@ -43,7 +53,36 @@ public class JobDispatcher {
 
 	protected MapSourceListener mapSourceListener;
 
-	protected BlockingQueue<Job> jobQueue = new LinkedBlockingQueue<Job>();
+	protected BlockingQueue<QueuedJob> jobQueue = new LinkedBlockingQueue<QueuedJob>();
+
+	/**
+	 * One permit for each free slot in the job queue - {@link #addJob(Job)} blocks until a worker has taken a job
+	 */
+	protected Semaphore queueCapacity = new Semaphore(maxJobsInQueue);
+
+	/**
+	 * Jobs rescheduled via {@link #addErrorJob(Job, long)} waiting for their retry delay to expire. Only accessed while
+	 * holding {@link #retryLock}.
+	 */
+	protected DelayQueue<DelayedJob> retryQueue = new DelayQueue<DelayedJob>();
+
+	/**
+	 * Held by the {@link RetrySchedulerThread} while moving a job from the retry queue to the job queue and by
+	 * {@link #cancelOutstandingJobs()}, therefore a job can never be missed by both queues being cleared
+	 */
+	protected final Object retryLock = new Object();
+
+	/**
+	 * Started on the first delayed retry
+	 */
+	protected RetrySchedulerThread retryScheduler = null;
+
+	/**
+	 * Number of jobs that have been added and are not yet finished (waiting or running)
+	 */
+	private int unfinishedJobs = 0;
+
+	private final Object unfinishedJobsLock = new Object();
 
 	public JobDispatcher(int threadCount, PauseResumeHandler pauseResumeHandler, MapSourceListener mapSourceListener) {
 		this.pauseResumeHandler = pauseResumeHandler;
@@ -73,29 +112,51 @@ public class JobDispatcher {
 				// We don't care about exception here
 			}
 		}
+		synchronized (this) {
+			if (retryScheduler != null)
+				retryScheduler.interrupt();
+			retryScheduler = null;
+		}
 	}
 
+	/**
+	 * Removes all waiting jobs from the job queue. Jobs that are currently executed are not affected.
+	 */
 	public void cancelOutstandingJobs() {
-		jobQueue.clear();
+		List<QueuedJob> removedJobs = new ArrayList<QueuedJob>();
+		int removedRetries;
+		synchronized (retryLock) {
+			jobQueue.drainTo(removedJobs);
+			removedRetries = retryQueue.size();
+			retryQueue.clear();
+		}
+		for (QueuedJob qj : removedJobs) {
+			if (qj.holdsQueueSlot)
+				queueCapacity.release();
+		}
+		jobsFinished(removedJobs.size() + removedRetries);
 	}
 
 	/**
-	 * Blocks if more than 100 jobs are already scheduled.
+	 * Blocks if more than {@link #maxJobsInQueue} jobs are already scheduled until a worker thread has taken a job
+	 * from the queue.
 	 * 
 	 * @param job
 	 * @throws InterruptedException
 	 */
 	public void addJob(Job job) throws InterruptedException {
-		while (jobQueue.size() > maxJobsInQueue) {
-			Thread.sleep(200);
-			if ((jobQueue.size() < minJobsInQueue) && (maxJobsInQueue < 2000)) {
-				// System and download connection is very fast - we have to
-				// increase the maximum job count in the queue
-				maxJobsInQueue *= 2;
-				minJobsInQueue *= 2;
+		queueCapacity.acquire();
+		jobAdded();
+		boolean queued = false;
+		try {
+			// The queue is unbounded - the capacity is limited by the semaphore
+			queued = jobQueue.offer(new QueuedJob(job, true));
+		} finally {
+			if (!queued) {
+				queueCapacity.release();
+				jobsFinished(1);
 			}
 		}
-		jobQueue.put(job);
 	}
 
 	/**
@@ -104,31 +165,170 @@ public class JobDispatcher {
 	 * @param job
 	 */
 	public void addErrorJob(Job job) {
+		addErrorJob(job, 0);
+	}
+
+	/**
+	 * Adds the job to the job-queue after <code>delay</code> milliseconds have passed. This method will never block!
+	 * 
+	 * @param job
+	 * @param delay
+	 *            delay in milliseconds
+	 */
+	public void addErrorJob(Job job, long delay) {
+		jobAdded();
+		if (delay > 0) {
+			synchronized (retryLock) {
+				retryQueue.put(new DelayedJob(job, delay));
+				retryLock.notifyAll();
+			}
+			synchronized (this) {
+				if (retryScheduler == null)
+					retryScheduler = new RetrySchedulerThread();
+			}
+			return;
+		}
 		try {
-			jobQueue.put(job);
+			jobQueue.put(new QueuedJob(job, false));
 		} catch (InterruptedException e) {
 			// Can never happen with LinkedBlockingQueue
 		}
 	}
 
+	/**
+	 * @return number of jobs waiting in the job queue or for their retry delay to expire
+	 */
 	public int getWaitingJobCount() {
-		return jobQueue.size();
+		synchronized (retryLock) {
+			return jobQueue.size() + retryQueue.size();
+		}
+	}
+
+	/**
+	 * @return number of jobs that are waiting in the job queue or that are currently executed
+	 */
+	public int getUnfinishedJobCount() {
+		synchronized (unfinishedJobsLock) {
+			return unfinishedJobs;
+		}
+	}
+
+	/**
+	 * Waits until all jobs added so far have been executed or removed via {@link #cancelOutstandingJobs()}. Returns
+	 * immediately after the last job has been finished.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if all jobs are finished, <code>false</code> if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean waitForAllJobsFinished(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (unfinishedJobsLock) {
+			while (unfinishedJobs > 0) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				unfinishedJobsLock.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	private void jobAdded() {
+		synchronized (unfinishedJobsLock) {
+			unfinishedJobs++;
+		}
+	}
+
+	private void jobsFinished(int count) {
+		if (count == 0)
+			return;
+		synchronized (unfinishedJobsLock) {
+			unfinishedJobs = Math.max(0, unfinishedJobs - count);
+			if (unfinishedJobs == 0)
+				unfinishedJobsLock.notifyAll();
+		}
 	}
 
 	public static interface Job {
 		public void run(JobDispatcher dispatcher) throws Exception;
 	}
 
-	public boolean isAtLeastOneWorkerActive() {
-		for (int i = 0; i < workers.length; i++) {
-			WorkerThread w = workers[i];
-			if (w != null) {
-				if ((!w.idle) && (w.getState() != Thread.State.WAITING))
-					return true;
+	protected static class QueuedJob {
+
+		final Job job;
+
+		/**
+		 * <code>true</code> if the job has been added via {@link JobDispatcher#addJob(Job)} and therefore occupies
+		 * one of the {@link JobDispatcher#queueCapacity} permits
+		 */
+		final boolean holdsQueueSlot;
+
+		public QueuedJob(Job job, boolean holdsQueueSlot) {
+			this.job = job;
+			this.holdsQueueSlot = holdsQueueSlot;
+		}
+	}
+
+	protected static class DelayedJob implements Delayed {
+
+		final Job job;
+
+		/**
+		 * Time in milliseconds at which the job is moved to the job queue
+		 */
+		final long scheduledTime;
+
+		public DelayedJob(Job job, long delay) {
+			this.job = job;
+			this.scheduledTime = System.currentTimeMillis() + delay;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(scheduledTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((DelayedJob) o).scheduledTime;
+			return (scheduledTime < other) ? -1 : ((scheduledTime == other) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Moves the jobs from the {@link JobDispatcher#retryQueue} to the job queue as soon as their delay has expired.
+	 */
+	protected class RetrySchedulerThread extends Thread {
+
+		public RetrySchedulerThread() {
+			super("RetryScheduler");
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				synchronized (retryLock) {
+					while (!isInterrupted()) {
+						// Returns only jobs whose delay has expired
+						DelayedJob dj = retryQueue.poll();
+						if (dj != null) {
+							// The queue is unbounded - offer never fails
+							jobQueue.offer(new QueuedJob(dj.job, false));
+							continue;
+						}
+						DelayedJob next = retryQueue.peek();
+						if (next == null)
+							retryLock.wait();
+						else
+							retryLock.wait(Math.max(1, next.getDelay(TimeUnit.MILLISECONDS)));
+					}
+				}
+			} catch (InterruptedException e) {
 			}
+			log.trace("Retry scheduler is terminating");
 		}
-		log.debug("All worker threads are idle");
-		return false;
 	}
 
 	/**
@@ -139,8 +339,6 @@ public class JobDispatcher {
 
 		Job job = null;
 
-		boolean idle = true;
-
 		private Logger log = Logger.getLogger(WorkerThread.class);
 
 		public WorkerThread(int threadNum) {
@@ -162,17 +360,15 @@ public class JobDispatcher {
 			while (!isInterrupted()) {
 				try {
 					pauseResumeHandler.pauseWait();
-					idle = true;
-					job = jobQueue.take();
-					idle = false;
+					QueuedJob qj = jobQueue.take();
+					if (qj.holdsQueueSlot)
+						queueCapacity.release();
+					job = qj.job;
 				} catch (InterruptedException e) {
 					return;
 				}
-				if (job == null)
-					return;
 				try {
 					job.run(JobDispatcher.this);
-					job = null;
 				} catch (InterruptedException e) {
 				} catch (StopAllDownloadsException e) {
 					JobDispatcher.this.terminateAllWorkerThreads();
@@ -187,6 +383,9 @@ public class JobDispatcher {
 					log.error("", e);
 					Thread.sleep(5000);
 					System.gc();
+				} finally {
+					job = null;
+					jobsFinished(1);
 				}
 			}
 		}
@@ -25,12 +25,12 @@ import java.util.EnumSet;
 
 import mobac.exceptions.AtlasTestException;
 import mobac.exceptions.MapCreationException;
-import mobac.gui.AtlasProgress;
 import mobac.program.AtlasThread;
 import mobac.program.PauseResumeHandler;
 import mobac.program.atlascreators.tileprovider.TileProvider;
 import mobac.program.interfaces.AtlasInterface;
 import mobac.program.interfaces.LayerInterface;
+import mobac.program.interfaces.MapCreationProgress;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.AtlasOutputFormat;
@@ -52,8 +52,12 @@ import org.apache.log4j.Logger;
  * <li>1 to n times {@link #initializeMap(MapInterface, TileProvider)} followed by {@link #createMap()}</li>
  * <li>AtlasCreator atlas finalization via {@link #finishAtlasCreation()}</li>
  * </ol>
+ * 
+ * If parallel map creation is enabled (see {@link #supportsParallelMapCreation()}) the map specific calls
+ * {@link #initializeMap(MapInterface, TileProvider)} and {@link #createMap()} are made on a separate map context
+ * created via {@link #createMapContext()} instead of the AtlasCreator instance itself.
  */
-public abstract class AtlasCreator {
+public abstract class AtlasCreator implements Cloneable {
 
 	public static final Charset TEXT_FILE_CHARSET = Charsets.ISO_8859_1;
 
@@ -67,7 +71,7 @@ public abstract class AtlasCreator {
 
 	protected File atlasDir;
 
-	protected AtlasProgress atlasProgress = null;
+	protected MapCreationProgress atlasProgress = null;
 
 	protected PauseResumeHandler pauseResumeHandler = null;
 
@@ -186,6 +190,62 @@ public abstract class AtlasCreator {
 		pauseResumeHandler = at.getPauseResumeHandler();
 	}
 
+	/**
+	 * Indicates if this atlas creator can be used in the pipelined download-and-build mode (see
+	 * {@link Settings#atlasPipelinedCreation}). In this mode {@link #createMap()} is called while the tiles of the map
+	 * are still being downloaded and each tile request blocks until the tile is available. Therefore only creators
+	 * that process the tiles of a map column by column (x outer loop, y inner loop) - the order the tiles are
+	 * downloaded in this mode - should return <code>true</code>. Each concrete atlas creator enables the pipelined mode
+	 * explicitly, it is not inherited by subclasses.
+	 * 
+	 * @return <code>true</code> if pipelined map creation is supported
+	 */
+	public boolean supportsPipelinedMapCreation() {
+		return false;
+	}
+
+	/**
+	 * Indicates if this atlas creator allows to create several maps concurrently (see
+	 * {@link Settings#atlasParallelMapCreationThreads}). Each map is then created by its own map context (see
+	 * {@link #createMapContext()}) on a separate thread. Therefore only creators that write each map to independent
+	 * files and that do not modify atlas or layer specific state in {@link #createMap()} should return
+	 * <code>true</code>. All maps of a layer are finished before {@link #finishLayerCreation()} is called. The
+	 * capability is not inherited: each concrete atlas creator has to enable it explicitly.
+	 * 
+	 * @return <code>true</code> if parallel map creation is supported
+	 */
+	public boolean supportsParallelMapCreation() {
+		return false;
+	}
+
+	/**
+	 * Estimates the heap memory in bytes required by {@link #createMap()} for the map set via
+	 * {@link #initializeMap(MapInterface, TileProvider)}. It limits the number of maps created in parallel. The
+	 * default implementation assumes that only a few tile images are held in memory at the same time.
+	 * 
+	 * @return estimated memory usage in bytes
+	 */
+	public long estimateMapCreationMemory() {
+		return 4L * 4 * tileSize * tileSize;
+	}
+
+	/**
+	 * Creates the context for creating one map in parallel to other maps. The default implementation returns a
+	 * shallow copy of this atlas creator: the atlas and layer specific fields are shared while the map specific fields
+	 * are set independently by {@link #initializeMap(MapInterface, TileProvider)}. Implementations with mutable atlas
+	 * wide objects have to override this method or must not support parallel map creation.
+	 * 
+	 * @return a new map context
+	 * @see #supportsParallelMapCreation()
+	 */
+	public AtlasCreator createMapContext() {
+		try {
+			return (AtlasCreator) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * @throws InterruptedException
 	 * @see AtlasCreator
@@ -203,10 +263,20 @@ public abstract class AtlasCreator {
 		pauseResumeHandler.pauseWait();
 	}
 
-	public AtlasProgress getAtlasProgress() {
+	public MapCreationProgress getAtlasProgress() {
 		return atlasProgress;
 	}
 
+	/**
+	 * Replaces the progress receiver set by {@link #initializeMap(MapInterface, TileProvider)}, e.g. for a map context
+	 * that creates its map in parallel to other maps.
+	 * 
+	 * @param atlasProgress
+	 */
+	public void setAtlasProgress(MapCreationProgress atlasProgress) {
+		this.atlasProgress = atlasProgress;
+	}
+
 	public int getXMin() {
 		return xMin;
 	}
@@ -36,4 +36,12 @@ public class BigPlanetTracks extends RMapsSQLite {
 		return MercatorPower2MapSpace.INSTANCE_256.equals(mapSource.getMapSpace());
 	}
 
+	/**
+	 * Subclasses have to enable the pipelined map creation explicitly.
+	 */
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return getClass() == BigPlanetTracks.class;
+	}
+
 }
@@ -21,4 +21,9 @@ import mobac.program.annotations.AtlasCreatorName;
 @AtlasCreatorName("Galileo Offline Maps")
 public class Galileo extends BigPlanetTracks {
 
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
+
 }
@@ -189,4 +189,9 @@ public class MBTiles extends RMapsSQLite {
 		return atlas.getName() + ".mbtiles";
 	}
 
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
+
 }
@@ -31,4 +31,9 @@ public class Maverick extends RMapsSQLite {
 		super();
 	}
 
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
+
 }
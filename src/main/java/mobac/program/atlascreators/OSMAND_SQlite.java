@@ -28,4 +28,9 @@ public class OSMAND_SQlite extends RMapsSQLite {
 		return MercatorPower2MapSpace.INSTANCE_256.equals(mapSource.getMapSpace());
 	}
 
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
+
 }
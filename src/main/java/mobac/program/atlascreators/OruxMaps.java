@@ -88,6 +88,11 @@ public class OruxMaps extends AtlasCreator {
 
 		return (mapSource.getMapSpace() instanceof MercatorPower2MapSpace);
 	}
+
+	@Override
+	public boolean supportsParallelMapCreation() {
+		return getClass() == OruxMaps.class;
+	}
 	
 	@Override
 	protected void testAtlas() throws AtlasTestException {
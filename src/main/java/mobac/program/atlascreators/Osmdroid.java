@@ -91,4 +91,9 @@ public class Osmdroid extends OSMTracker {
 			zipStream.writeStoredEntry(tileName, tileData);
 		}
 	}
+
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
 }
@@ -61,6 +61,11 @@ public class OsmdroidSQLite extends AtlasCreator implements RequiresSQLite {
 		return mapSource.getMapSpace().getProjectionCategory().equals(ProjectionCategory.SPHERE);
 	}
 
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return true;
+	}
+
 	@Override
 	public void startAtlasCreation(AtlasInterface atlas, File customAtlasDir) throws IOException, AtlasTestException,
 			InterruptedException {
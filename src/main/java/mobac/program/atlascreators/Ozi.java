@@ -57,6 +57,17 @@ public class Ozi extends AtlasCreator {
 		// TODO supports Mercator ellipsoid?
 	}
 
+	@Override
+	public boolean supportsParallelMapCreation() {
+		return getClass() == Ozi.class;
+	}
+
+	@Override
+	public long estimateMapCreationMemory() {
+		// One line image with the full width of the map
+		return 4L * (xMax - xMin + 1) * tileSize * tileSize;
+	}
+
 	@Override
 	public void initializeMap(MapInterface map, TileProvider mapTileProvider) {
 		super.initializeMap(map, mapTileProvider);
@@ -32,6 +32,11 @@ import mobac.utilities.Utilities;
 @AtlasCreatorName("PNG + Worldfile (PNG & PGW)")
 public class PNGWorldfile extends Glopus {
 
+	@Override
+	public boolean supportsParallelMapCreation() {
+		return true;
+	}
+
 	@Override
 	public void createMap() throws MapCreationException, InterruptedException {
 		try {
@@ -264,13 +264,16 @@ public abstract class PaperAtlas extends AtlasCreator {
 					g.translate(firstTileXOffset, firstTileYOffset);
 
 					// Paint additions
-					dummy.setSize(size);
 					Point tlc = new Point(firstTileX * tileSize * tileImageScale + firstTileXOffset, firstTileY
 							* tileSize * tileImageScale + firstTileYOffset);
-					if (s.wgsEnabled)
-						wgsGrid.paintWgsGrid(g, mapSource.getMapSpace(), tlc, zoom);
-					if (s.scaleBar)
-						ScaleBar.paintScaleBar(dummy, g, mapSource.getMapSpace(), tlc, zoom);
+					// dummy is shared by all map contexts in case of parallel map creation
+					synchronized (dummy) {
+						dummy.setSize(size);
+						if (s.wgsEnabled)
+							wgsGrid.paintWgsGrid(g, mapSource.getMapSpace(), tlc, zoom);
+						if (s.scaleBar)
+							ScaleBar.paintScaleBar(dummy, g, mapSource.getMapSpace(), tlc, zoom);
+					}
 					if (s.compass) {
 						Image compassRaw = ImageIO.read(Utilities.loadResourceAsStream("images/compass.png"));
 						Image compass = compassRaw.getScaledInstance(150, 150, Image.SCALE_SMOOTH);
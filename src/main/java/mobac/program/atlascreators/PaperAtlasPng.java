@@ -19,7 +19,6 @@ package mobac.program.atlascreators;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.text.DecimalFormat;
 
 import javax.imageio.ImageIO;
 
@@ -30,14 +29,23 @@ import mobac.utilities.Utilities;
 @AtlasCreatorName(value = "Paper Atlas (PNG)")
 public class PaperAtlasPng extends PaperAtlas {
 
-	private final DecimalFormat decimalFormat = new DecimalFormat("#000");
-
 	private File mapFolder;
 
 	public PaperAtlasPng() {
 		super(true);
 	}
 
+	@Override
+	public boolean supportsParallelMapCreation() {
+		return true;
+	}
+
+	@Override
+	public long estimateMapCreationMemory() {
+		// Upper bound - a page image never exceeds the whole map
+		return 4L * (xMax - xMin + 1) * (yMax - yMin + 1) * tileSize * tileSize;
+	}
+
 	@Override
 	public void createMap() throws MapCreationException, InterruptedException {
 		mapFolder = new File(getLayerFolder(), map.getName());
@@ -52,7 +60,7 @@ public class PaperAtlasPng extends PaperAtlas {
 
 	@Override
 	protected void processPage(BufferedImage image, int pageNumber) throws MapCreationException {
-		String fileName = decimalFormat.format(pageNumber) + ".png";
+		String fileName = String.format("%03d.png", pageNumber);
 		File file = new File(mapFolder, fileName);
 		try {
 			ImageIO.write(image, "PNG", file);
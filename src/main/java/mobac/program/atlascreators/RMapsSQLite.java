@@ -90,6 +90,14 @@ public class RMapsSQLite extends AtlasCreator implements RequiresSQLite {
 		return correctTileSize && correctProjection;
 	}
 
+	/**
+	 * Subclasses have to enable the pipelined map creation explicitly.
+	 */
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return getClass() == RMapsSQLite.class;
+	}
+
 	@Override
 	public void startAtlasCreation(AtlasInterface atlas, File customAtlasDir) throws IOException, AtlasTestException,
 			InterruptedException {
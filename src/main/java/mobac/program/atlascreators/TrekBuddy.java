@@ -66,6 +66,19 @@ public class TrekBuddy extends AtlasCreator {
 		// TODO supports Mercator ellipsoid?
 	}
 
+	/**
+	 * Subclasses have to enable the pipelined map creation explicitly.
+	 */
+	@Override
+	public boolean supportsPipelinedMapCreation() {
+		return getClass() == TrekBuddy.class;
+	}
+
+	@Override
+	public boolean supportsParallelMapCreation() {
+		return getClass() == TrekBuddy.class;
+	}
+
 	public void startAtlasCreation(AtlasInterface atlas, File customAtlasDir) throws IOException, InterruptedException,
 			AtlasTestException {
 		super.startAtlasCreation(atlas, customAtlasDir);
@@ -29,9 +29,9 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 
-import mobac.gui.AtlasProgress;
 import mobac.program.atlascreators.AtlasCreator;
 import mobac.program.atlascreators.impl.rmp.interfaces.RmpFileEntry;
+import mobac.program.interfaces.MapCreationProgress;
 
 import org.apache.log4j.Logger;
 
@@ -280,7 +280,7 @@ public class RmpLayer {
 			/* --- Number of tiles --- */
 			RmpTools.writeValue(bos, tiles.size(), 4);
 
-			AtlasProgress atlasProgress = atlasCreator.getAtlasProgress();
+			MapCreationProgress atlasProgress = atlasCreator.getAtlasProgress();
 			/* --- The tiles --- */
 			int x = 0;
 			int xMax = tiles.size();
@@ -19,11 +19,14 @@ package mobac.program.atlascreators.tileprovider;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import javax.imageio.ImageIO;
 
+import mobac.exceptions.TileException;
 import mobac.program.interfaces.MapInterface;
 import mobac.program.interfaces.MapSource;
+import mobac.program.interfaces.MapSource.LoadMethod;
 import mobac.program.model.TileImageType;
 import mobac.utilities.tar.TarIndex;
 
@@ -33,8 +36,6 @@ public class DownloadedTileProvider implements TileProvider {
 
 	private static final Logger log = Logger.getLogger(DownloadedTileProvider.class);
 
-	public static final String TILE_FILENAME_PATTERN = "x%dy%d";
-
 	protected final TarIndex tarIndex;
 	protected final MapInterface map;
 	protected final TileImageType mapTileType;
@@ -47,7 +48,31 @@ public class DownloadedTileProvider implements TileProvider {
 
 	public byte[] getTileData(int x, int y) throws IOException {
 		log.trace("Reading tile x=" + x + " y=" + y);
-		return tarIndex.getEntryContent(String.format(TILE_FILENAME_PATTERN, x, y));
+		if (tarIndex.isStoreReference(x, y))
+			return getStoredTileData(x, y);
+		return tarIndex.getTileContent(x, y);
+	}
+
+	/**
+	 * Loads a tile that has not been copied to the tile archive during download as it was already present in the tile
+	 * store. A tile that can not be read from the tile store is reported as error - it is not downloaded again as the
+	 * map creation threads are not subject to the download throttling.
+	 */
+	protected byte[] getStoredTileData(int x, int y) throws IOException {
+		MapSource mapSource = map.getMapSource();
+		int zoom = map.getZoom();
+		try {
+			byte[] data = mapSource.getTileData(zoom, x, y, LoadMethod.CACHE);
+			if (data == null)
+				throw new IOException("Tile x=" + x + " y=" + y + " z=" + zoom + " of map source \""
+						+ mapSource.getName() + "\" could not be read from the tile store");
+			return data;
+		} catch (TileException e) {
+			throw new IOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Loading tile x=" + x + " y=" + y + " interrupted");
+		}
 	}
 
 	public BufferedImage getTileImage(int x, int y) throws IOException {
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.atlascreators.tileprovider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import mobac.program.download.TileCompletionIndex;
+import mobac.program.interfaces.MapInterface;
+import mobac.utilities.tar.TarIndex;
+
+/**
+ * {@link DownloadedTileProvider} for the pipelined download-and-build mode: The tile archive is read while it is still
+ * written by the download jobs. Each tile request blocks until the download job of the requested tile has been
+ * finished.
+ */
+public class PipelinedTileProvider extends DownloadedTileProvider {
+
+	protected final TileCompletionIndex completionIndex;
+
+	public PipelinedTileProvider(TarIndex tarIndex, TileCompletionIndex completionIndex, MapInterface map) {
+		super(tarIndex, map);
+		this.completionIndex = completionIndex;
+	}
+
+	@Override
+	public byte[] getTileData(int x, int y) throws IOException {
+		try {
+			completionIndex.waitForTile(x, y);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Waiting for tile x=" + x + " y=" + y + " interrupted");
+		}
+		return super.getTileData(x, y);
+	}
+
+}
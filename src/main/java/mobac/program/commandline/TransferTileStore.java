@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.commandline;
+
+import java.io.File;
+
+import mobac.mapsources.MapSourcesManager;
+import mobac.program.interfaces.CommandLineAction;
+import mobac.program.interfaces.MapSource;
+import mobac.program.tilestore.CachingTileStore;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
+import mobac.program.tilestore.berkeleydb.DelayedInterruptThread;
+import mobac.program.tilestore.sqlite.MBTilesTransfer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exports the tiles of one map source from the tile store to a MBTiles file or imports them from a MBTiles file.
+ */
+public class TransferTileStore implements CommandLineAction {
+
+	private static final Logger log = Logger.getLogger(TransferTileStore.class);
+
+	private final String mapSourceName;
+	private final File mbtilesFile;
+	private final boolean export;
+
+	/**
+	 * @param mapSourceName
+	 *            name of the map source whose tile store is exported or imported
+	 * @param mbtilesFile
+	 * @param export
+	 *            <code>true</code> for exporting the tile store, <code>false</code> for importing the tiles
+	 */
+	public TransferTileStore(String mapSourceName, String mbtilesFile, boolean export) {
+		super();
+		this.mapSourceName = mapSourceName;
+		this.mbtilesFile = new File(mbtilesFile);
+		this.export = export;
+		if (export && this.mbtilesFile.exists()) {
+			System.err.println("Error: File \"" + mbtilesFile + "\" already exists.");
+			System.exit(1);
+		}
+		if (!export && !this.mbtilesFile.isFile()) {
+			System.err.println("Error: File \"" + mbtilesFile + "\" does not exist.");
+			System.exit(1);
+		}
+	}
+
+	@Override
+	public void runBeforeMainGUI() {
+		final MapSource mapSource = MapSourcesManager.getInstance().getSourceByName(mapSourceName);
+		if (mapSource == null) {
+			System.err.println("Error: Unknown map source \"" + mapSourceName + "\".");
+			System.exit(1);
+		}
+		final TileStore tileStore = TileStore.getInstance();
+		TileStore backend = tileStore;
+		if (backend instanceof CachingTileStore)
+			backend = ((CachingTileStore) backend).getTileStore();
+		if (export && !(backend instanceof BerkeleyDbTileStore)) {
+			// Other tile stores can not enumerate their tiles efficiently
+			System.err.println("Error: Exporting is only supported by the Berkeley DB tile store.");
+			System.exit(1);
+		}
+		// The Berkeley DB tile store requires a DelayedInterruptThread for writing
+		Thread t = new DelayedInterruptThread("TileStoreTransfer") {
+
+			@Override
+			public void run() {
+				try {
+					MBTilesTransfer transfer = new MBTilesTransfer(tileStore, mapSource);
+					if (export) {
+						long count = transfer.exportTiles(mbtilesFile);
+						System.out.println(count + " tiles exported to \"" + mbtilesFile + "\".");
+					} else {
+						long count = transfer.importTiles(mbtilesFile);
+						System.out.println(count + " tiles imported into tile store \"" + mapSourceName + "\".");
+					}
+					System.exit(0);
+				} catch (Exception e) {
+					// The details are only written to the log file
+					log.error("Tile store transfer failed", e);
+					// The file did not exist before the export
+					if (export && !mbtilesFile.delete() && mbtilesFile.exists())
+						log.error("Failed to delete incomplete file \"" + mbtilesFile + "\"");
+					System.err.println("Error: Tile store transfer failed: " + e.getMessage());
+					System.exit(1);
+				}
+			}
+		};
+		t.start();
+	}
+
+	@Override
+	public void runMainGUI() {
+	}
+
+	@Override
+	public boolean showSplashScreen() {
+		return false;
+	}
+
+	@Override
+	public boolean showMainGUI() {
+		return false;
+	}
+
+}
@@ -24,10 +24,13 @@ import mobac.exceptions.StopAllDownloadsException;
 import mobac.exceptions.UnrecoverableDownloadException;
 import mobac.program.JobDispatcher;
 import mobac.program.JobDispatcher.Job;
-import mobac.program.atlascreators.tileprovider.DownloadedTileProvider;
 import mobac.program.interfaces.DownloadJobListener;
+import mobac.program.interfaces.HttpMapSource;
 import mobac.program.interfaces.MapSource;
 import mobac.program.interfaces.MapSource.LoadMethod;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreEntry;
 import mobac.utilities.tar.TarIndexedArchive;
 
 import org.apache.log4j.Logger;
@@ -36,6 +39,13 @@ public class DownloadJob implements Job {
 
 	static Logger log = Logger.getLogger(DownloadJob.class);
 
+	/**
+	 * Delay in milliseconds before the first retry of a failed download. Doubled for each further retry.
+	 */
+	private static final long RETRY_BASE_DELAY = 1000;
+
+	private static final long RETRY_MAX_DELAY = 60000;
+
 	int errorCounter = 0;
 
 	final MapSource mapSource;
@@ -59,16 +69,23 @@ public class DownloadJob implements Job {
 		try {
 			// Thread.sleep(1500);
 			listener.jobStarted();
-			byte[] tileData = mapSource.getTileData(zoomValue, xValue, yValue, LoadMethod.DEFAULT);
-			String tileFileName = String.format(DownloadedTileProvider.TILE_FILENAME_PATTERN, xValue, yValue);
-			if (tileArchive != null) {
-				synchronized (tileArchive) {
-					tileArchive.writeFileFromData(tileFileName, tileData);
-				}
+			if (tileArchive != null && tileArchive.containsTile(xValue, yValue)) {
+				// Already finished by a previous run of a resumed download
+				listener.jobFinishedSuccessfully(xValue, yValue, 0);
+				return;
 			}
-			listener.jobFinishedSuccessfully(tileData.length);
+			if (tileArchive != null && isTileFreshInStore()) {
+				// No need to copy the tile - it is read from the tile store while creating the map
+				tileArchive.addStoreReference(xValue, yValue);
+				listener.jobFinishedSuccessfully(xValue, yValue, 0);
+				return;
+			}
+			byte[] tileData = mapSource.getTileData(zoomValue, xValue, yValue, LoadMethod.DEFAULT);
+			if (tileArchive != null)
+				tileArchive.writeTile(xValue, yValue, tileData);
+			listener.jobFinishedSuccessfully(xValue, yValue, tileData.length);
 		} catch (UnrecoverableDownloadException e) {
-			listener.jobFinishedWithError(false);
+			listener.jobFinishedWithError(xValue, yValue, false);
 			log.error("Download of tile z" + zoomValue + "_x" + xValue + "_y" + yValue
 					+ " failed with an unrecoverable error: " + e.getCause());
 		} catch (InterruptedException e) {
@@ -87,21 +104,57 @@ public class DownloadJob implements Job {
 		}
 	}
 
+	/**
+	 * Only the metadata of the tile is read - the tile data is read once while creating the map.
+	 * 
+	 * @return <code>true</code> if the tile is present and not expired in the tile store
+	 * @see Settings#atlasStoreBackedTiles
+	 */
+	private boolean isTileFreshInStore() {
+		Settings s = Settings.getInstance();
+		if (!s.atlasStoreBackedTiles || !s.tileStoreEnabled || !(mapSource instanceof HttpMapSource))
+			return false;
+		TileStoreEntry tile = TileStore.getInstance().getTileMetadata(xValue, yValue, zoomValue, mapSource);
+		if (tile == null || TileDownLoader.isTileExpired(tile))
+			return false;
+		byte[] data = tile.getData();
+		TileDownLoader.notifyCachedTileUsed((data != null) ? data.length : 0);
+		return true;
+	}
+
 	private void processError(JobDispatcher dispatcher, Exception e) {
 		errorCounter++;
 		// Reschedule job to try it later again
 		if (errorCounter <= listener.getMaxDownloadRetries()) {
-			listener.jobFinishedWithError(true);
+			listener.jobFinishedWithError(xValue, yValue, true);
+			long delay = getRetryDelay(e);
 			log.warn("Download of tile z" + zoomValue + "_x" + xValue + "_y" + yValue + " failed: \"" + e.getMessage()
-					+ "\" (tries: " + errorCounter + ") - rescheduling download job");
-			dispatcher.addErrorJob(this);
+					+ "\" (tries: " + errorCounter + ") - rescheduling download job in " + delay + " ms");
+			dispatcher.addErrorJob(this, delay);
 		} else {
-			listener.jobFinishedWithError(false);
+			listener.jobFinishedWithError(xValue, yValue, false);
 			log.error("Download of tile z" + zoomValue + "_x" + xValue + "_y" + yValue + " failed again: \""
 					+ e.getMessage() + "\". Retry limit reached, " + "job will not be rescheduled (no further try)");
 		}
 	}
 
+	/**
+	 * Uses the delay requested by the server via <code>Retry-After</code> if available. Otherwise the delay grows
+	 * exponentially with the number of failed tries. Half of the delay is random so that tiles failed at the same time
+	 * are not retried at the same time.
+	 * 
+	 * @return delay in milliseconds
+	 */
+	protected long getRetryDelay(Exception e) {
+		if (e instanceof DownloadFailedException) {
+			long retryAfter = ((DownloadFailedException) e).getRetryAfter();
+			if (retryAfter >= 0)
+				return Math.min(retryAfter, TileDownLoader.MAX_RETRY_AFTER);
+		}
+		long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(errorCounter - 1, 16));
+		return delay / 2 + (long) (Math.random() * (delay / 2));
+	}
+
 	@Override
 	public String toString() {
 		return "DownloadJob x=" + xValue + " y=" + yValue + " z=" + zoomValue;
@@ -21,6 +21,7 @@ import java.util.Enumeration;
 import mobac.program.AtlasThread;
 import mobac.program.JobDispatcher;
 import mobac.program.JobDispatcher.Job;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
 import mobac.program.interfaces.DownloadableElement;
 import mobac.utilities.tar.TarIndexedArchive;
 
@@ -40,9 +41,9 @@ public class DownloadJobProducerThread extends Thread {
 	final Enumeration<Job> jobEnumerator;
 
 	public DownloadJobProducerThread(AtlasThread atlasThread, JobDispatcher downloadJobDispatcher,
-			TarIndexedArchive tileArchive, DownloadableElement de) {
+			TarIndexedArchive tileArchive, DownloadJobOrder order, DownloadableElement de) {
 		this.downloadJobDispatcher = downloadJobDispatcher;
-		jobEnumerator = de.getDownloadJobs(tileArchive, atlasThread);
+		jobEnumerator = de.getDownloadJobs(tileArchive, order, atlasThread);
 		start();
 	}
 
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mobac.program.model.Settings;
+import mobac.utilities.stream.ThrottledInputStream;
+import mobac.utilities.stream.TokenBucket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adaptive per-host download concurrency based on AIMD (additive increase, multiplicative decrease).
+ * <p>
+ * For each tile server host the number of parallel atlas downloads is limited. After each successful request the
+ * limit is increased by <code>1/limit</code> (approximately one additional connection per round trip). If the server
+ * answers with HTTP 429 (Too Many Requests) or 503 (Service Unavailable) or a request times out the limit is halved.
+ * A strong increase of the response time compared to the fastest observed response time is treated as an early
+ * congestion signal and reduces the limit slightly.
+ * </p>
+ * <p>
+ * Independent of the adaptive limit a host can be blocked for a certain time, e.g. as requested by the server via the
+ * <code>Retry-After</code> header. Additionally the number of requests and the response time are recorded per host.
+ * </p>
+ * <p>
+ * The request rate and the bandwidth can be limited globally and per host via {@link TokenBucket}s.
+ * </p>
+ * 
+ * @see Settings#adaptiveDownloadConcurrency
+ */
+public class HostConcurrencyControl {
+
+	private static final Logger log = Logger.getLogger(HostConcurrencyControl.class);
+
+	private static final HostConcurrencyControl INSTANCE = new HostConcurrencyControl();
+
+	/**
+	 * Multiplicative decrease factor applied on HTTP 429/503 and timeouts
+	 */
+	private static final double DECREASE_FACTOR_CONGESTION = 0.5;
+
+	/**
+	 * Multiplicative decrease factor applied if the latency raises above {@link #LATENCY_THRESHOLD_FACTOR} times the
+	 * base latency
+	 */
+	private static final double DECREASE_FACTOR_LATENCY = 0.9;
+
+	private static final double LATENCY_THRESHOLD_FACTOR = 3.0;
+
+	/**
+	 * Weight of a new latency sample in the exponential moving average
+	 */
+	private static final double LATENCY_EWMA_WEIGHT = 0.1;
+
+	private final Map<String, HostState> hostStates = new HashMap<String, HostState>();
+
+	private final TokenBucket requestRateLimiter = new TokenBucket(0, 1);
+
+	public static HostConcurrencyControl getInstance() {
+		return INSTANCE;
+	}
+
+	private HostConcurrencyControl() {
+	}
+
+	public boolean isEnabled() {
+		return Settings.getInstance().adaptiveDownloadConcurrency;
+	}
+
+	/**
+	 * Logs the request statistics of all hosts
+	 */
+	public void logStatistics() {
+		List<HostState> states;
+		synchronized (hostStates) {
+			states = new ArrayList<HostState>(hostStates.values());
+		}
+		for (HostState state : states)
+			log.info(state.getStatistics());
+	}
+
+	/**
+	 * Blocks until the global and the per-host request rate limit allow another request to the host.
+	 * 
+	 * @param hostState
+	 * @throws InterruptedException
+	 * @see Settings#requestRateLimit
+	 * @see Settings#hostRequestRateLimit
+	 */
+	public void acquireRequestPermit(HostState hostState) throws InterruptedException {
+		requestRateLimiter.setLimit(Settings.getInstance().requestRateLimit, 1);
+		requestRateLimiter.acquire(1);
+		hostState.acquireRequestPermit();
+	}
+
+	public HostState getHostState(String host) {
+		synchronized (hostStates) {
+			HostState state = hostStates.get(host);
+			if (state == null) {
+				state = new HostState(host);
+				hostStates.put(host, state);
+			}
+			return state;
+		}
+	}
+
+	/**
+	 * Concurrency state of one tile server host. All methods are synchronized on the {@link HostState} instance,
+	 * therefore different hosts never block each other.
+	 */
+	public static class HostState {
+
+		private final String host;
+
+		private double limit;
+		private int active = 0;
+
+		private double latencyAvg = -1;
+		private double latencyBase = Double.MAX_VALUE;
+		private long lastDecrease = 0;
+
+		private long blockedUntil = 0;
+
+		private long requests = 0;
+
+		/**
+		 * Request rate and bandwidth limits of this host. Not guarded by the {@link HostState} monitor.
+		 */
+		private final TokenBucket requestRateLimiter = new TokenBucket(0, 1);
+		private final TokenBucket bandwidthLimiter = new TokenBucket(0, 0);
+
+		protected HostState(String host) {
+			this.host = host;
+			this.limit = Math.max(1, Settings.getInstance().downloadThreadCount);
+		}
+
+		/**
+		 * Blocks until the number of active requests to this host is below the current concurrency limit and the host
+		 * is not blocked.
+		 * 
+		 * @throws InterruptedException
+		 */
+		public synchronized void acquire() throws InterruptedException {
+			while (true) {
+				long blocked = blockedUntil - System.currentTimeMillis();
+				if (blocked > 0)
+					wait(blocked);
+				else if (active >= getEffectiveLimit())
+					wait();
+				else
+					break;
+			}
+			active++;
+		}
+
+		/**
+		 * Blocks until the time set via {@link #blockUntil(long)} has passed.
+		 * 
+		 * @throws InterruptedException
+		 */
+		public synchronized void awaitUnblocked() throws InterruptedException {
+			long remaining;
+			while ((remaining = blockedUntil - System.currentTimeMillis()) > 0)
+				wait(remaining);
+		}
+
+		/**
+		 * Blocks all further requests to this host until the specified time. An already set later time is kept.
+		 * 
+		 * @param time
+		 *            time in milliseconds since the epoch
+		 */
+		public synchronized void blockUntil(long time) {
+			if (time <= blockedUntil)
+				return;
+			blockedUntil = time;
+			log.debug("Host " + host + " blocked for " + (time - System.currentTimeMillis()) + " ms");
+		}
+
+		public synchronized long getBlockedUntil() {
+			return blockedUntil;
+		}
+
+		/**
+		 * Releases a slot acquired via {@link #acquire()} and adapts the concurrency limit.
+		 * 
+		 * @param latency
+		 *            duration of the request in milliseconds
+		 * @param congested
+		 *            <code>true</code> if the server signaled overload (HTTP 429/503) or the request timed out
+		 */
+		public synchronized void release(long latency, boolean congested) {
+			active--;
+			if (congested) {
+				decrease(DECREASE_FACTOR_CONGESTION, "congestion");
+			} else {
+				if (latencyAvg < 0)
+					latencyAvg = latency;
+				else
+					latencyAvg += LATENCY_EWMA_WEIGHT * (latency - latencyAvg);
+				latencyBase = Math.min(latencyBase, latencyAvg);
+				if (latencyAvg > LATENCY_THRESHOLD_FACTOR * Math.max(latencyBase, 10))
+					decrease(DECREASE_FACTOR_LATENCY, "latency " + (int) latencyAvg + " ms");
+				else
+					increase();
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Releases a slot acquired via {@link #acquire()} without a request having been made.
+		 */
+		public synchronized void cancel() {
+			active--;
+			notifyAll();
+		}
+
+		/**
+		 * Counts an atlas download request to this host, independent of the adaptive concurrency being enabled.
+		 */
+		public synchronized void requestStarted() {
+			requests++;
+		}
+
+		private void increase() {
+			int maxLimit = getMaxLimit();
+			if (limit >= maxLimit)
+				return;
+			int oldLimit = (int) limit;
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+			if ((int) limit != oldLimit)
+				log.debug("Concurrency limit for host " + host + " increased to " + (int) limit);
+		}
+
+		private void decrease(double factor, String reason) {
+			long now = System.currentTimeMillis();
+			// Only one decrease per round trip - the requests in flight have been started with the old limit
+			if (now - lastDecrease < Math.max(latencyAvg, 1000))
+				return;
+			lastDecrease = now;
+			limit = Math.max(1.0, limit * factor);
+			// A decrease caused by latency resets the baseline so that a permanently slower server is accepted
+			latencyBase = Double.MAX_VALUE;
+			log.debug("Concurrency limit for host " + host + " decreased to " + (int) limit + " (" + reason + ")");
+		}
+
+		private int getEffectiveLimit() {
+			return Math.max(1, Math.min(getMaxLimit(), (int) limit));
+		}
+
+		private int getMaxLimit() {
+			Settings s = Settings.getInstance();
+			// More parallel requests than the size of the host's connection pool would only wait for a connection
+			return Math.max(1, Math.min(s.adaptiveMaxDownloadThreadCount, s.httpMaxConnectionsPerHost));
+		}
+
+		public synchronized String getStatistics() {
+			return "Host " + host + ": " + requests + " requests, concurrency limit " + getEffectiveLimit()
+					+ ", average response time " + (int) Math.max(latencyAvg, 0) + " ms";
+		}
+
+		/**
+		 * Blocks until the request rate limit of this host allows another request.
+		 * 
+		 * @throws InterruptedException
+		 */
+		public void acquireRequestPermit() throws InterruptedException {
+			requestRateLimiter.setLimit(Settings.getInstance().hostRequestRateLimit, 1);
+			requestRateLimiter.acquire(1);
+		}
+
+		/**
+		 * @return the bandwidth limit of this host for a {@link ThrottledInputStream} or <code>null</code> if the
+		 *         bandwidth per host is unlimited
+		 */
+		public TokenBucket getBandwidthLimiter() {
+			long limit = Settings.getInstance().hostBandwidthLimit;
+			if (limit <= 0)
+				return null;
+			bandwidthLimiter.setLimit(limit, ThrottledInputStream.getBurstCapacity(limit));
+			return bandwidthLimiter;
+		}
+
+		public synchronized int getLimit() {
+			return getEffectiveLimit();
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+	}
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import mobac.program.model.Settings;
+import mobac.utilities.Utilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of the persistent (keep-alive) connections to the tile server hosts on top of the keep-alive cache of
+ * {@link HttpURLConnection}.
+ * <ul>
+ * <li>Each host has its own pool of {@link Settings#httpMaxConnectionsPerHost} connections. A request has to acquire
+ * a connection of the pool via {@link #acquire(HttpURLConnection)} and return it via {@link #release(HostPool)}.
+ * Therefore there are never more connections to a host than the JRE keeps open for reuse.</li>
+ * <li>Response bodies that are not needed are drained via {@link #drain(HttpURLConnection, InputStream)} so that the
+ * connection can be reused. Reading too large bodies is left to {@link HttpURLConnection#disconnect()}.</li>
+ * <li>New connections are counted per host. For HTTPS this is done via a shared {@link SSLSocketFactory} that is
+ * called for each TLS handshake. The JRE provides no such hook for plain HTTP connections, therefore only the number
+ * of requests is known for those hosts.</li>
+ * </ul>
+ */
+public class HttpConnectionPool {
+
+	private static final Logger log = Logger.getLogger(HttpConnectionPool.class);
+
+	private static final HttpConnectionPool INSTANCE = new HttpConnectionPool();
+
+	/**
+	 * Maximum size of a response body that is read and discarded to keep the connection alive
+	 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	/**
+	 * The host pool of the request currently made by the thread, used for assigning new TLS connections to the host
+	 */
+	private static final ThreadLocal<HostPool> CURRENT_POOL = new ThreadLocal<HostPool>();
+
+	private final Map<String, HostPool> hostPools = new HashMap<String, HostPool>();
+
+	private CountingSSLSocketFactory sslSocketFactory = null;
+
+	public static HttpConnectionPool getInstance() {
+		return INSTANCE;
+	}
+
+	private HttpConnectionPool() {
+	}
+
+	public HostPool getHostPool(String host) {
+		synchronized (hostPools) {
+			HostPool pool = hostPools.get(host);
+			if (pool == null) {
+				pool = new HostPool(host);
+				hostPools.put(host, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Blocks until a connection of the pool of the host of <code>conn</code> is available. Has to be called before
+	 * connecting, the connection has to be returned via {@link #release(HostPool)}.
+	 * 
+	 * @param conn
+	 * @return the pool of the host
+	 * @throws InterruptedException
+	 */
+	public HostPool acquire(HttpURLConnection conn) throws InterruptedException {
+		HostPool pool = getHostPool(conn.getURL().getHost());
+		pool.acquire();
+		if (conn instanceof HttpsURLConnection) {
+			HttpsURLConnection httpsConn = (HttpsURLConnection) conn;
+			SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+			// Map sources that use their own socket factory are not counted
+			if (httpsConn.getSSLSocketFactory() == defaultFactory)
+				httpsConn.setSSLSocketFactory(getSSLSocketFactory(defaultFactory));
+		}
+		CURRENT_POOL.set(pool);
+		return pool;
+	}
+
+	public void release(HostPool pool) {
+		CURRENT_POOL.remove();
+		pool.release();
+	}
+
+	/**
+	 * The JRE only reuses a cached TLS connection for the same socket factory instance, therefore all connections use
+	 * the same factory as long as the default factory is not changed.
+	 */
+	private synchronized SSLSocketFactory getSSLSocketFactory(SSLSocketFactory defaultFactory) {
+		if (sslSocketFactory == null || sslSocketFactory.delegate != defaultFactory)
+			sslSocketFactory = new CountingSSLSocketFactory(defaultFactory);
+		return sslSocketFactory;
+	}
+
+	/**
+	 * Reads the remaining data of a response body that is not needed and closes the stream. If the body is larger than
+	 * {@link #MAX_DRAIN_BYTES} the connection is handed over to {@link HttpURLConnection#disconnect()}.
+	 * 
+	 * @param conn
+	 * @param in
+	 *            input or error stream of <code>conn</code>, may be <code>null</code>
+	 * @return number of bytes read
+	 */
+	public static int drain(HttpURLConnection conn, InputStream in) {
+		if (in == null)
+			return 0;
+		int total = 0;
+		try {
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) >= 0) {
+				total += read;
+				if (total > MAX_DRAIN_BYTES) {
+					conn.disconnect();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			log.trace("Draining response of " + conn.getURL() + " failed: " + e);
+		} finally {
+			Utilities.closeStream(in);
+		}
+		return total;
+	}
+
+	/**
+	 * Logs the connection statistics of all hosts
+	 */
+	public void logStatistics() {
+		List<HostPool> pools;
+		synchronized (hostPools) {
+			pools = new ArrayList<HostPool>(hostPools.values());
+		}
+		for (HostPool pool : pools)
+			log.info(pool.getStatistics());
+	}
+
+	/**
+	 * Connection pool of one tile server host
+	 */
+	public static class HostPool {
+
+		private final String host;
+
+		private int active = 0;
+
+		private long requests = 0;
+
+		/**
+		 * Number of new TLS connections, <code>-1</code> for hosts only accessed via plain HTTP
+		 */
+		private long newConnections = -1;
+
+		protected HostPool(String host) {
+			this.host = host;
+		}
+
+		public int getSize() {
+			return Math.max(1, Settings.getInstance().httpMaxConnectionsPerHost);
+		}
+
+		protected synchronized void acquire() throws InterruptedException {
+			while (active >= getSize())
+				wait();
+			active++;
+			requests++;
+		}
+
+		protected synchronized void release() {
+			active--;
+			notifyAll();
+		}
+
+		protected synchronized void connectionOpened() {
+			newConnections = Math.max(newConnections, 0) + 1;
+		}
+
+		public synchronized long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return number of new TLS connections or <code>-1</code> if unknown (plain HTTP)
+		 */
+		public synchronized long getNewConnections() {
+			return newConnections;
+		}
+
+		public synchronized String getStatistics() {
+			String s = "Host " + host + ": " + requests + " requests, pool size " + getSize();
+			if (newConnections < 0)
+				return s + ", connection reuse unknown (HTTP)";
+			long reused = Math.max(0, requests - newConnections);
+			int reuseRate = (requests > 0) ? (int) (100 * reused / requests) : 0;
+			return s + ", " + newConnections + " TLS handshakes, " + reused + " reused connections (" + reuseRate
+					+ "%)";
+		}
+
+		public String getHost() {
+			return host;
+		}
+	}
+
+	/**
+	 * Counts the sockets created for TLS connections and assigns them to the host pool of the current request
+	 */
+	private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory delegate;
+
+		public CountingSSLSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		private static void countConnection() {
+			HostPool pool = CURRENT_POOL.get();
+			if (pool != null)
+				pool.connectionOpened();
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			Socket socket = delegate.createSocket();
+			countConnection();
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			Socket socket = delegate.createSocket(s, host, port, autoClose);
+			countConnection();
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = delegate.createSocket(host, port);
+			countConnection();
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			Socket socket = delegate.createSocket(host, port, localHost, localPort);
+			countConnection();
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			Socket socket = delegate.createSocket(host, port);
+			countConnection();
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			Socket socket = delegate.createSocket(address, port, localAddress, localPort);
+			countConnection();
+			return socket;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download;
+
+import java.awt.Point;
+import java.util.BitSet;
+
+import mobac.program.interfaces.MapInterface;
+import mobac.program.interfaces.MapSource;
+import mobac.program.interfaces.TileFilter;
+
+/**
+ * Keeps track of the tiles of a map whose download job has been finished - either successfully or with a permanent
+ * error. Used in the pipelined download-and-build mode for blocking the atlas creator until the tile it wants to
+ * process is available.
+ */
+public class TileCompletionIndex {
+
+	private final int xMin;
+	private final int xMax;
+	private final int yMin;
+	private final int yMax;
+	private final int zoom;
+	private final MapSource mapSource;
+	private final TileFilter tileFilter;
+
+	private final BitSet finishedTiles;
+
+	private boolean downloadFinished = false;
+
+	public TileCompletionIndex(MapInterface map) {
+		Point minCoord = map.getMinTileCoordinate();
+		Point maxCoord = map.getMaxTileCoordinate();
+		mapSource = map.getMapSource();
+		int tileSize = mapSource.getMapSpace().getTileSize();
+		xMin = minCoord.x / tileSize;
+		xMax = maxCoord.x / tileSize;
+		yMin = minCoord.y / tileSize;
+		yMax = maxCoord.y / tileSize;
+		zoom = map.getZoom();
+		tileFilter = map.getTileFilter();
+		finishedTiles = new BitSet((xMax - xMin + 1) * (yMax - yMin + 1));
+	}
+
+	private int getTileIndex(int x, int y) {
+		if (x < xMin || x > xMax || y < yMin || y > yMax)
+			return -1;
+		return (y - yMin) * (xMax - xMin + 1) + (x - xMin);
+	}
+
+	/**
+	 * Marks the specified tile as finished (downloaded or failed permanently) and wakes up all threads waiting for it.
+	 * 
+	 * @param x
+	 * @param y
+	 */
+	public synchronized void tileFinished(int x, int y) {
+		int index = getTileIndex(x, y);
+		if (index < 0)
+			return;
+		finishedTiles.set(index);
+		notifyAll();
+	}
+
+	/**
+	 * Signals that no more download jobs will finish for this map (all jobs done or downloads aborted).
+	 */
+	public synchronized void downloadFinished() {
+		downloadFinished = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isDownloadFinished() {
+		return downloadFinished;
+	}
+
+	/**
+	 * Blocks until the download job of the specified tile has been finished. Returns immediately for tiles outside of
+	 * the map and for tiles excluded by the map's {@link TileFilter} as no download job exists for them.
+	 * 
+	 * @param x
+	 * @param y
+	 * @throws InterruptedException
+	 */
+	public void waitForTile(int x, int y) throws InterruptedException {
+		int index = getTileIndex(x, y);
+		if (index < 0)
+			return;
+		if (!tileFilter.testTile(x, y, zoom, mapSource))
+			return;
+		synchronized (this) {
+			while (!downloadFinished && !finishedTiles.get(index))
+				wait();
+		}
+	}
+
+}
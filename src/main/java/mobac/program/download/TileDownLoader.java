@@ -20,9 +20,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mobac.exceptions.DownloadFailedException;
 import mobac.exceptions.UnrecoverableDownloadException;
+import mobac.program.download.HostConcurrencyControl.HostState;
+import mobac.program.download.HttpConnectionPool.HostPool;
 import mobac.program.interfaces.HttpMapSource;
 import mobac.program.interfaces.MapSourceListener;
 import mobac.program.interfaces.MapSpace;
@@ -32,6 +38,7 @@ import mobac.program.tilestore.TileStore;
 import mobac.program.tilestore.TileStoreEntry;
 import mobac.utilities.Utilities;
 import mobac.utilities.stream.ThrottledInputStream;
+import mobac.utilities.stream.TokenBucket;
 
 import org.apache.log4j.Logger;
 
@@ -39,17 +46,52 @@ public class TileDownLoader {
 
 	public static String ACCEPT = "text/html, image/png, image/jpeg, image/gif, */*;q=0.1";
 
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Upper limit in milliseconds for delays requested by a server via the <code>Retry-After</code> header
+	 */
+	public static final long MAX_RETRY_AFTER = 10 * 60 * 1000;
+
 	static {
 		Object defaultReadTimeout = System.getProperty("sun.net.client.defaultReadTimeout");
 		if (defaultReadTimeout == null)
 			System.setProperty("sun.net.client.defaultReadTimeout", "15000");
-		System.setProperty("http.maxConnections", "20");
+		// The JRE's keep-alive cache has to hold all connections of a HttpConnectionPool.HostPool. This is a JVM wide
+		// setting that is only effective if it is set before the first HTTP connection is opened.
+		int maxConnections = Math.max(1, Settings.getInstance().httpMaxConnectionsPerHost);
+		System.setProperty("http.maxConnections", Integer.toString(maxConnections));
 	}
 
 	private static Logger log = Logger.getLogger(TileDownLoader.class);
 
 	private static Settings settings = Settings.getInstance();
 
+	/**
+	 * Tiles currently loaded by {@link #getImage(int, int, int, HttpMapSource)} for an atlas download, key: see
+	 * {@link #getTileRequestKey(int, int, int, HttpMapSource)}. These requests are subject to the host concurrency
+	 * control and the rate limits and may be blocked for a long time by a <code>Retry-After</code> header.
+	 */
+	private static final ConcurrentHashMap<String, TileRequest> atlasRequests =
+			new ConcurrentHashMap<String, TileRequest>();
+
+	/**
+	 * Tiles currently loaded by {@link #getImage(int, int, int, HttpMapSource)} for interactive callers like the
+	 * preview map
+	 */
+	private static final ConcurrentHashMap<String, TileRequest> interactiveRequests =
+			new ConcurrentHashMap<String, TileRequest>();
+
+	/**
+	 * Number of calls that have been served by the result of a concurrent request for the same tile
+	 */
+	private static final AtomicLong sharedRequests = new AtomicLong();
+
+	/**
+	 * Loads the tile from the tile store or downloads it. Concurrent calls for the same tile are combined: only the
+	 * first caller loads the tile, the others wait for and share its result. Interactive callers never wait for an
+	 * atlas download request as it may be throttled. Atlas downloads additionally share running interactive requests.
+	 */
 	public static byte[] getImage(int x, int y, int zoom, HttpMapSource mapSource) throws IOException,
 			InterruptedException, UnrecoverableDownloadException {
 
@@ -60,6 +102,66 @@ public class TileDownLoader {
 		if (y > maxTileIndex)
 			throw new RuntimeException("Invalid tile index y=" + y + " for zoom " + zoom);
 
+		String key = getTileRequestKey(x, y, zoom, mapSource);
+		boolean atlasDownload = (Thread.currentThread() instanceof MapSourceListener);
+		ConcurrentHashMap<String, TileRequest> inFlightRequests = atlasDownload ? atlasRequests : interactiveRequests;
+		while (true) {
+			if (atlasDownload) {
+				TileRequest interactiveRequest = interactiveRequests.get(key);
+				if (interactiveRequest != null && interactiveRequest.awaitResult())
+					return sharedResult(key, interactiveRequest);
+			}
+			TileRequest request = new TileRequest();
+			TileRequest runningRequest = inFlightRequests.putIfAbsent(key, request);
+			if (runningRequest == null) {
+				try {
+					byte[] data = loadImage(x, y, zoom, mapSource);
+					request.data = data;
+					return data;
+				} catch (IOException e) {
+					request.error = e;
+					throw e;
+				} catch (UnrecoverableDownloadException e) {
+					request.error = e;
+					throw e;
+				} catch (RuntimeException e) {
+					request.error = e;
+					throw e;
+				} catch (Error e) {
+					request.error = e;
+					throw e;
+				} finally {
+					inFlightRequests.remove(key, request);
+					request.finished.countDown();
+				}
+			}
+			if (runningRequest.awaitResult())
+				return sharedResult(key, runningRequest);
+			// The thread loading the tile has been interrupted - try it again on our own
+		}
+	}
+
+	private static byte[] sharedResult(String key, TileRequest request) {
+		sharedRequests.incrementAndGet();
+		if (log.isTraceEnabled())
+			log.trace("Shared concurrent request for " + key);
+		return request.data;
+	}
+
+	/**
+	 * @return number of tile requests that have been served by a concurrent request for the same tile
+	 */
+	public static long getSharedRequestCount() {
+		return sharedRequests.get();
+	}
+
+	private static String getTileRequestKey(int x, int y, int zoom, HttpMapSource mapSource) {
+		return mapSource.getName() + "/" + zoom + "/" + x + "/" + y;
+	}
+
+	protected static byte[] loadImage(int x, int y, int zoom, HttpMapSource mapSource) throws IOException,
+			InterruptedException, UnrecoverableDownloadException {
+
 		TileStore ts = TileStore.getInstance();
 
 		// Thread.sleep(2000);
@@ -105,6 +207,35 @@ public class TileDownLoader {
 		return data;
 	}
 
+	/**
+	 * A running {@link TileDownLoader#getImage(int, int, int, HttpMapSource)} call other threads can wait for
+	 */
+	protected static class TileRequest {
+
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile byte[] data = null;
+		private volatile Throwable error = null;
+
+		/**
+		 * Waits until the request has finished and rethrows its exception if it failed.
+		 * 
+		 * @return <code>false</code> if the request has been interrupted and returned no result
+		 */
+		protected boolean awaitResult() throws IOException, InterruptedException, UnrecoverableDownloadException {
+			finished.await();
+			Throwable t = error;
+			if (t == null)
+				return (data != null);
+			if (t instanceof IOException)
+				throw (IOException) t;
+			if (t instanceof UnrecoverableDownloadException)
+				throw (UnrecoverableDownloadException) t;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			throw (Error) t;
+		}
+	}
+
 	private static void notifyTileDownloaded(int size) {
 		if (Thread.currentThread() instanceof MapSourceListener) {
 			((MapSourceListener) Thread.currentThread()).tileDownloaded(size);
@@ -112,7 +243,7 @@ public class TileDownLoader {
 
 	}
 
-	private static void notifyCachedTileUsed(int size) {
+	static void notifyCachedTileUsed(int size) {
 		if (Thread.currentThread() instanceof MapSourceListener) {
 			((MapSourceListener) Thread.currentThread()).tileLoadedFromCache(size);
 		}
@@ -153,10 +284,9 @@ public class TileDownLoader {
 		log.trace("Downloading " + conn.getURL());
 
 		prepareConnection(conn);
-		conn.connect();
 
+		byte[] data = executeRequest(conn);
 		int code = conn.getResponseCode();
-		byte[] data = loadBodyDataInBuffer(conn);
 
 		if (code != HttpURLConnection.HTTP_OK)
 			throw new DownloadFailedException(conn, code);
@@ -186,26 +316,6 @@ public class TileDownLoader {
 		final int zoom = tile.getZoom();
 		final HttpMapSource.TileUpdate tileUpdate = mapSource.getTileUpdate();
 
-		switch (tileUpdate) {
-		case ETag: {
-			boolean unchanged = hasTileETag(tile, mapSource);
-			if (unchanged) {
-				if (log.isTraceEnabled())
-					log.trace("Data unchanged on server (eTag): " + mapSource + " " + tile);
-				return null;
-			}
-			break;
-		}
-		case LastModified: {
-			boolean isNewer = isTileNewer(tile, mapSource);
-			if (!isNewer) {
-				if (log.isTraceEnabled())
-					log.trace("Data unchanged on server (LastModified): " + mapSource + " " + tile);
-				return null;
-			}
-			break;
-		}
-		}
 		HttpURLConnection conn = mapSource.getTileUrlConnection(zoom, x, y);
 		if (conn == null)
 			throw new UnrecoverableDownloadException("Tile x=" + x + " y=" + y + " zoom=" + zoom
@@ -216,17 +326,22 @@ public class TileDownLoader {
 
 		prepareConnection(conn);
 
+		// Servers that do not support conditional requests (TileUpdate.ETag and LastModified) ignore the header
+		// and send the tile. Compared to a preceding HEAD request this saves one round trip per changed tile.
 		boolean conditionalRequest = false;
 
 		switch (tileUpdate) {
-		case IfNoneMatch: {
-			if (tile.geteTag() != null) {
-				conn.setRequestProperty("If-None-Match", tile.geteTag());
+		case IfNoneMatch:
+		case ETag: {
+			String eTag = tile.geteTag();
+			if (eTag != null && eTag.length() > 0) {
+				conn.setRequestProperty("If-None-Match", eTag);
 				conditionalRequest = true;
 			}
 			break;
 		}
-		case IfModifiedSince: {
+		case IfModifiedSince:
+		case LastModified: {
 			if (tile.getTimeLastModified() > 0) {
 				conn.setIfModifiedSince(tile.getTimeLastModified());
 				conditionalRequest = true;
@@ -235,23 +350,17 @@ public class TileDownLoader {
 		}
 		}
 
-		conn.connect();
-
 		Settings s = Settings.getInstance();
 
+		byte[] data = executeRequest(conn);
 		int code = conn.getResponseCode();
 
 		if (conditionalRequest && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
-			// Data unchanged on server
-			if (s.tileStoreEnabled) {
-				tile.update(conn.getExpiration());
-				TileStore.getInstance().putTile(tile, mapSource);
-			}
 			if (log.isTraceEnabled())
 				log.trace("Data unchanged on server: " + mapSource + " " + tile);
+			updateTileExpiry(tile, conn, mapSource);
 			return null;
 		}
-		byte[] data = loadBodyDataInBuffer(conn);
 
 		if (code != HttpURLConnection.HTTP_OK)
 			throw new DownloadFailedException(conn, code);
@@ -263,6 +372,13 @@ public class TileDownLoader {
 		long timeLastModified = conn.getLastModified();
 		long timeExpires = conn.getExpiration();
 
+		if (conditionalRequest && !isTileChanged(tile, tileUpdate, eTag, timeLastModified)) {
+			if (log.isTraceEnabled())
+				log.trace("Data unchanged on server (" + tileUpdate + "): " + mapSource + " " + tile);
+			updateTileExpiry(tile, conn, mapSource);
+			return null;
+		}
+
 		Utilities.checkForInterruption();
 		TileImageType imageType = Utilities.getImageType(data);
 		if (imageType == null)
@@ -290,6 +406,103 @@ public class TileDownLoader {
 		return (expiredTime < System.currentTimeMillis());
 	}
 
+	/**
+	 * For atlas downloads (performed by a {@link MapSourceListener} thread) this method blocks until the request rate
+	 * limits and the adaptive per-host concurrency limit allow another request to the host of <code>conn</code> and the
+	 * host is not blocked via {@link #blockHost(HttpURLConnection)}.
+	 * 
+	 * @param conn
+	 * @return the host state that has to be released via {@link #releaseHostSlot(HostState, long, boolean)} or
+	 *         <code>null</code> if adaptive concurrency is disabled
+	 * @throws InterruptedException
+	 */
+	protected static HostState acquireHostSlot(HttpURLConnection conn) throws InterruptedException {
+		if (!(Thread.currentThread() instanceof MapSourceListener))
+			return null;
+		HostConcurrencyControl hcc = HostConcurrencyControl.getInstance();
+		HostState hostState = hcc.getHostState(conn.getURL().getHost());
+		hostState.requestStarted();
+		hostState.awaitUnblocked();
+		hcc.acquireRequestPermit(hostState);
+		if (!hcc.isEnabled())
+			return null;
+		hostState.acquire();
+		return hostState;
+	}
+
+	/**
+	 * Sends the request of <code>conn</code> via a connection of the pool of its host and reads the response body.
+	 * Atlas downloads additionally have to pass the rate limits and the adaptive per-host concurrency limit.
+	 * 
+	 * @param conn
+	 * @return the response body or <code>null</code> if it is empty
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected static byte[] executeRequest(HttpURLConnection conn) throws IOException, InterruptedException {
+		HostState hostState = acquireHostSlot(conn);
+		HttpConnectionPool connectionPool = HttpConnectionPool.getInstance();
+		HostPool hostPool;
+		try {
+			hostPool = connectionPool.acquire(conn);
+		} catch (InterruptedException e) {
+			if (hostState != null)
+				hostState.cancel();
+			throw e;
+		}
+		long requestStart = System.currentTimeMillis();
+		boolean congested = false;
+		int code = -1;
+		try {
+			conn.connect();
+			code = conn.getResponseCode();
+			congested = isCongestionResponse(code);
+			return loadBodyDataInBuffer(conn);
+		} catch (SocketTimeoutException e) {
+			congested = true;
+			throw e;
+		} catch (IOException e) {
+			// Error responses let getInputStream() fail - keep the response code and headers for the retry handling
+			if (code >= 400)
+				throw new DownloadFailedException(conn, code);
+			throw e;
+		} finally {
+			connectionPool.release(hostPool);
+			releaseHostSlot(hostState, requestStart, congested);
+			if (congested && code > 0)
+				blockHost(conn);
+		}
+	}
+
+	/**
+	 * Blocks further atlas downloads from the host of <code>conn</code> for the time requested by the
+	 * <code>Retry-After</code> header of the response.
+	 * 
+	 * @param conn
+	 */
+	protected static void blockHost(HttpURLConnection conn) {
+		long retryAfter = DownloadFailedException.getRetryAfter(conn);
+		if (retryAfter <= 0)
+			return;
+		retryAfter = Math.min(retryAfter, MAX_RETRY_AFTER);
+		HostState hostState = HostConcurrencyControl.getInstance().getHostState(conn.getURL().getHost());
+		hostState.blockUntil(System.currentTimeMillis() + retryAfter);
+	}
+
+	protected static void releaseHostSlot(HostState hostState, long requestStart, boolean congested) {
+		if (hostState != null)
+			hostState.release(System.currentTimeMillis() - requestStart, congested);
+	}
+
+	/**
+	 * @param code
+	 *            HTTP response code
+	 * @return <code>true</code> if the server signals that it is overloaded or that we are sending too many requests
+	 */
+	protected static boolean isCongestionResponse(int code) {
+		return (code == HTTP_TOO_MANY_REQUESTS) || (code == HttpURLConnection.HTTP_UNAVAILABLE);
+	}
+
 	/**
 	 * Reads all available data from the input stream of <code>conn</code> and returns it as byte array. If no input
 	 * data is available the method returns <code>null</code>.
@@ -299,68 +512,71 @@ public class TileDownLoader {
 	 * @throws IOException
 	 */
 	protected static byte[] loadBodyDataInBuffer(HttpURLConnection conn) throws IOException {
-		InputStream input = conn.getInputStream();
+		int code = conn.getResponseCode();
+		InputStream input = null;
 		byte[] data = null;
 		try {
+			input = conn.getInputStream();
 			if (Thread.currentThread() instanceof MapSourceListener) {
 				// We only throttle atlas downloads, not downloads for the preview map
 				long bandwidthLimit = Settings.getInstance().getBandwidthLimit();
-				if (bandwidthLimit > 0) {
-					input = new ThrottledInputStream(input);
+				HostState hostState = HostConcurrencyControl.getInstance().getHostState(conn.getURL().getHost());
+				TokenBucket hostBandwidth = hostState.getBandwidthLimiter();
+				if (bandwidthLimit > 0 || hostBandwidth != null) {
+					input = new ThrottledInputStream(input, hostBandwidth);
 				}
 			}
 			data = Utilities.getInputBytes(input);
 		} catch (IOException e) {
-			InputStream errorIn = conn.getErrorStream();
-			try {
-				byte[] errData = Utilities.getInputBytes(errorIn);
-				log.trace("Retrieved " + errData.length + " error bytes for a HTTP " + conn.getResponseCode());
-			} catch (Exception ee) {
-				log.debug("Error retrieving error stream content: " + e);
-			} finally {
-				Utilities.closeStream(errorIn);
-			}
+			// Drain the error response so that the connection can be reused
+			int errorBytes = HttpConnectionPool.drain(conn, conn.getErrorStream());
+			log.trace("Retrieved " + errorBytes + " error bytes for a HTTP " + code);
 			throw e;
 		} finally {
 			Utilities.closeStream(input);
 		}
-		log.trace("Retrieved " + data.length + " bytes for a HTTP " + conn.getResponseCode());
+		log.trace("Retrieved " + data.length + " bytes for a HTTP " + code);
 		if (data.length == 0)
 			return null;
 		return data;
 	}
 
 	/**
-	 * Performs a <code>HEAD</code> request for retrieving the <code>LastModified</code> header value.
+	 * Checks the response of a server that ignored the conditional request header against the stored tile.
+	 * 
+	 * @param eTag
+	 *            <code>ETag</code> header value of the response
+	 * @param timeLastModified
+	 *            <code>Last-Modified</code> header value of the response
+	 * @return <code>false</code> if the response header shows that the tile is unchanged
 	 */
-	protected static boolean isTileNewer(TileStoreEntry tile, HttpMapSource mapSource) throws IOException {
-		long oldLastModified = tile.getTimeLastModified();
-		if (oldLastModified <= 0) {
-			log.warn("Tile age comparison not possible: " + "tile in tilestore does not contain lastModified attribute");
+	protected static boolean isTileChanged(TileStoreEntry tile, HttpMapSource.TileUpdate tileUpdate, String eTag,
+			long timeLastModified) {
+		switch (tileUpdate) {
+		case IfNoneMatch:
+		case ETag:
+			if (eTag == null || eTag.length() == 0)
+				return true;
+			return !eTag.equals(tile.geteTag());
+		case IfModifiedSince:
+		case LastModified:
+			if (timeLastModified <= 0)
+				return true;
+			return (timeLastModified > tile.getTimeLastModified());
+		default:
 			return true;
 		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tile.getZoom(), tile.getX(), tile.getY());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		long newLastModified = conn.getLastModified();
-		if (newLastModified == 0)
-			return true;
-		return (newLastModified > oldLastModified);
 	}
 
-	protected static boolean hasTileETag(TileStoreEntry tile, HttpMapSource mapSource) throws IOException {
-		String eTag = tile.geteTag();
-		if (eTag == null || eTag.length() == 0) {
-			log.warn("ETag check not possible: " + "tile in tilestore does not contain ETag attribute");
-			return true;
-		}
-		HttpURLConnection conn = mapSource.getTileUrlConnection(tile.getZoom(), tile.getX(), tile.getY());
-		conn.setRequestMethod("HEAD");
-		conn.setRequestProperty("Accept", ACCEPT);
-		String onlineETag = conn.getHeaderField("ETag");
-		if (onlineETag == null || onlineETag.length() == 0)
-			return true;
-		return (onlineETag.equals(eTag));
+	/**
+	 * Updates only the expiration time of a tile that is unchanged on the server. The tile data is not rewritten by
+	 * the tile store.
+	 */
+	protected static void updateTileExpiry(TileStoreEntry tile, HttpURLConnection conn, HttpMapSource mapSource) {
+		if (!Settings.getInstance().tileStoreEnabled)
+			return;
+		tile.update(conn.getExpiration());
+		TileStore.getInstance().putTile(tile, mapSource);
 	}
 
 	protected static void prepareConnection(HttpURLConnection conn) throws ProtocolException {
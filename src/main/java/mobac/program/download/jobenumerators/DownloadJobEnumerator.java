@@ -36,10 +36,13 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 	final protected DownloadJobListener listener;
 	final protected int xMin;
 	final protected int xMax;
+	final protected int yMin;
 	final protected int yMax;
 	final protected int zoom;
 	final protected MapSource mapSource;
 	final protected TarIndexedArchive tileArchive;
+	final protected boolean columnMajor;
+	final protected SpaceFillingCurve curve;
 
 	protected int x, y;
 	protected Job nextJob;
@@ -55,11 +58,16 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 	 * }
 	 * </pre>
 	 * 
+	 * In case of {@link DownloadJobOrder#COLUMN_MAJOR} the two loops are swapped. For
+	 * {@link DownloadJobOrder#HILBERT} and {@link DownloadJobOrder#Z_ORDER} the tiles are enumerated by a
+	 * {@link SpaceFillingCurve}.
+	 * 
 	 * @param map
 	 * @param tileArchive
+	 * @param order
 	 * @param listener
 	 */
-	public DownloadJobEnumerator(Map map, MapSource mapSource, TarIndexedArchive tileArchive,
+	public DownloadJobEnumerator(Map map, MapSource mapSource, TarIndexedArchive tileArchive, DownloadJobOrder order,
 			DownloadJobListener listener) {
 		this.tileFilter = map.getTileFilter();
 		this.listener = listener;
@@ -68,13 +76,20 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 		int tileSize = map.getMapSource().getMapSpace().getTileSize();
 		this.xMin = minCoord.x / tileSize;
 		this.xMax = maxCoord.x / tileSize;
-		int yMin = minCoord.y / tileSize;
+		this.yMin = minCoord.y / tileSize;
 		this.yMax = maxCoord.y / tileSize;
 		this.zoom = map.getZoom();
 		this.tileArchive = tileArchive;
 		this.mapSource = mapSource;
-		y = yMin;
-		x = xMin;
+		this.columnMajor = (order == DownloadJobOrder.COLUMN_MAJOR);
+		if (order == DownloadJobOrder.HILBERT || order == DownloadJobOrder.Z_ORDER) {
+			curve = new SpaceFillingCurve(order, xMin, yMin, xMax, yMax);
+			nextTile();
+		} else {
+			curve = null;
+			y = yMin;
+			x = xMin;
+		}
 
 		nextJob = new DownloadJob(mapSource, x, y, zoom, tileArchive, listener);
 		if (!tileFilter.testTile(x, y, zoom, mapSource))
@@ -89,18 +104,44 @@ public class DownloadJobEnumerator implements Enumeration<Job> {
 		Job job = nextJob;
 		boolean filter = false;
 		do {
-			x++;
-			if (x > xMax) {
-				y++;
-				x = xMin;
-				if (y > yMax) {
-					nextJob = null;
-					return job;
-				}
+			if (!nextTile()) {
+				nextJob = null;
+				return job;
 			}
 			filter = tileFilter.testTile(x, y, zoom, mapSource);
 		} while (!filter);
 		nextJob = new DownloadJob(mapSource, x, y, zoom, tileArchive, listener);
 		return job;
 	}
+
+	/**
+	 * Advances {@link #x} and {@link #y} to the next tile.
+	 * 
+	 * @return <code>false</code> if there is no next tile
+	 */
+	protected boolean nextTile() {
+		if (curve != null) {
+			if (!curve.next())
+				return false;
+			x = curve.getX();
+			y = curve.getY();
+		} else if (columnMajor) {
+			y++;
+			if (y > yMax) {
+				x++;
+				y = yMin;
+				if (x > xMax)
+					return false;
+			}
+		} else {
+			x++;
+			if (x > xMax) {
+				y++;
+				x = xMin;
+				if (y > yMax)
+					return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.jobenumerators;
+
+/**
+ * Order in which the tiles of a map are enumerated by {@link DownloadJobEnumerator}.
+ */
+public enum DownloadJobOrder {
+
+	/**
+	 * Row by row (y outer loop, x inner loop)
+	 */
+	ROW_MAJOR,
+
+	/**
+	 * Column by column (x outer loop, y inner loop) - the order most atlas creators read the tiles of a map
+	 */
+	COLUMN_MAJOR,
+
+	/**
+	 * Along a Hilbert curve - consecutive tiles are always neighbours
+	 * 
+	 * @see SpaceFillingCurve
+	 */
+	HILBERT,
+
+	/**
+	 * Along a Z-order curve (quadkey order)
+	 * 
+	 * @see SpaceFillingCurve
+	 */
+	Z_ORDER;
+
+}
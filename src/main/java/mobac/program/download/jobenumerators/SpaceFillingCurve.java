@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.download.jobenumerators;
+
+/**
+ * Enumerates the tiles of a rectangle along a space-filling curve ({@link DownloadJobOrder#HILBERT} or
+ * {@link DownloadJobOrder#Z_ORDER}).
+ * <p>
+ * The curve is laid over absolute tile coordinates, starting at tile (0,0). Therefore every aligned block of 2^n x 2^n
+ * tiles (e.g. the 8x8 meta tile of a tile server) is completely enumerated before the next block is started. Curve
+ * sections that lie completely outside of the rectangle are skipped as a whole: the curve indices
+ * <code>[k*4^n, (k+1)*4^n)</code> of both curves map to exactly one aligned block of 2^n x 2^n tiles.
+ * </p>
+ */
+public class SpaceFillingCurve {
+
+	private final boolean hilbert;
+	private final int xMin;
+	private final int yMin;
+	private final int xMax;
+	private final int yMax;
+
+	/**
+	 * The curve covers 2^order x 2^order tiles
+	 */
+	private final int order;
+	private final long length;
+
+	private long index = -1;
+	private int x;
+	private int y;
+
+	/**
+	 * @param curve
+	 *            {@link DownloadJobOrder#HILBERT} or {@link DownloadJobOrder#Z_ORDER}
+	 * @param xMin
+	 * @param yMin
+	 * @param xMax
+	 *            inclusive
+	 * @param yMax
+	 *            inclusive
+	 */
+	public SpaceFillingCurve(DownloadJobOrder curve, int xMin, int yMin, int xMax, int yMax) {
+		if (curve != DownloadJobOrder.HILBERT && curve != DownloadJobOrder.Z_ORDER)
+			throw new IllegalArgumentException("Not a space-filling curve: " + curve);
+		if (xMin < 0 || yMin < 0 || xMax < xMin || yMax < yMin)
+			throw new IllegalArgumentException("Invalid tile range");
+		this.hilbert = (curve == DownloadJobOrder.HILBERT);
+		this.xMin = xMin;
+		this.yMin = yMin;
+		this.xMax = xMax;
+		this.yMax = yMax;
+		this.order = 32 - Integer.numberOfLeadingZeros(Math.max(xMax, yMax));
+		this.length = 1L << (2 * order);
+	}
+
+	/**
+	 * Advances to the next tile of the rectangle.
+	 * 
+	 * @return <code>false</code> if all tiles have been enumerated
+	 */
+	public boolean next() {
+		long d = index + 1;
+		while (d < length) {
+			setPoint(d);
+			if (x >= xMin && x <= xMax && y >= yMin && y <= yMax) {
+				index = d;
+				return true;
+			}
+			// Skip the largest aligned block starting at d that lies completely outside of the rectangle
+			long step = 1;
+			for (int n = 1; n <= order; n++) {
+				long blockLength = 1L << (2 * n);
+				if ((d & (blockLength - 1)) != 0)
+					break;
+				int size = 1 << n;
+				int bx = x & -size;
+				int by = y & -size;
+				if (bx <= xMax && bx + size > xMin && by <= yMax && by + size > yMin)
+					break;
+				step = blockLength;
+			}
+			d += step;
+		}
+		index = length;
+		return false;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * Sets {@link #x} and {@link #y} to the tile at curve index <code>d</code>.
+	 */
+	protected void setPoint(long d) {
+		if (hilbert) {
+			int px = 0;
+			int py = 0;
+			long t = d;
+			for (int s = 1; s < (1 << order); s <<= 1) {
+				int rx = (int) (1 & (t >> 1));
+				int ry = (int) (1 & (t ^ rx));
+				if (ry == 0) {
+					// rotate the quadrant
+					if (rx == 1) {
+						px = s - 1 - px;
+						py = s - 1 - py;
+					}
+					int tmp = px;
+					px = py;
+					py = tmp;
+				}
+				px += s * rx;
+				py += s * ry;
+				t >>= 2;
+			}
+			x = px;
+			y = py;
+		} else {
+			// Z-order: x is stored in the even bits, y in the odd bits of d
+			int px = 0;
+			int py = 0;
+			for (int bit = 0; bit < order; bit++) {
+				px |= (int) ((d >> (2 * bit)) & 1) << bit;
+				py |= (int) ((d >> (2 * bit + 1)) & 1) << bit;
+			}
+			x = px;
+			y = py;
+		}
+	}
+}
@@ -22,8 +22,15 @@ public interface DownloadJobListener {
 	
 	public void jobStarted();
 
-	public void jobFinishedSuccessfully(int bytesDownloaded);
+	public void jobFinishedSuccessfully(int x, int y, int bytesDownloaded);
 
-	public void jobFinishedWithError(boolean retry);
+	/**
+	 * @param x
+	 * @param y
+	 * @param retry
+	 *            <code>true</code> if the job has been rescheduled, <code>false</code> if the download of the tile
+	 *            failed permanently
+	 */
+	public void jobFinishedWithError(int x, int y, boolean retry);
 
 }
@@ -19,6 +19,7 @@ package mobac.program.interfaces;
 import java.util.Enumeration;
 
 import mobac.program.JobDispatcher.Job;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
 import mobac.utilities.tar.TarIndexedArchive;
 
 
@@ -35,12 +36,14 @@ public interface DownloadableElement {
 	/**
 	 * 
 	 * @param tileArchive
+	 * @param order
+	 *            order in which the tiles should be enumerated
 	 * @param listener
 	 * @return An enumeration that returns {@link Job} objects. Each job should
 	 *         download one map tile from the providing web server (or from the
 	 *         tile cache).
 	 */
-	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive,
+	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive, DownloadJobOrder order,
 			DownloadJobListener listener);
 	
 }
@@ -29,6 +29,7 @@ import javax.xml.bind.annotation.XmlTransient;
 import mobac.exceptions.InvalidNameException;
 import mobac.program.JobDispatcher.Job;
 import mobac.program.download.jobenumerators.DownloadJobEnumerator;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
 import mobac.program.interfaces.CapabilityDeletable;
 import mobac.program.interfaces.DownloadJobListener;
 import mobac.program.interfaces.DownloadableElement;
@@ -322,8 +323,9 @@ public class Map implements MapInterface, ToolTipProvider, CapabilityDeletable,
 		calculateRuntimeValues();
 	}
 
-	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive, DownloadJobListener listener) {
-		return new DownloadJobEnumerator(this, mapSource, tileArchive, listener);
+	public Enumeration<Job> getDownloadJobs(TarIndexedArchive tileArchive, DownloadJobOrder order,
+			DownloadJobListener listener) {
+		return new DownloadJobEnumerator(this, mapSource, tileArchive, order, listener);
 	}
 
 	public TileFilter getTileFilter() {
@@ -51,6 +51,8 @@ import mobac.gui.panels.JCoordinatesPanel;
 import mobac.mapsources.MapSourcesManager;
 import mobac.program.DirectoryManager;
 import mobac.program.ProgramInfo;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
+import mobac.program.tilestore.TileStoreType;
 import mobac.utilities.I18nUtils;
 import mobac.utilities.Utilities;
 import mobac.utilities.stream.ThrottledInputStream;
@@ -80,6 +82,36 @@ public class Settings {
 
 	public boolean tileStoreEnabled = true;
 
+	/**
+	 * Storage backend used by the tile store. Changes take effect after a restart. Tiles already downloaded are not
+	 * migrated between the different backends.
+	 */
+	public TileStoreType tileStoreType = TileStoreType.BERKELEYDB;
+
+	/**
+	 * Percentage of the Java heap used as cache shared by all open Berkeley DB tile store databases
+	 */
+	public int tileStoreCachePercent = 50;
+
+	/**
+	 * Max number of Berkeley DB tile store databases kept open at the same time. If another database has to be opened
+	 * the open database with the lowest access score (access count weighted by the time since the last access) is
+	 * closed.
+	 */
+	public int tileStoreMaxOpenDatabases = 12;
+
+	/**
+	 * Max cache memory in MiB used by all open Berkeley DB tile store databases before the database with the lowest
+	 * access score is closed. <code>0</code> means that only {@link #tileStoreCachePercent} limits the cache usage.
+	 */
+	public int tileStoreOpenDatabasesMemoryLimit = 0;
+
+	/**
+	 * Size in MiB of the in-memory cache of recently used tiles in front of the tile store. <code>0</code> disables
+	 * the cache. Changes take effect after a restart.
+	 */
+	public int tileStoreMemoryCacheSize = 32;
+
 	/**
 	 * Mapview related settings
 	 */
@@ -103,6 +135,52 @@ public class Settings {
 	public int downloadThreadCount = 2;
 	public int downloadRetryCount = 1;
 
+	/**
+	 * Adapts the number of parallel atlas downloads per tile server host (AIMD). If enabled
+	 * {@link #downloadThreadCount} is used as initial limit per host which is raised up to
+	 * {@link #adaptiveMaxDownloadThreadCount} as long as the server responds fast and without HTTP 429/503 errors.
+	 */
+	public boolean adaptiveDownloadConcurrency = false;
+	public int adaptiveMaxDownloadThreadCount = 16;
+
+	/**
+	 * Pipelined download-and-build mode: For atlas formats that support it the map creation is started while the
+	 * tiles of the map are still being downloaded.
+	 *
+	 * @see mobac.program.atlascreators.AtlasCreator#supportsPipelinedMapCreation()
+	 */
+	public boolean atlasPipelinedCreation = false;
+
+	/**
+	 * Number of threads used for creating maps in parallel to each other and to the download of the following maps.
+	 * Only used for atlas formats that support it - a value of <code>1</code> disables parallel map creation.
+	 *
+	 * @see mobac.program.atlascreators.AtlasCreator#supportsParallelMapCreation()
+	 */
+	public int atlasParallelMapCreationThreads = 1;
+
+	/**
+	 * Tiles that are present and not expired in the tile store are not copied to the temporary tile archive during
+	 * atlas download. Instead they are read directly from the tile store while creating the map. Disabled by default
+	 * because the map creation fails if such a tile has been removed from the tile store in the meantime.
+	 */
+	public boolean atlasStoreBackedTiles = false;
+
+	/**
+	 * The temporary tile archive of a map is kept together with a journal of the finished tiles if the atlas download
+	 * is aborted or MOBAC crashes. Creating the same atlas again resumes the download of the map, skipping the tiles
+	 * recorded in the journal. The downloaded tiles are deleted if the user does not accept missing tiles of a map.
+	 * Files of aborted downloads that are not resumed within seven days are deleted automatically.
+	 */
+	public boolean atlasResumableDownloads = false;
+
+	/**
+	 * Order in which the tiles of a map are downloaded. {@link DownloadJobOrder#HILBERT} and
+	 * {@link DownloadJobOrder#Z_ORDER} request neighbouring tiles close together which profits from the caches of
+	 * tile servers rendering meta tiles and of proxies. Not used by the pipelined map creation.
+	 */
+	public DownloadJobOrder atlasDownloadOrder = DownloadJobOrder.ROW_MAJOR;
+
 	private boolean customTileProcessing = false;
 	private Dimension tileSize = new Dimension(256, 256);
 	private TileImageFormat tileImageFormat = TileImageFormat.PNG;
@@ -137,6 +215,32 @@ public class Settings {
 	 */
 	public int httpReadTimeout = 10;
 
+	/**
+	 * Size of the connection pool of each tile server host: the maximum number of concurrent requests to a host and of
+	 * keep-alive connections kept open for reuse.
+	 * <p>
+	 * The JRE's keep-alive cache is sized via the system property <code>http.maxConnections</code> which only takes
+	 * effect if it is set before the first HTTP connection is opened. Therefore increasing the value requires a
+	 * restart.
+	 * </p>
+	 * 
+	 * @see mobac.program.download.HttpConnectionPool
+	 */
+	public int httpMaxConnectionsPerHost = 20;
+
+	/**
+	 * Maximum atlas download bandwidth per tile server host in bytes per second, 0 = unlimited. Applies in addition to
+	 * the global bandwidth limit.
+	 */
+	public long hostBandwidthLimit = 0;
+
+	/**
+	 * Maximum number of atlas tile requests per second in total respectively per tile server host, 0 = unlimited.
+	 * Allows to comply with the tile usage policy of a server.
+	 */
+	public double requestRateLimit = 0;
+	public double hostRequestRateLimit = 0;
+
 	/**
 	 * Maximum expiration (in milliseconds) acceptable. If a server sets an expiration time larger than this value it is
 	 * truncated to this value on next download.
@@ -154,6 +258,13 @@ public class Settings {
 	 */
 	public long tileDefaultExpirationTime = TimeUnit.DAYS.toMillis(28);
 
+	/**
+	 * Background maintenance of the tile store while no tiles are downloaded: tiles downloaded longer than
+	 * {@link #tileMaxExpirationTime} ago are deleted and the database files are compacted. Disabled by default as the
+	 * outdated tiles are deleted permanently.
+	 */
+	public boolean tileStoreMaintenanceEnabled = false;
+
 	public String googleLanguage = "en";
 	public String osmHikingTicket = "";
 
@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mobac.program.interfaces.MapSource;
+
+/**
+ * Keeps recently used tiles in memory in front of another {@link TileStore}. The cache is split into
+ * {@link #SHARD_COUNT} independently locked LRU shards, each limited to its part of the configured size in bytes.
+ * Written tiles are removed from the cache after they have been passed to the underlying tile store. The cache keeps
+ * its own copy of each tile and hands out copies, so callers may update the returned entries.
+ */
+public class CachingTileStore extends TileStore {
+
+	private static final int SHARD_COUNT = 16;
+
+	/**
+	 * Estimated memory used by a cache entry in addition to the tile data
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final TileStore tileStore;
+
+	private final Shard[] shards;
+
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	/**
+	 * @param tileStore
+	 *            the tile store holding the tiles
+	 * @param maxCacheBytes
+	 *            max size of all cached tile data
+	 */
+	public CachingTileStore(TileStore tileStore, long maxCacheBytes) {
+		super();
+		this.tileStore = tileStore;
+		shards = new Shard[SHARD_COUNT];
+		for (int i = 0; i < SHARD_COUNT; i++)
+			shards[i] = new Shard(maxCacheBytes / SHARD_COUNT);
+		log.debug("Tile memory cache size: " + maxCacheBytes + " bytes");
+	}
+
+	/**
+	 * @return the tile store behind the cache
+	 */
+	public TileStore getTileStore() {
+		return tileStore;
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @return the estimated memory used by all cached tiles
+	 */
+	public long getCacheBytes() {
+		long bytes = 0;
+		for (Shard shard : shards)
+			bytes += shard.getBytes();
+		return bytes;
+	}
+
+	protected Shard getShard(CacheKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards[(h & 0x7fffffff) % SHARD_COUNT];
+	}
+
+	protected void invalidate(int x, int y, int zoom, MapSource mapSource) {
+		CacheKey key = new CacheKey(mapSource.getName(), x, y, zoom);
+		getShard(key).remove(key);
+	}
+
+	@Override
+	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
+		CacheKey key = new CacheKey(mapSource.getName(), x, y, zoom);
+		Shard shard = getShard(key);
+		TileStoreEntry tile = shard.get(key);
+		if (tile != null) {
+			cacheHits.incrementAndGet();
+			tileStore.cachedTileAccessed(mapSource);
+			return tile.copy();
+		}
+		cacheMisses.incrementAndGet();
+		long version = shard.getVersion();
+		tile = tileStore.getTile(x, y, zoom, mapSource);
+		if (tile != null)
+			shard.put(key, tile.copy(), version);
+		return tile;
+	}
+
+	/**
+	 * Does not add the tile to the cache as the tile data is not loaded.
+	 */
+	@Override
+	public TileStoreEntry getTileMetadata(int x, int y, int zoom, MapSource mapSource) {
+		CacheKey key = new CacheKey(mapSource.getName(), x, y, zoom);
+		TileStoreEntry tile = getShard(key).get(key);
+		if (tile != null) {
+			tileStore.cachedTileAccessed(mapSource);
+			return tile.copy();
+		}
+		return tileStore.getTileMetadata(x, y, zoom, mapSource);
+	}
+
+	@Override
+	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
+		CacheKey key = new CacheKey(mapSource.getName(), x, y, zoom);
+		if (getShard(key).containsKey(key))
+			return true;
+		return tileStore.contains(x, y, zoom, mapSource);
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException {
+		tileStore.putTileData(tileData, x, y, zoom, mapSource);
+		invalidate(x, y, zoom, mapSource);
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource, long timeLastModified,
+			long timeExpires, String eTag) throws IOException {
+		tileStore.putTileData(tileData, x, y, zoom, mapSource, timeLastModified, timeExpires, eTag);
+		invalidate(x, y, zoom, mapSource);
+	}
+
+	@Override
+	public void putTile(TileStoreEntry tile, MapSource mapSource) {
+		tileStore.putTile(tile, mapSource);
+		invalidate(tile.getX(), tile.getY(), tile.getZoom(), mapSource);
+	}
+
+	@Override
+	public void putTiles(Collection<? extends TileStoreEntry> tiles, MapSource mapSource) {
+		tileStore.putTiles(tiles, mapSource);
+		for (TileStoreEntry tile : tiles)
+			invalidate(tile.getX(), tile.getY(), tile.getZoom(), mapSource);
+	}
+
+	/**
+	 * Bulk reads are passed to the underlying tile store and bypass the cache.
+	 */
+	@Override
+	public TileStoreCursor getTiles(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) {
+		return tileStore.getTiles(mapSource, zoom, tileNumMin, tileNumMax);
+	}
+
+	@Override
+	public void prepareTileStore(MapSource mapSource) {
+		tileStore.prepareTileStore(mapSource);
+	}
+
+	@Override
+	public void clearStore(String storeName) {
+		tileStore.clearStore(storeName);
+		for (Shard shard : shards)
+			shard.removeStore(storeName);
+	}
+
+	@Override
+	public String[] getAllStoreNames() {
+		return tileStore.getAllStoreNames();
+	}
+
+	@Override
+	public boolean storeExists(MapSource mapSource) {
+		return tileStore.storeExists(mapSource);
+	}
+
+	@Override
+	public TileStoreInfo getStoreInfo(String mapSourceName) throws InterruptedException {
+		return tileStore.getStoreInfo(mapSourceName);
+	}
+
+	@Override
+	public BufferedImage getCacheCoverage(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		return tileStore.getCacheCoverage(mapSource, zoom, tileNumMin, tileNumMax);
+	}
+
+	@Override
+	public void closeAll() {
+		log.debug("Tile memory cache: " + cacheHits.get() + " hits, " + cacheMisses.get() + " misses");
+		tileStore.closeAll();
+		for (Shard shard : shards)
+			shard.clear();
+	}
+
+	@Override
+	public TileStoreEntry createNewEntry(int x, int y, int zoom, byte[] data, long timeLastModified,
+			long timeExpires, String eTag) {
+		return tileStore.createNewEntry(x, y, zoom, data, timeLastModified, timeExpires, eTag);
+	}
+
+	@Override
+	public TileStoreEntry createNewEmptyEntry(int x, int y, int zoom) {
+		return tileStore.createNewEmptyEntry(x, y, zoom);
+	}
+
+	protected static class CacheKey {
+
+		final String storeName;
+		final int x;
+		final int y;
+		final int zoom;
+
+		public CacheKey(String storeName, int x, int y, int zoom) {
+			this.storeName = storeName;
+			this.x = x;
+			this.y = y;
+			this.zoom = zoom;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * (31 * storeName.hashCode() + zoom) + x) + y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return x == other.x && y == other.y && zoom == other.zoom && storeName.equals(other.storeName);
+		}
+	}
+
+	/**
+	 * LRU map limited by the size of the cached tile data
+	 */
+	protected static class Shard {
+
+		private final long maxBytes;
+
+		private final LinkedHashMap<CacheKey, TileStoreEntry> map;
+
+		private long bytes = 0;
+
+		/**
+		 * Incremented on each removal so that a tile loaded concurrently to a write is not cached
+		 */
+		private long version = 0;
+
+		public Shard(long maxBytes) {
+			this.maxBytes = maxBytes;
+			map = new LinkedHashMap<CacheKey, TileStoreEntry>(64, 0.75f, true);
+		}
+
+		protected static int getSize(TileStoreEntry tile) {
+			byte[] data = tile.getData();
+			return ENTRY_OVERHEAD + ((data != null) ? data.length : 0);
+		}
+
+		public synchronized TileStoreEntry get(CacheKey key) {
+			return map.get(key);
+		}
+
+		public synchronized boolean containsKey(CacheKey key) {
+			return map.containsKey(key);
+		}
+
+		public synchronized long getVersion() {
+			return version;
+		}
+
+		public synchronized long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Adds the tile unless a tile has been removed since <code>loadVersion</code> has been retrieved.
+		 */
+		public synchronized void put(CacheKey key, TileStoreEntry tile, long loadVersion) {
+			if (version != loadVersion)
+				return;
+			int size = getSize(tile);
+			if (size > maxBytes)
+				return;
+			TileStoreEntry old = map.put(key, tile);
+			if (old != null)
+				bytes -= getSize(old);
+			bytes += size;
+			Iterator<TileStoreEntry> it = map.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				bytes -= getSize(it.next());
+				it.remove();
+			}
+		}
+
+		public synchronized void remove(CacheKey key) {
+			version++;
+			TileStoreEntry old = map.remove(key);
+			if (old != null)
+				bytes -= getSize(old);
+		}
+
+		public synchronized void removeStore(String storeName) {
+			version++;
+			Iterator<Map.Entry<CacheKey, TileStoreEntry>> it = map.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<CacheKey, TileStoreEntry> entry = it.next();
+				if (entry.getKey().storeName.equals(storeName)) {
+					bytes -= getSize(entry.getValue());
+					it.remove();
+				}
+			}
+		}
+
+		public synchronized void clear() {
+			version++;
+			map.clear();
+			bytes = 0;
+		}
+	}
+}
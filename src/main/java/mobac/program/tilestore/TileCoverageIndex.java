@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import java.awt.Point;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mobac.utilities.Utilities;
+
+/**
+ * In-memory index of the tiles available in a tile store. For each zoom level the tile space is divided into blocks of
+ * 256 x 256 tiles. Similar to a roaring bitmap each block stores the tiles it contains either as sorted array (sparse
+ * blocks) or as bitmap (dense blocks). The tile count per block forms a coarse coverage level that allows to skip empty
+ * blocks and to fill completely covered blocks without looking at the individual tiles.
+ * <p>
+ * Callers have to mark the index as complete via {@link #setComplete(boolean)} after all tiles of the store have
+ * been added. Until then {@link #contains(int, int, int)} is not meaningful.
+ * </p>
+ */
+public class TileCoverageIndex {
+
+	private static final int FILE_MAGIC = 0x4D434F56; // "MCOV"
+	private static final int FILE_VERSION = 1;
+
+	private static final int BLOCK_BITS = 8;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	private static final int BLOCK_TILES = BLOCK_SIZE * BLOCK_SIZE;
+
+	/**
+	 * Blocks with more tiles than this are stored as bitmap (same threshold as used by roaring bitmaps)
+	 */
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private final Map<Integer, Map<Long, Block>> zoomLevels = new TreeMap<Integer, Map<Long, Block>>();
+
+	private volatile boolean complete = false;
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+
+	/**
+	 * @return <code>true</code> if the tile has not been contained before
+	 */
+	public synchronized boolean add(int x, int y, int zoom) {
+		Map<Long, Block> blocks = zoomLevels.get(zoom);
+		if (blocks == null) {
+			blocks = new HashMap<Long, Block>();
+			zoomLevels.put(zoom, blocks);
+		}
+		Long key = blockKey(x >> BLOCK_BITS, y >> BLOCK_BITS);
+		Block block = blocks.get(key);
+		if (block == null) {
+			block = new Block();
+			blocks.put(key, block);
+		}
+		return block.add(blockOffset(x, y));
+	}
+
+	/**
+	 * @return <code>true</code> if the tile has been contained
+	 */
+	public synchronized boolean remove(int x, int y, int zoom) {
+		Map<Long, Block> blocks = zoomLevels.get(zoom);
+		if (blocks == null)
+			return false;
+		Long key = blockKey(x >> BLOCK_BITS, y >> BLOCK_BITS);
+		Block block = blocks.get(key);
+		if (block == null || !block.remove(blockOffset(x, y)))
+			return false;
+		if (block.count == 0)
+			blocks.remove(key);
+		return true;
+	}
+
+	public synchronized boolean contains(int x, int y, int zoom) {
+		Map<Long, Block> blocks = zoomLevels.get(zoom);
+		if (blocks == null)
+			return false;
+		Block block = blocks.get(blockKey(x >> BLOCK_BITS, y >> BLOCK_BITS));
+		return (block != null) && block.contains(blockOffset(x, y));
+	}
+
+	/**
+	 * @return number of tiles available in the given zoom level
+	 */
+	public synchronized long getTileCount(int zoom) {
+		Map<Long, Block> blocks = zoomLevels.get(zoom);
+		if (blocks == null)
+			return 0;
+		long count = 0;
+		for (Block block : blocks.values())
+			count += block.count;
+		return count;
+	}
+
+	/**
+	 * Sets the sample of each pixel in <code>raster</code> that represents an available tile to <code>1</code>. The
+	 * pixel (0, 0) represents the tile <code>tileNumMin</code>.
+	 */
+	public synchronized void paintCoverage(WritableRaster raster, int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		Map<Long, Block> blocks = zoomLevels.get(zoom);
+		if (blocks == null)
+			return;
+		int bxMin = tileNumMin.x >> BLOCK_BITS;
+		int bxMax = tileNumMax.x >> BLOCK_BITS;
+		int byMin = tileNumMin.y >> BLOCK_BITS;
+		int byMax = tileNumMax.y >> BLOCK_BITS;
+		long regionBlocks = (long) (bxMax - bxMin + 1) * (byMax - byMin + 1);
+		if (regionBlocks > blocks.size()) {
+			for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+				long key = entry.getKey();
+				int bx = (int) (key >> 32);
+				int by = (int) key;
+				if (bx < bxMin || bx > bxMax || by < byMin || by > byMax)
+					continue;
+				entry.getValue().paint(raster, bx, by, tileNumMin, tileNumMax);
+				Utilities.checkForInterruption();
+			}
+		} else {
+			for (int bx = bxMin; bx <= bxMax; bx++) {
+				for (int by = byMin; by <= byMax; by++) {
+					Block block = blocks.get(blockKey(bx, by));
+					if (block != null)
+						block.paint(raster, bx, by, tileNumMin, tileNumMax);
+				}
+				Utilities.checkForInterruption();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		zoomLevels.clear();
+	}
+
+	public synchronized void writeToFile(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(zoomLevels.size());
+			for (Map.Entry<Integer, Map<Long, Block>> zoomLevel : zoomLevels.entrySet()) {
+				out.writeInt(zoomLevel.getKey());
+				Map<Long, Block> blocks = zoomLevel.getValue();
+				out.writeInt(blocks.size());
+				for (Map.Entry<Long, Block> entry : blocks.entrySet()) {
+					out.writeLong(entry.getKey());
+					entry.getValue().write(out);
+				}
+			}
+		} finally {
+			Utilities.closeStream(out);
+		}
+	}
+
+	public synchronized void readFromFile(File file) throws IOException {
+		zoomLevels.clear();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			if (in.readInt() != FILE_MAGIC)
+				throw new IOException("Invalid coverage index file: " + file);
+			int version = in.readInt();
+			if (version != FILE_VERSION)
+				throw new IOException("Unsupported coverage index version " + version + ": " + file);
+			int zoomCount = in.readInt();
+			for (int i = 0; i < zoomCount; i++) {
+				int zoom = in.readInt();
+				int blockCount = in.readInt();
+				Map<Long, Block> blocks = new HashMap<Long, Block>(blockCount * 2);
+				for (int j = 0; j < blockCount; j++) {
+					long key = in.readLong();
+					blocks.put(key, Block.read(in));
+				}
+				zoomLevels.put(zoom, blocks);
+			}
+		} catch (IOException e) {
+			zoomLevels.clear();
+			throw e;
+		} finally {
+			Utilities.closeStream(in);
+		}
+	}
+
+	private static long blockKey(int bx, int by) {
+		return ((long) bx << 32) | (by & 0xFFFFFFFFL);
+	}
+
+	private static int blockOffset(int x, int y) {
+		return ((y & BLOCK_MASK) << BLOCK_BITS) | (x & BLOCK_MASK);
+	}
+
+	/**
+	 * The tiles of one 256 x 256 block. The tile offset inside the block is <code>(y &lt;&lt; 8) | x</code>.
+	 */
+	private static class Block {
+
+		/**
+		 * Sorted tile offsets as long as the block is sparse, otherwise <code>null</code>
+		 */
+		char[] values = new char[4];
+
+		/**
+		 * One bit per tile offset for dense blocks, otherwise <code>null</code>
+		 */
+		long[] bitmap = null;
+
+		int count = 0;
+
+		boolean add(int offset) {
+			if (bitmap != null) {
+				long mask = 1L << offset;
+				int index = offset >>> 6;
+				if ((bitmap[index] & mask) != 0)
+					return false;
+				bitmap[index] |= mask;
+				count++;
+				return true;
+			}
+			int pos = binarySearch(offset);
+			if (pos >= 0)
+				return false;
+			pos = -pos - 1;
+			if (count == MAX_ARRAY_SIZE) {
+				convertToBitmap();
+				return add(offset);
+			}
+			if (count == values.length) {
+				char[] newValues = new char[Math.min(count * 2, MAX_ARRAY_SIZE)];
+				System.arraycopy(values, 0, newValues, 0, count);
+				values = newValues;
+			}
+			System.arraycopy(values, pos, values, pos + 1, count - pos);
+			values[pos] = (char) offset;
+			count++;
+			return true;
+		}
+
+		/**
+		 * Dense blocks are not converted back to arrays when tiles are removed.
+		 */
+		boolean remove(int offset) {
+			if (bitmap != null) {
+				long mask = 1L << offset;
+				int index = offset >>> 6;
+				if ((bitmap[index] & mask) == 0)
+					return false;
+				bitmap[index] &= ~mask;
+				count--;
+				return true;
+			}
+			int pos = binarySearch(offset);
+			if (pos < 0)
+				return false;
+			System.arraycopy(values, pos + 1, values, pos, count - pos - 1);
+			count--;
+			return true;
+		}
+
+		boolean contains(int offset) {
+			if (bitmap != null)
+				return (bitmap[offset >>> 6] & (1L << offset)) != 0;
+			return binarySearch(offset) >= 0;
+		}
+
+		private int binarySearch(int offset) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = values[mid];
+				if (value < offset)
+					low = mid + 1;
+				else if (value > offset)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+
+		private void convertToBitmap() {
+			bitmap = new long[BLOCK_TILES / 64];
+			for (int i = 0; i < count; i++) {
+				int offset = values[i];
+				bitmap[offset >>> 6] |= 1L << offset;
+			}
+			values = null;
+		}
+
+		void paint(WritableRaster raster, int bx, int by, Point tileNumMin, Point tileNumMax) {
+			int blockX = bx << BLOCK_BITS;
+			int blockY = by << BLOCK_BITS;
+			if (count == BLOCK_TILES) {
+				// Completely covered block
+				int xMin = Math.max(blockX, tileNumMin.x);
+				int xMax = Math.min(blockX + BLOCK_MASK, tileNumMax.x);
+				int yMin = Math.max(blockY, tileNumMin.y);
+				int yMax = Math.min(blockY + BLOCK_MASK, tileNumMax.y);
+				for (int y = yMin; y <= yMax; y++)
+					for (int x = xMin; x <= xMax; x++)
+						raster.setSample(x - tileNumMin.x, y - tileNumMin.y, 0, 1);
+				return;
+			}
+			if (bitmap != null) {
+				for (int index = 0; index < bitmap.length; index++) {
+					long word = bitmap[index];
+					while (word != 0) {
+						int bit = Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+						paintTile(raster, blockX, blockY, (index << 6) | bit, tileNumMin, tileNumMax);
+					}
+				}
+			} else {
+				for (int i = 0; i < count; i++)
+					paintTile(raster, blockX, blockY, values[i], tileNumMin, tileNumMax);
+			}
+		}
+
+		private static void paintTile(WritableRaster raster, int blockX, int blockY, int offset, Point tileNumMin,
+				Point tileNumMax) {
+			int x = blockX | (offset & BLOCK_MASK);
+			int y = blockY | (offset >>> BLOCK_BITS);
+			if (x < tileNumMin.x || x > tileNumMax.x || y < tileNumMin.y || y > tileNumMax.y)
+				return;
+			raster.setSample(x - tileNumMin.x, y - tileNumMin.y, 0, 1);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			if (bitmap != null) {
+				out.writeBoolean(true);
+				for (long word : bitmap)
+					out.writeLong(word);
+			} else {
+				out.writeBoolean(false);
+				for (int i = 0; i < count; i++)
+					out.writeChar(values[i]);
+			}
+		}
+
+		static Block read(DataInputStream in) throws IOException {
+			Block block = new Block();
+			block.count = in.readInt();
+			if (in.readBoolean()) {
+				block.values = null;
+				block.bitmap = new long[BLOCK_TILES / 64];
+				for (int i = 0; i < block.bitmap.length; i++)
+					block.bitmap[i] = in.readLong();
+			} else {
+				block.values = new char[Math.max(block.count, 4)];
+				for (int i = 0; i < block.count; i++)
+					block.values[i] = in.readChar();
+			}
+			return block;
+		}
+	}
+}
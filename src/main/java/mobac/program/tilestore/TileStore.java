@@ -18,8 +18,13 @@ package mobac.program.tilestore;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collection;
 
 import javax.swing.JOptionPane;
 
@@ -27,8 +32,9 @@ import mobac.exceptions.TileStoreException;
 import mobac.program.DirectoryManager;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.Settings;
-import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
 import mobac.utilities.I18nUtils;
+import mobac.utilities.Utilities;
+import mobac.utilities.jdbc.SQLiteLoader;
 
 import org.apache.log4j.Logger;
 
@@ -40,11 +46,25 @@ public abstract class TileStore {
 
 	protected File tileStoreDir;
 
+	protected FileLock tileStoreLock = null;
+
 	public static synchronized void initialize() {
 		if (INSTANCE != null)
 			return;
 		try {
-			INSTANCE = new BerkeleyDbTileStore();
+			TileStoreType type = Settings.getInstance().tileStoreType;
+			if (type == null)
+				type = TileStoreType.BERKELEYDB;
+			if (type == TileStoreType.SQLITE && !SQLiteLoader.loadSQLiteOrShowError()) {
+				Logger.getLogger(TileStore.class).error(
+						"SQLite tile store not available - falling back to " + TileStoreType.BERKELEYDB);
+				type = TileStoreType.BERKELEYDB;
+			}
+			TileStore tileStore = type.createTileStore();
+			int memoryCacheSize = Settings.getInstance().tileStoreMemoryCacheSize;
+			if (memoryCacheSize > 0)
+				tileStore = new CachingTileStore(tileStore, memoryCacheSize * 1024L * 1024L);
+			INSTANCE = tileStore;
 		} catch (TileStoreException e) {
 			String errMsg = I18nUtils.localizedStringForKey("msg_tile_store_access_conflict");
 			JOptionPane.showMessageDialog(null, errMsg,
@@ -67,6 +87,72 @@ public abstract class TileStore {
 		log.debug("Tile store path: " + tileStoreDir);
 	}
 
+	/**
+	 * Locks the tile store directory so that it can not be used by a second running instance.
+	 * 
+	 * @throws TileStoreException
+	 *             if the lock is held by another process
+	 */
+	protected void acquireTileStoreLock() throws TileStoreException {
+		try {
+			// Get a file channel for the file
+			File file = new File(tileStoreDir, "lock");
+			if (!tileStoreDir.isDirectory())
+				try {
+					Utilities.mkDirs(tileStoreDir);
+				} catch (IOException e) {
+					throw new TileStoreException("Unable to create tile store directory: \"" + tileStoreDir.getPath()
+							+ "\"");
+				}
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+			// Try acquiring the lock without blocking. This method returns
+			// null or throws an exception if the file is already locked.
+			tileStoreLock = channel.tryLock();
+			if (tileStoreLock == null)
+				throw new TileStoreException("Unable to obtain tile store lock - "
+						+ "another instance of Mobile Atlas Creator is running!");
+		} catch (Exception e) {
+			log.error("", e);
+			throw new TileStoreException(e.getMessage(), e.getCause());
+		}
+	}
+
+	protected void releaseTileStoreLock() {
+		if (tileStoreLock == null)
+			return;
+		try {
+			tileStoreLock.release();
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+
+	/**
+	 * Creates the two color image used by {@link #getCacheCoverage(MapSource, int, Point, Point)}. Pixel value
+	 * <code>1</code> marks a tile available in the store.
+	 * 
+	 * @param tileNumMin
+	 * @param tileNumMax
+	 * @return the image or <code>null</code> if there is not enough memory for creating it
+	 */
+	protected BufferedImage createCoverageImage(Point tileNumMin, Point tileNumMax) {
+		int width = tileNumMax.x - tileNumMin.x + 1;
+		int height = tileNumMax.y - tileNumMin.y + 1;
+		byte ff = (byte) 0xFF;
+		byte[] colors = new byte[] { 120, 120, 120, 120, // alpha-gray
+				10, ff, 0, 120 // alpha-green
+		};
+		IndexColorModel colorModel = new IndexColorModel(2, 2, colors, 0, true);
+		try {
+			return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+		} catch (Throwable e) {
+			log.error("Failed to create coverage image: " + e.toString());
+			System.gc();
+			return null;
+		}
+	}
+
 	public abstract void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException;
 
 	public abstract void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource,
@@ -82,6 +168,29 @@ public abstract class TileStore {
 	 */
 	public abstract TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource);
 
+	/**
+	 * Returns the tile for checking its download and expiration time only. Tile stores that can read these values
+	 * without the tile data override this method - the data of the returned entry may then be <code>null</code>.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param zoom
+	 * @param mapSource
+	 * @return the tile or <code>null</code> if it is not present in the tile store
+	 */
+	public TileStoreEntry getTileMetadata(int x, int y, int zoom, MapSource mapSource) {
+		return getTile(x, y, zoom, mapSource);
+	}
+
+	/**
+	 * Called by {@link CachingTileStore} when a tile of this store has been served from the memory cache, so that the
+	 * store can account the access like a read of its own.
+	 * 
+	 * @param mapSource
+	 */
+	protected void cachedTileAccessed(MapSource mapSource) {
+	}
+
 	public abstract boolean contains(int x, int y, int zoom, MapSource mapSource);
 
 	public abstract void prepareTileStore(MapSource mapSource);
@@ -122,6 +231,34 @@ public abstract class TileStore {
 
 	public abstract void putTile(TileStoreEntry tile, MapSource mapSource);
 
+	/**
+	 * Writes several tiles at once. Implementations may write them within one operation which is much faster than
+	 * writing the tiles one by one.
+	 * 
+	 * @param tiles
+	 * @param mapSource
+	 */
+	public void putTiles(Collection<? extends TileStoreEntry> tiles, MapSource mapSource) {
+		for (TileStoreEntry tile : tiles)
+			putTile(tile, mapSource);
+	}
+
+	/**
+	 * Returns a cursor over all tiles stored for the specified region. The default implementation looks up each tile
+	 * of the region separately. Implementations should override it with a sequential scan of the region.
+	 * 
+	 * @param mapSource
+	 * @param zoom
+	 * @param tileNumMin
+	 *            top left tile of the region (inclusive)
+	 * @param tileNumMax
+	 *            bottom right tile of the region (inclusive)
+	 * @return cursor that has to be closed after use
+	 */
+	public TileStoreCursor getTiles(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) {
+		return new TileLookupCursor(mapSource, zoom, tileNumMin, tileNumMax);
+	}
+
 	public abstract TileStoreEntry createNewEntry(int x, int y, int zoom, byte[] data, long timeLastModified,
 			long timeExpires, String eTag);
 
@@ -134,4 +271,47 @@ public abstract class TileStore {
 	 * @return
 	 */
 	public abstract TileStoreEntry createNewEmptyEntry(int x, int y, int zoom);
+
+	/**
+	 * {@link TileStoreCursor} that uses {@link TileStore#getTile(int, int, int, MapSource)} for each tile of the
+	 * region.
+	 */
+	protected class TileLookupCursor implements TileStoreCursor {
+
+		private final MapSource mapSource;
+		private final int zoom;
+		private final Point tileNumMin;
+		private final Point tileNumMax;
+
+		private int x;
+		private int y;
+
+		public TileLookupCursor(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) {
+			this.mapSource = mapSource;
+			this.zoom = zoom;
+			this.tileNumMin = new Point(tileNumMin);
+			this.tileNumMax = new Point(tileNumMax);
+			x = tileNumMin.x;
+			y = tileNumMin.y;
+		}
+
+		public TileStoreEntry next() throws InterruptedException {
+			while (x <= tileNumMax.x) {
+				Utilities.checkForInterruption();
+				TileStoreEntry tile = null;
+				if (y <= tileNumMax.y)
+					tile = getTile(x, y++, zoom, mapSource);
+				if (y > tileNumMax.y) {
+					x++;
+					y = tileNumMin.y;
+				}
+				if (tile != null)
+					return tile;
+			}
+			return null;
+		}
+
+		public void close() {
+		}
+	}
 }
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import java.awt.Point;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.interfaces.MapSource;
+
+/**
+ * Sequential access to the tiles of a rectangular region of one zoom level returned by
+ * {@link TileStore#getTiles(MapSource, int, Point, Point)}. The tiles are returned ordered by x and then by y
+ * (column by column). Tiles missing in the store are skipped.
+ */
+public interface TileStoreCursor {
+
+	/**
+	 * @return the next tile or <code>null</code> if all tiles of the region have been returned
+	 * @throws InterruptedException
+	 * @throws TileStoreException
+	 *             if reading from the tile store failed - the remaining tiles of the region are unknown
+	 */
+	public TileStoreEntry next() throws InterruptedException, TileStoreException;
+
+	/**
+	 * Releases all resources held by the cursor. Has to be called even if not all tiles have been retrieved.
+	 */
+	public void close();
+
+}
@@ -41,6 +41,15 @@ public interface TileStoreEntry {
 	public long getTimeDownloaded();
 
 	public void update(long timeExpires);
+
+	/**
+	 * Creates an independent copy of this entry of the same type. Tile stores that keep entries in memory use it so
+	 * that callers can not modify the kept entry via {@link #update(long)}. The tile data array is shared as it is
+	 * never modified.
+	 * 
+	 * @return the copy
+	 */
+	public TileStoreEntry copy();
 	
 	/**
 	 * 
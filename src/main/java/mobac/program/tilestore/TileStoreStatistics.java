@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import mobac.utilities.Utilities;
+
+/**
+ * Number of tiles and the total size of their data in one tile store. The values are updated incrementally on each
+ * tile write, therefore {@link TileStore#getStoreInfo(String)} does not need to scan the store.
+ */
+public class TileStoreStatistics {
+
+	private static final String KEY_TILE_COUNT = "tileCount";
+	private static final String KEY_DATA_SIZE = "dataSize";
+
+	private long tileCount = 0;
+	private long dataSize = 0;
+
+	private volatile boolean complete = false;
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+
+	/**
+	 * @param oldDataSize
+	 *            data size of the replaced tile or <code>-1</code> if the tile was not present before
+	 * @param newDataSize
+	 *            data size of the written tile
+	 */
+	public synchronized void tileWritten(int oldDataSize, int newDataSize) {
+		if (oldDataSize < 0)
+			tileCount++;
+		else
+			dataSize -= oldDataSize;
+		dataSize += newDataSize;
+	}
+
+	public synchronized void tileRemoved(int dataSize) {
+		tileCount--;
+		this.dataSize -= dataSize;
+	}
+
+	public synchronized void reset() {
+		tileCount = 0;
+		dataSize = 0;
+	}
+
+	public synchronized long getTileCount() {
+		return tileCount;
+	}
+
+	public synchronized long getDataSize() {
+		return dataSize;
+	}
+
+	public synchronized TileStoreInfo getStoreInfo() {
+		return new TileStoreInfo(dataSize, (int) Math.min(tileCount, Integer.MAX_VALUE));
+	}
+
+	public synchronized void writeToFile(File file) throws IOException {
+		Properties p = new Properties();
+		p.setProperty(KEY_TILE_COUNT, Long.toString(tileCount));
+		p.setProperty(KEY_DATA_SIZE, Long.toString(dataSize));
+		OutputStream out = new FileOutputStream(file);
+		try {
+			p.store(out, "Tile store statistics");
+		} finally {
+			Utilities.closeStream(out);
+		}
+	}
+
+	public synchronized void readFromFile(File file) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			Utilities.closeStream(in);
+		}
+		try {
+			tileCount = Long.parseLong(p.getProperty(KEY_TILE_COUNT));
+			dataSize = Long.parseLong(p.getProperty(KEY_DATA_SIZE));
+		} catch (NumberFormatException e) {
+			reset();
+			throw new IOException("Invalid tile store statistics file: " + file);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
+import mobac.program.tilestore.files.FileTileStore;
+import mobac.program.tilestore.sqlite.SQLiteTileStore;
+
+/**
+ * The available {@link TileStore} implementations. The implementation used is selected via
+ * {@link mobac.program.model.Settings#tileStoreType}.
+ */
+public enum TileStoreType {
+
+	/**
+	 * One Berkeley DB Java Edition environment per map source (directory <code>db-&lt;name&gt;</code>)
+	 */
+	BERKELEYDB {
+		@Override
+		public TileStore createTileStore() throws TileStoreException {
+			return new BerkeleyDbTileStore();
+		}
+	},
+
+	/**
+	 * One MBTiles compatible SQLite database per map source (file <code>sqlite-&lt;name&gt;.mbtiles</code>)
+	 */
+	SQLITE {
+		@Override
+		public TileStore createTileStore() throws TileStoreException {
+			return new SQLiteTileStore();
+		}
+	},
+
+	/**
+	 * Content addressed tile files in a sharded directory tree per map source (directory
+	 * <code>files-&lt;name&gt;</code>)
+	 */
+	FILES {
+		@Override
+		public TileStore createTileStore() throws TileStoreException {
+			return new FileTileStore();
+		}
+	};
+
+	public abstract TileStore createTileStore() throws TileStoreException;
+
+}
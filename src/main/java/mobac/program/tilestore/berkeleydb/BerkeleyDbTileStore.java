@@ -18,26 +18,31 @@ package mobac.program.tilestore.berkeleydb;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mobac.exceptions.TileStoreException;
 import mobac.program.interfaces.MapSource;
 import mobac.program.model.Settings;
+import mobac.program.tilestore.TileCoverageIndex;
 import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
 import mobac.program.tilestore.TileStoreEntry;
 import mobac.program.tilestore.TileStoreInfo;
+import mobac.program.tilestore.TileStoreStatistics;
 import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
 import mobac.utilities.GUIExceptionHandler;
 import mobac.utilities.Utilities;
@@ -45,10 +50,15 @@ import mobac.utilities.file.DeleteFileFilter;
 import mobac.utilities.file.DirInfoFileFilter;
 import mobac.utilities.file.DirectoryFileFilter;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.EnvironmentLockedException;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
 import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
@@ -62,18 +72,60 @@ import com.sleepycat.persist.evolve.Renamer;
 public class BerkeleyDbTileStore extends TileStore {
 
 	/**
-	 * Max count of tile stores opened
+	 * Max count of tiles waiting in the write queue of a tile database
+	 */
+	private static final int WRITE_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Max count of tiles written by the writer thread in one go
+	 */
+	private static final int WRITE_BATCH_SIZE = 64;
+
+	/**
+	 * Special entry that signals the writer thread to terminate
+	 */
+	private static final TileDbEntry WRITER_STOP_MARKER = new TileDbEntry();
+
+	/**
+	 * File in the database directory the coverage index is saved to while the database is closed
 	 */
-	private static final int MAX_CONCURRENT_ENVIRONMENTS = 5;
+	private static final String COVERAGE_INDEX_FILENAME = "coverage.idx";
+
+	/**
+	 * File in the database directory the tile store statistics are saved to while the database is closed
+	 */
+	private static final String STATISTICS_FILENAME = "statistics.properties";
+
+	/**
+	 * Maximum number of tiles a {@link TileRangeCursor} reads with one database cursor
+	 */
+	private static final int RANGE_CURSOR_CHUNK_SIZE = 256;
 
 	private EnvironmentConfig envConfig;
 
 	private Map<String, TileDatabase> tileDbMap;
 
-	private FileLock tileStoreLock = null;
-
 	private Mutations mutations;
 
+	/**
+	 * Time of the last tile read or write, used for detecting idle phases for the {@link TileStoreSweeper}
+	 */
+	private volatile long lastAccessTime = 0;
+
+	private TileStoreSweeper sweeper = null;
+
+	/**
+	 * Number of database requests served by an already open database
+	 */
+	private final AtomicLong databaseHits = new AtomicLong();
+
+	/**
+	 * Number of database requests that required opening the database
+	 */
+	private final AtomicLong databaseMisses = new AtomicLong();
+
+	private final AtomicLong databaseEvictions = new AtomicLong();
+
 	public BerkeleyDbTileStore() throws TileStoreException {
 		super();
 		acquireTileStoreLock();
@@ -85,7 +137,8 @@ public class BerkeleyDbTileStore extends TileStore {
 		envConfig.setExceptionListener(GUIExceptionHandler.getInstance());
 		envConfig.setAllowCreate(true);
 		envConfig.setSharedCache(true);
-		envConfig.setCachePercent(50);
+		int cachePercent = Settings.getInstance().tileStoreCachePercent;
+		envConfig.setCachePercent(Math.max(1, Math.min(90, cachePercent)));
 
 		mutations = new Mutations();
 
@@ -103,40 +156,17 @@ public class BerkeleyDbTileStore extends TileStore {
 		// for (Renamer r : mutations.getRenamers())
 		// log.debug(r.toString());
 		Runtime.getRuntime().addShutdownHook(new ShutdownThread(true));
+		if (Settings.getInstance().tileStoreMaintenanceEnabled) {
+			sweeper = new TileStoreSweeper(this);
+			sweeper.start();
+		}
 	}
 
-	protected void acquireTileStoreLock() throws TileStoreException {
-		try {
-			// Get a file channel for the file
-			File file = new File(tileStoreDir, "lock");
-			if (!tileStoreDir.isDirectory())
-				try {
-					Utilities.mkDirs(tileStoreDir);
-				} catch (IOException e) {
-					throw new TileStoreException("Unable to create tile store directory: \"" + tileStoreDir.getPath()
-							+ "\"");
-				}
-			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
-
-			// Use the file channel to create a lock on the file.
-			// This method blocks until it can retrieve the lock.
-
-			// Try acquiring the lock without blocking. This method returns
-			// null or throws an exception if the file is already locked.
-			tileStoreLock = channel.tryLock();
-			if (tileStoreLock == null)
-				throw new TileStoreException("Unable to obtain tile store lock - "
-						+ "another instance of Mobile Atlas Creator is running!");
-
-			// // Release the lock
-			// lock.release();
-			//
-			// // Close the file
-			// channel.close();
-		} catch (Exception e) {
-			log.error("", e);
-			throw new TileStoreException(e.getMessage(), e.getCause());
-		}
+	/**
+	 * @return <code>true</code> if no tile has been read or written for the specified time
+	 */
+	boolean isIdle(long idleTime) {
+		return System.currentTimeMillis() - lastAccessTime > idleTime;
 	}
 
 	@Override
@@ -154,69 +184,121 @@ public class BerkeleyDbTileStore extends TileStore {
 	}
 
 	private TileDatabase getTileDatabase(MapSource mapSource) throws DatabaseException {
+		return getTileDatabase(mapSource.getName());
+	}
+
+	TileDatabase getTileDatabase(String storeName) throws DatabaseException {
 		TileDatabase db;
 		if (tileDbMap == null)
 			// Tile store has been closed already
 			return null;
-		String storeName = mapSource.getName();
 		if (storeName == null)
 			return null;
+		lastAccessTime = System.currentTimeMillis();
 		synchronized (tileDbMap) {
 			db = tileDbMap.get(storeName);
 		}
-		if (db != null)
+		if (db != null) {
+			databaseHits.incrementAndGet();
+			db.accessed();
 			return db;
+		}
 		try {
 			synchronized (tileDbMap) {
-				cleanupDatabases();
 				db = tileDbMap.get(storeName);
 				if (db == null) {
+					databaseMisses.incrementAndGet();
+					cleanupDatabases();
 					db = new TileDatabase(storeName);
-					db.lastAccess = System.currentTimeMillis();
-					tileDbMap.put(mapSource.getName(), db);
+					tileDbMap.put(storeName, db);
 				}
+				db.accessed();
 				return db;
 			}
 		} catch (Exception e) {
-			log.error("Error creating tile store db \"" + mapSource.getName() + "\"", e);
+			log.error("Error creating tile store db \"" + storeName + "\"", e);
 			throw new TileStoreException(e);
 		}
 	}
 
-	private TileDatabase getTileDatabase(String storeName) throws DatabaseException {
-		TileDatabase db;
+	/**
+	 * Returns the database of the specified store only if it is currently open. Unlike
+	 * {@link #getTileDatabase(String)} this neither counts as tile store access nor affects which databases are closed
+	 * by {@link #cleanupDatabases()}.
+	 * 
+	 * @return the open database or <code>null</code>
+	 */
+	TileDatabase getOpenTileDatabase(String storeName) {
 		if (tileDbMap == null)
-			// Tile store has been closed already
-			return null;
-		if (storeName == null)
 			return null;
 		synchronized (tileDbMap) {
-			db = tileDbMap.get(storeName);
+			return tileDbMap.get(storeName);
 		}
+	}
+
+	/**
+	 * Tiles served from the memory cache keep the idle time and the database usage statistics current, but do not
+	 * reopen a database that has been closed meanwhile.
+	 */
+	@Override
+	protected void cachedTileAccessed(MapSource mapSource) {
+		lastAccessTime = System.currentTimeMillis();
+		TileDatabase db = getOpenTileDatabase(mapSource.getName());
 		if (db != null)
-			return db;
-		try {
-			synchronized (tileDbMap) {
-				cleanupDatabases();
-				db = tileDbMap.get(storeName);
-				if (db == null) {
-					db = new TileDatabase(storeName);
-					db.lastAccess = System.currentTimeMillis();
-					tileDbMap.put(storeName, db);
-				}
-				return db;
-			}
-		} catch (Exception e) {
-			log.error("Error creating tile store db \"" + storeName + "\"", e);
-			throw new TileStoreException(e);
+			db.accessed();
+	}
+
+	/**
+	 * @return names of the stores whose databases are currently open
+	 */
+	String[] getOpenStoreNames() {
+		if (tileDbMap == null)
+			return new String[0];
+		synchronized (tileDbMap) {
+			return tileDbMap.keySet().toArray(new String[tileDbMap.size()]);
 		}
 	}
 
+	/**
+	 * Returns the statistics of the specified store. For a closed database the statistics are read from the file saved
+	 * when it has been closed. Only if that file is missing the database has to be opened and scanned.
+	 */
 	@Override
 	public TileStoreInfo getStoreInfo(String storeName) throws InterruptedException {
-		int tileCount = getNrOfTiles(storeName);
-		long storeSize = getStoreSize(storeName);
-		return new TileStoreInfo(storeSize, tileCount);
+		File storeDir = getStoreDir(storeName);
+		if (!storeDir.isDirectory())
+			return new TileStoreInfo(0, 0);
+		TileDatabase db = null;
+		if (tileDbMap != null) {
+			synchronized (tileDbMap) {
+				db = tileDbMap.get(storeName);
+			}
+		}
+		boolean openedForStatistics = false;
+		try {
+			if (db == null) {
+				File statisticsFile = new File(storeDir, STATISTICS_FILENAME);
+				if (statisticsFile.isFile()) {
+					TileStoreStatistics statistics = new TileStoreStatistics();
+					try {
+						statistics.readFromFile(statisticsFile);
+						return statistics.getStoreInfo();
+					} catch (IOException e) {
+						log.error("Failed to load statistics of tile store \"" + storeName + "\": " + e.getMessage());
+					}
+				}
+				db = getTileDatabase(storeName);
+				openedForStatistics = true;
+			}
+			db.ensureStatistics();
+			return db.statistics.getStoreInfo();
+		} catch (DatabaseException e) {
+			log.error("", e);
+			return new TileStoreInfo(getStoreSize(storeName), -1);
+		} finally {
+			if (openedForStatistics && db != null)
+				db.close();
+		}
 	}
 
 	@Override
@@ -257,6 +339,41 @@ public class BerkeleyDbTileStore extends TileStore {
 		}
 	}
 
+	/**
+	 * Writes all tiles directly within one acquisition of the write lock, bypassing the write queue.
+	 */
+	@Override
+	public void putTiles(Collection<? extends TileStoreEntry> tiles, MapSource mapSource) {
+		TileDatabase db = null;
+		try {
+			List<TileDbEntry> dbTiles = new ArrayList<TileDbEntry>(tiles.size());
+			for (TileStoreEntry tile : tiles) {
+				if (tile instanceof TileDbEntry)
+					dbTiles.add((TileDbEntry) tile);
+				else
+					dbTiles.add(new TileDbEntry(tile.getX(), tile.getY(), tile.getZoom(), tile.getData(), tile
+							.getTimeLastModified(), tile.getTimeExpires(), tile.geteTag()));
+			}
+			if (log.isTraceEnabled())
+				log.trace("Saving " + dbTiles.size() + " tiles to " + mapSource.getName());
+			db = getTileDatabase(mapSource);
+			if (db != null)
+				db.putAll(dbTiles);
+		} catch (Exception e) {
+			if (db != null)
+				db.close();
+			log.error("Faild to write tiles to tile store \"" + mapSource.getName() + "\"", e);
+		}
+	}
+
+	/**
+	 * Returns a cursor that reads the region column by column in the order of {@link TileDbKey}.
+	 */
+	@Override
+	public TileStoreCursor getTiles(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax) {
+		return new TileRangeCursor(mapSource.getName(), zoom, tileNumMin, tileNumMax);
+	}
+
 	@Override
 	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
 		TileDatabase db = null;
@@ -280,9 +397,28 @@ public class BerkeleyDbTileStore extends TileStore {
 		}
 	}
 
+	@Override
+	public TileStoreEntry getTileMetadata(int x, int y, int zoom, MapSource mapSource) {
+		TileDatabase db = null;
+		try {
+			db = getTileDatabase(mapSource);
+			if (db == null)
+				return null;
+			return db.getMetadata(new TileDbKey(x, y, zoom));
+		} catch (Exception e) {
+			if (db != null)
+				db.close();
+			log.error("failed to retrieve tile from tile store \"" + mapSource.getName() + "\"", e);
+			return null;
+		}
+	}
+
 	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
 		try {
-			return getTileDatabase(mapSource).contains(new TileDbKey(x, y, zoom));
+			TileDatabase db = getTileDatabase(mapSource);
+			if (db == null)
+				return false;
+			return db.contains(new TileDbKey(x, y, zoom));
 		} catch (DatabaseException e) {
 			log.error("", e);
 			return false;
@@ -316,6 +452,7 @@ public class BerkeleyDbTileStore extends TileStore {
 
 	/**
 	 * This method returns the amount of tiles in the store of tiles which is specified by the {@link MapSource} object.
+	 * The value is taken from the tile store statistics - see {@link #getStoreInfo(String)}.
 	 * 
 	 * @param mapSourceName
 	 *            the store to calculate number of tiles in
@@ -323,18 +460,7 @@ public class BerkeleyDbTileStore extends TileStore {
 	 * @throws InterruptedException
 	 */
 	public int getNrOfTiles(String mapSourceName) throws InterruptedException {
-		try {
-			File storeDir = getStoreDir(mapSourceName);
-			if (!storeDir.isDirectory())
-				return 0;
-			TileDatabase db = getTileDatabase(mapSourceName);
-			int tileCount = (int) db.entryCount();
-			db.close();
-			return tileCount;
-		} catch (DatabaseException e) {
-			log.error("", e);
-			return -1;
-		}
+		return getStoreInfo(mapSourceName).getTileCount();
 	}
 
 	public long getStoreSize(String storeName) throws InterruptedException {
@@ -364,24 +490,67 @@ public class BerkeleyDbTileStore extends TileStore {
 		}
 	}
 
+	/**
+	 * Makes room for opening another database: closes the databases with the lowest access score until less than
+	 * {@link Settings#tileStoreMaxOpenDatabases} databases are open and the usage of the cache shared by all databases
+	 * is within {@link Settings#tileStoreOpenDatabasesMemoryLimit}.
+	 */
 	protected void cleanupDatabases() {
-		if (tileDbMap.size() < MAX_CONCURRENT_ENVIRONMENTS)
-			return;
+		Settings s = Settings.getInstance();
+		int maxOpen = Math.max(1, s.tileStoreMaxOpenDatabases);
+		long memoryLimit = s.tileStoreOpenDatabasesMemoryLimit * 1048576L;
 		synchronized (tileDbMap) {
+			if (tileDbMap.isEmpty())
+				return;
+			if (tileDbMap.size() < maxOpen && memoryLimit <= 0)
+				return;
 			List<TileDatabase> list = new ArrayList<TileDatabase>(tileDbMap.values());
+			long cacheBytes = (memoryLimit > 0) ? list.get(0).getSharedCacheBytes() : 0;
+			if (list.size() < maxOpen && cacheBytes <= memoryLimit)
+				return;
+			final long now = System.currentTimeMillis();
 			Collections.sort(list, new Comparator<TileDatabase>() {
 
 				public int compare(TileDatabase o1, TileDatabase o2) {
-					if (o1.lastAccess == o2.lastAccess)
-						return 0;
-					return (o1.lastAccess < o2.lastAccess) ? -1 : 1;
+					return Double.compare(o1.getAccessScore(now), o2.getAccessScore(now));
 				}
 			});
-			for (int i = 0; i < list.size() - 2; i++)
-				list.get(i).close();
+			for (TileDatabase db : list) {
+				if (tileDbMap.size() < maxOpen && (memoryLimit <= 0 || cacheBytes <= memoryLimit))
+					break;
+				long dbCacheBytes = (memoryLimit > 0) ? db.getCacheBytes() : 0;
+				databaseEvictions.incrementAndGet();
+				log.debug(String.format("Closing tile store db \"%s\" (access score %.2f, cache %d KiB) - "
+						+ "db hits: %d misses: %d evictions: %d", db.mapSourceName, db.getAccessScore(now),
+						dbCacheBytes / 1024, databaseHits.get(), databaseMisses.get(), databaseEvictions.get()));
+				db.close();
+				if (memoryLimit > 0 && !tileDbMap.isEmpty())
+					cacheBytes = tileDbMap.values().iterator().next().getSharedCacheBytes();
+			}
 		}
 	}
 
+	/**
+	 * @return number of requests for a database that was already open
+	 */
+	public long getDatabaseHits() {
+		return databaseHits.get();
+	}
+
+	/**
+	 * @return number of requests for a database that had to be opened
+	 */
+	public long getDatabaseMisses() {
+		return databaseMisses.get();
+	}
+
+	/**
+	 * @return number of databases closed for making room for another database
+	 */
+	public long getDatabaseEvictions() {
+		return databaseEvictions.get();
+	}
+
 	public void closeAll() {
 		Thread t = new ShutdownThread(false);
 		t.start();
@@ -437,6 +606,71 @@ public class BerkeleyDbTileStore extends TileStore {
 		return result;
 	}
 
+	/**
+	 * Reads the tiles of a region column by column skipping empty columns. Each column is read in chunks of
+	 * {@link BerkeleyDbTileStore#RANGE_CURSOR_CHUNK_SIZE} tiles so that no database cursor stays open between calls
+	 * and the database can be closed or evicted in the meantime.
+	 */
+	protected class TileRangeCursor implements TileStoreCursor {
+
+		private final String storeName;
+		private final int zoom;
+		private final Point tileNumMin;
+		private final Point tileNumMax;
+
+		private final LinkedList<TileDbEntry> buffer = new LinkedList<TileDbEntry>();
+
+		private TileDatabase db = null;
+		private int x;
+		private int y;
+
+		public TileRangeCursor(String storeName, int zoom, Point tileNumMin, Point tileNumMax) {
+			this.storeName = storeName;
+			this.zoom = zoom;
+			this.tileNumMin = new Point(tileNumMin);
+			this.tileNumMax = new Point(tileNumMax);
+			x = tileNumMin.x;
+			y = tileNumMin.y;
+		}
+
+		public TileStoreEntry next() throws InterruptedException, TileStoreException {
+			while (buffer.isEmpty()) {
+				if (x > tileNumMax.x)
+					return null;
+				Utilities.checkForInterruption();
+				try {
+					if (db == null || db.isClosed())
+						db = getTileDatabase(storeName);
+					if (db == null)
+						throw new TileStoreException("Tile store has been closed");
+					if (y == tileNumMin.y) {
+						x = db.findColumn(zoom, x, tileNumMin.y, tileNumMax.x, tileNumMax.y);
+						if (x < 0) {
+							close();
+							return null;
+						}
+					}
+					int lastY = db.readColumn(zoom, x, y, tileNumMax.y, RANGE_CURSOR_CHUNK_SIZE, buffer);
+					if (lastY >= tileNumMax.y) {
+						x++;
+						y = tileNumMin.y;
+					} else
+						y = lastY + 1;
+				} catch (Exception e) {
+					close();
+					throw new TileStoreException("Failed to read tiles from tile store \"" + storeName + "\"", e);
+				}
+			}
+			return buffer.removeFirst();
+		}
+
+		public void close() {
+			x = tileNumMax.x + 1;
+			buffer.clear();
+			db = null;
+		}
+	}
+
 	private class ShutdownThread extends DelayedInterruptThread {
 
 		private final boolean shutdown;
@@ -448,6 +682,8 @@ public class BerkeleyDbTileStore extends TileStore {
 
 		@Override
 		public void run() {
+			if (shutdown && sweeper != null)
+				sweeper.shutdown();
 			log.debug("Closing all tile databases...");
 			synchronized (tileDbMap) {
 				for (TileDatabase db : tileDbMap.values()) {
@@ -456,11 +692,7 @@ public class BerkeleyDbTileStore extends TileStore {
 				tileDbMap.clear();
 				if (shutdown) {
 					tileDbMap = null;
-					try {
-						tileStoreLock.release();
-					} catch (IOException e) {
-						log.error("", e);
-					}
+					releaseTileStoreLock();
 				}
 			}
 			log.debug("All tile databases has been closed");
@@ -473,9 +705,58 @@ public class BerkeleyDbTileStore extends TileStore {
 		final Environment env;
 		final EntityStore store;
 		final PrimaryIndex<TileDbKey, TileDbEntry> tileIndex;
+		final PrimaryIndex<String, TileDbBlob> blobIndex;
 		boolean dbClosed = false;
 
-		long lastAccess;
+		/**
+		 * Tiles waiting to be written by {@link #writerThread}
+		 */
+		final BlockingQueue<TileDbEntry> writeQueue = new ArrayBlockingQueue<TileDbEntry>(WRITE_QUEUE_CAPACITY);
+
+		/**
+		 * Latest entry of each tile that has not been written yet. Reads are served from this map until the writer
+		 * thread has written the tile.
+		 */
+		final ConcurrentHashMap<TileDbKey, TileDbEntry> pendingTiles = new ConcurrentHashMap<TileDbKey, TileDbEntry>();
+
+		/**
+		 * Serializes the writer thread and tiles written directly because the write queue was full, so that an
+		 * outdated entry can never overwrite a newer one.
+		 */
+		final Object writeLock = new Object();
+
+		volatile TileWriterThread writerThread = null;
+
+		/**
+		 * Tiles written to the database. Tiles still pending are not included.
+		 */
+		final TileCoverageIndex coverageIndex = new TileCoverageIndex();
+
+		final File coverageIndexFile;
+
+		final Object coverageRebuildLock = new Object();
+
+		/**
+		 * Held by the {@link TileStoreSweeper} while it processes this database. Closing the database waits for it.
+		 */
+		final Object sweepLock = new Object();
+
+		/**
+		 * Statistics of the tiles written to the database. Tiles still pending are not included.
+		 */
+		final TileStoreStatistics statistics = new TileStoreStatistics();
+
+		final File statisticsFile;
+
+		/**
+		 * Time of the last access to this database
+		 */
+		volatile long lastAccess;
+
+		/**
+		 * Number of accesses to this database since it has been opened
+		 */
+		final AtomicLong accessCount = new AtomicLong();
 
 		public TileDatabase(String mapSourceName) throws IOException, EnvironmentLockedException, DatabaseException {
 			this(mapSourceName, getStoreDir(mapSourceName));
@@ -485,9 +766,12 @@ public class BerkeleyDbTileStore extends TileStore {
 				EnvironmentLockedException, DatabaseException {
 			log.debug("Opening tile store db: \"" + databaseDirectory + "\"");
 			File storeDir = databaseDirectory;
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
+			coverageIndexFile = new File(storeDir, COVERAGE_INDEX_FILENAME);
+			statisticsFile = new File(storeDir, STATISTICS_FILENAME);
+			String[] existingFiles = storeDir.list();
+			boolean newStore = (existingFiles == null) || (existingFiles.length == 0);
 			try {
-				t.pauseInterrupt();
+				DelayedInterruptThread.pauseCurrentInterrupt();
 				this.mapSourceName = mapSourceName;
 				lastAccess = System.currentTimeMillis();
 
@@ -502,10 +786,65 @@ public class BerkeleyDbTileStore extends TileStore {
 				store = new EntityStore(env, "TilesEntityStore", storeConfig);
 
 				tileIndex = store.getPrimaryIndex(TileDbKey.class, TileDbEntry.class);
+				blobIndex = store.getPrimaryIndex(String.class, TileDbBlob.class);
+
+				if (newStore) {
+					coverageIndex.setComplete(true);
+					statistics.setComplete(true);
+				} else {
+					loadCoverageIndex();
+					loadStatistics();
+				}
+
+				writerThread = new TileWriterThread();
+				writerThread.start();
 			} finally {
-				if (t.interruptedWhilePaused())
+				if (DelayedInterruptThread.currentInterruptedWhilePaused())
 					close();
-				t.resumeInterrupt();
+				DelayedInterruptThread.resumeCurrentInterrupt();
+			}
+		}
+
+		void accessed() {
+			lastAccess = System.currentTimeMillis();
+			accessCount.incrementAndGet();
+		}
+
+		/**
+		 * Combination of LFU and LRU: the number of accesses divided by the number of seconds since the last access.
+		 * Databases with a low score are closed first.
+		 */
+		double getAccessScore(long now) {
+			double idleSeconds = Math.max(0, now - lastAccess) / 1000.0;
+			return accessCount.get() / (1.0 + idleSeconds);
+		}
+
+		/**
+		 * @return the number of cache bytes used by the environment of this database only
+		 */
+		long getCacheBytes() {
+			EnvironmentStats stats = getCacheStats();
+			return (stats != null) ? stats.getCacheTotalBytes() : 0;
+		}
+
+		/**
+		 * @return the number of bytes of the cache shared by the environments of all open databases
+		 */
+		long getSharedCacheBytes() {
+			EnvironmentStats stats = getCacheStats();
+			return (stats != null) ? stats.getSharedCacheTotalBytes() : 0;
+		}
+
+		private EnvironmentStats getCacheStats() {
+			if (dbClosed)
+				return null;
+			try {
+				StatsConfig statsConfig = new StatsConfig();
+				statsConfig.setFast(true);
+				return env.getStats(statsConfig);
+			} catch (DatabaseException e) {
+				log.error("", e);
+				return null;
 			}
 		}
 
@@ -513,87 +852,556 @@ public class BerkeleyDbTileStore extends TileStore {
 			return dbClosed;
 		}
 
-		public long entryCount() throws DatabaseException {
-			return tileIndex.count();
+		/**
+		 * @return number of tiles written to the database according to the statistics
+		 */
+		public long entryCount() throws DatabaseException, InterruptedException {
+			ensureStatistics();
+			return statistics.getTileCount();
 		}
 
+		/**
+		 * Queues the tile for being written by the writer thread. Only if the write queue is full or the writer thread
+		 * has already been stopped the tile is written directly.
+		 */
 		public void put(TileDbEntry tile) throws DatabaseException {
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
+			if (writerThread != null) {
+				pendingTiles.put(tile.tileKey, tile);
+				if (writeQueue.offer(tile))
+					return;
+			}
 			try {
-				t.pauseInterrupt();
-				tileIndex.put(tile);
+				DelayedInterruptThread.pauseCurrentInterrupt();
+				synchronized (writeLock) {
+					storeTile(tile);
+					pendingTiles.remove(tile.tileKey, tile);
+				}
 			} finally {
-				if (t.interruptedWhilePaused())
+				if (DelayedInterruptThread.currentInterruptedWhilePaused())
 					close();
-				t.resumeInterrupt();
+				DelayedInterruptThread.resumeCurrentInterrupt();
+			}
+		}
+
+		/**
+		 * Writes the tiles directly within one acquisition of {@link #writeLock}. Older versions of the tiles still
+		 * queued for the writer thread are skipped by it.
+		 */
+		public void putAll(Collection<TileDbEntry> tiles) throws DatabaseException {
+			try {
+				DelayedInterruptThread.pauseCurrentInterrupt();
+				for (TileDbEntry tile : tiles)
+					pendingTiles.put(tile.tileKey, tile);
+				synchronized (writeLock) {
+					for (TileDbEntry tile : tiles) {
+						storeTile(tile);
+						pendingTiles.remove(tile.tileKey, tile);
+					}
+				}
+			} finally {
+				if (DelayedInterruptThread.currentInterruptedWhilePaused())
+					close();
+				DelayedInterruptThread.resumeCurrentInterrupt();
+			}
+		}
+
+		/**
+		 * Writes the tile to the database. The tile data is stored as {@link TileDbBlob} shared with all other tiles
+		 * with identical content. Has to be called while holding {@link #writeLock}.
+		 * <p>
+		 * A tile loaded from the database that still references the stored {@link TileDbBlob} (e.g. after only its
+		 * expiration time has been updated) is written without hashing and rewriting its data.
+		 * </p>
+		 */
+		protected void storeTile(TileDbEntry tile) throws DatabaseException {
+			String dataHash = tile.getDataHash();
+			if (dataHash != null) {
+				TileDbEntry storedTile = tileIndex.get(tile.tileKey);
+				if (storedTile != null && dataHash.equals(storedTile.getDataHash())) {
+					tileIndex.putNoReturn(tile.createBlobReference(dataHash));
+					return;
+				}
+			}
+			byte[] data = tile.getData();
+			String hash = DigestUtils.shaHex(data);
+			TileDbBlob blob = blobIndex.get(hash);
+			if (blob == null)
+				blob = new TileDbBlob(hash, data);
+			blob.incrementRefCount();
+			blobIndex.putNoReturn(blob);
+
+			TileDbEntry oldTile = tileIndex.put(tile.createBlobReference(hash));
+			int oldDataSize = -1;
+			if (oldTile != null) {
+				if (oldTile.getDataHash() != null)
+					oldDataSize = releaseBlob(oldTile.getDataHash());
+				else
+					oldDataSize = oldTile.getData().length;
+			}
+			statistics.tileWritten(oldDataSize, data.length);
+			coverageIndex.add(tile.getX(), tile.getY(), tile.getZoom());
+		}
+
+		/**
+		 * Deletes the tile and releases its {@link TileDbBlob}. Has to be called while holding {@link #writeLock}.
+		 */
+		protected void deleteTile(TileDbEntry tile) throws DatabaseException {
+			TileDbKey key = tile.tileKey;
+			tileIndex.delete(key);
+			coverageIndex.remove(key.x, key.y, key.zoom);
+			int dataSize;
+			if (tile.getDataHash() != null)
+				dataSize = releaseBlob(tile.getDataHash());
+			else
+				dataSize = tile.getData().length;
+			statistics.tileRemoved(Math.max(dataSize, 0));
+		}
+
+		/**
+		 * Examines the next <code>maxTiles</code> tiles after <code>fromKey</code> and deletes those downloaded before
+		 * <code>downloadedBefore</code>.
+		 * 
+		 * @param fromKey
+		 *            key of the last tile examined in the previous step or <code>null</code> for starting with the
+		 *            first tile
+		 * @return key of the last tile examined or <code>null</code> if the end of the database has been reached
+		 */
+		protected TileDbKey sweepOutdatedTiles(TileDbKey fromKey, int maxTiles, long downloadedBefore)
+				throws DatabaseException {
+			synchronized (sweepLock) {
+				if (dbClosed)
+					return null;
+				try {
+					DelayedInterruptThread.pauseCurrentInterrupt();
+					List<TileDbKey> outdated = new ArrayList<TileDbKey>();
+					TileDbKey lastKey = null;
+					EntityCursor<TileDbEntry> cursor;
+					if (fromKey == null)
+						cursor = tileIndex.entities();
+					else
+						cursor = tileIndex.entities(fromKey, false, null, false);
+					try {
+						for (int i = 0; i < maxTiles; i++) {
+							TileDbEntry tile = cursor.next();
+							if (tile == null) {
+								lastKey = null;
+								break;
+							}
+							lastKey = tile.tileKey;
+							if (tile.getTimeDownloaded() < downloadedBefore)
+								outdated.add(tile.tileKey);
+						}
+					} finally {
+						cursor.close();
+					}
+					int deleted = 0;
+					synchronized (writeLock) {
+						for (TileDbKey key : outdated) {
+							// A newer version of the tile may have been written in the meantime
+							if (pendingTiles.containsKey(key))
+								continue;
+							TileDbEntry tile = tileIndex.get(key);
+							if (tile == null || tile.getTimeDownloaded() >= downloadedBefore)
+								continue;
+							deleteTile(tile);
+							deleted++;
+						}
+					}
+					if (deleted > 0)
+						log.debug("Deleted " + deleted + " outdated tiles from tile store db \"" + mapSourceName
+								+ "\"");
+					return lastKey;
+				} finally {
+					DelayedInterruptThread.resumeCurrentInterrupt();
+				}
+			}
+		}
+
+		/**
+		 * Decrements the reference count of the blob and deletes it if it is no longer referenced.
+		 * 
+		 * @return size of the blob data or <code>-1</code> if the blob does not exist
+		 */
+		protected int releaseBlob(String hash) throws DatabaseException {
+			TileDbBlob blob = blobIndex.get(hash);
+			if (blob == null) {
+				log.warn("Tile data " + hash + " missing in tile store db \"" + mapSourceName + "\"");
+				return -1;
 			}
+			if (blob.decrementRefCount() <= 0)
+				blobIndex.delete(hash);
+			else
+				blobIndex.putNoReturn(blob);
+			return blob.getData().length;
+		}
+
+		/**
+		 * @return the size of the tile data without loading the {@link TileDbBlob} if the data is stored inline
+		 */
+		protected int getDataSize(TileDbEntry tile) throws DatabaseException {
+			if (tile.getDataHash() == null)
+				return tile.getData().length;
+			TileDbBlob blob = blobIndex.get(tile.getDataHash());
+			return (blob != null) ? blob.getData().length : 0;
+		}
+
+		/**
+		 * Writes the queued tiles. Has to be called while holding {@link #writeLock} and with paused interrupt.
+		 * 
+		 * @return <code>true</code> if the {@link BerkeleyDbTileStore#WRITER_STOP_MARKER} has been found
+		 */
+		protected boolean writeTiles(List<TileDbEntry> tiles) {
+			boolean stop = false;
+			for (TileDbEntry tile : tiles) {
+				if (tile == WRITER_STOP_MARKER) {
+					stop = true;
+					continue;
+				}
+				// Skip entries that have been replaced by a newer version
+				if (pendingTiles.get(tile.tileKey) != tile)
+					continue;
+				try {
+					storeTile(tile);
+				} catch (Exception e) {
+					log.error("Faild to write tile to tile store \"" + mapSourceName + "\"", e);
+				}
+				pendingTiles.remove(tile.tileKey, tile);
+			}
+			return stop;
+		}
+
+		/**
+		 * Stops the writer thread after it has written all queued tiles.
+		 */
+		protected void stopWriterThread() {
+			TileWriterThread writer = writerThread;
+			if (writer == null)
+				return;
+			writerThread = null;
+			boolean interrupted = false;
+			while (true) {
+				try {
+					writeQueue.put(WRITER_STOP_MARKER);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			while (writer.isAlive()) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			// Tiles queued concurrently to stopping the writer
+			List<TileDbEntry> remaining = new ArrayList<TileDbEntry>();
+			writeQueue.drainTo(remaining);
+			synchronized (writeLock) {
+				writeTiles(remaining);
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
 
 		public boolean contains(TileDbKey key) throws DatabaseException {
+			if (pendingTiles.containsKey(key))
+				return true;
+			if (coverageIndex.isComplete())
+				return coverageIndex.contains(key.x, key.y, key.zoom);
 			return tileIndex.contains(key);
 		}
 
-		public TileDbEntry get(TileDbKey key) throws DatabaseException {
-			return tileIndex.get(key);
+		/**
+		 * Loads the coverage index saved when the database has been closed the last time. The file is deleted
+		 * afterwards so that an index outdated by an unclean shutdown is never used.
+		 */
+		protected void loadCoverageIndex() {
+			if (!coverageIndexFile.isFile())
+				return;
+			try {
+				coverageIndex.readFromFile(coverageIndexFile);
+				coverageIndex.setComplete(true);
+			} catch (IOException e) {
+				log.error("Failed to load coverage index of tile store db \"" + mapSourceName + "\": "
+						+ e.getMessage());
+			}
+			if (!coverageIndexFile.delete()) {
+				log.error("Failed to delete coverage index file \"" + coverageIndexFile + "\"");
+				coverageIndex.setComplete(false);
+				coverageIndex.clear();
+			}
 		}
 
-		public PrimaryIndex<TileDbKey, TileDbEntry> getTileIndex() {
-			return tileIndex;
+		/**
+		 * Loads the statistics saved when the database has been closed the last time. Like the coverage index file the
+		 * statistics file is deleted afterwards.
+		 */
+		protected void loadStatistics() {
+			if (!statisticsFile.isFile())
+				return;
+			try {
+				statistics.readFromFile(statisticsFile);
+				statistics.setComplete(true);
+			} catch (IOException e) {
+				log.error("Failed to load statistics of tile store db \"" + mapSourceName + "\": " + e.getMessage());
+			}
+			if (!statisticsFile.delete()) {
+				log.error("Failed to delete statistics file \"" + statisticsFile + "\"");
+				statistics.setComplete(false);
+				statistics.reset();
+			}
 		}
 
-		public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws DatabaseException,
-				InterruptedException {
-			log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
-			int width = tileNumMax.x - tileNumMin.x + 1;
-			int height = tileNumMax.y - tileNumMin.y + 1;
-			byte ff = (byte) 0xFF;
-			byte[] colors = new byte[] { 120, 120, 120, 120, // alpha-gray
-					10, ff, 0, 120 // alpha-green
-			};
-			IndexColorModel colorModel = new IndexColorModel(2, 2, colors, 0, true);
-			BufferedImage image = null;
+		protected void saveStatistics() {
+			if (!statistics.isComplete())
+				return;
 			try {
-				image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
-			} catch (Throwable e) {
-				log.error("Failed to create coverage image: " + e.toString());
-				image = null;
-				System.gc();
-				return null;
+				statistics.writeToFile(statisticsFile);
+			} catch (IOException e) {
+				log.error("Failed to save statistics of tile store db \"" + mapSourceName + "\"", e);
+				statisticsFile.delete();
 			}
-			WritableRaster raster = image.getRaster();
+		}
 
-			// We are loading the coverage of the selected area column by column which is much faster than loading the
-			// whole region at once
-			for (int x = tileNumMin.x; x <= tileNumMax.x; x++) {
-				TileDbKey fromKey = new TileDbKey(x, tileNumMin.y, zoom);
-				TileDbKey toKey = new TileDbKey(x, tileNumMax.y, zoom);
-				EntityCursor<TileDbKey> cursor = tileIndex.keys(fromKey, true, toKey, true);
+		/**
+		 * Computes the statistics by scanning all tiles in case they have not been loaded from disk. The writer thread
+		 * is blocked during the scan.
+		 */
+		protected void ensureStatistics() throws DatabaseException, InterruptedException {
+			if (statistics.isComplete())
+				return;
+			synchronized (writeLock) {
+				if (statistics.isComplete())
+					return;
+				log.debug("Computing statistics of tile store db \"" + mapSourceName + "\"");
+				Thread t = Thread.currentThread();
+				statistics.reset();
+				EntityCursor<TileDbEntry> cursor = tileIndex.entities();
+				try {
+					TileDbEntry tile = cursor.next();
+					while (tile != null) {
+						statistics.tileWritten(-1, getDataSize(tile));
+						tile = cursor.next();
+						if (t.isInterrupted()) {
+							statistics.reset();
+							log.debug("Computing statistics aborted");
+							throw new InterruptedException();
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+				statistics.setComplete(true);
+			}
+		}
+
+		protected void saveCoverageIndex() {
+			if (!coverageIndex.isComplete())
+				return;
+			try {
+				coverageIndex.writeToFile(coverageIndexFile);
+			} catch (IOException e) {
+				log.error("Failed to save coverage index of tile store db \"" + mapSourceName + "\"", e);
+				coverageIndexFile.delete();
+			}
+		}
+
+		/**
+		 * Adds all tiles of the database to the coverage index if it has not been loaded from disk.
+		 */
+		protected void ensureCoverageIndex() throws DatabaseException, InterruptedException {
+			if (coverageIndex.isComplete())
+				return;
+			synchronized (coverageRebuildLock) {
+				if (coverageIndex.isComplete())
+					return;
+				log.debug("Rebuilding coverage index of tile store db \"" + mapSourceName + "\"");
+				Thread t = Thread.currentThread();
+				EntityCursor<TileDbKey> cursor = tileIndex.keys();
 				try {
 					TileDbKey key = cursor.next();
 					while (key != null) {
-						int pixelx = key.x - tileNumMin.x;
-						int pixely = key.y - tileNumMin.y;
-						raster.setSample(pixelx, pixely, 0, 1);
+						coverageIndex.add(key.x, key.y, key.zoom);
 						key = cursor.next();
 						if (t.isInterrupted()) {
-							log.debug("Cache coverage loading aborted");
+							log.debug("Coverage index rebuild aborted");
 							throw new InterruptedException();
 						}
 					}
 				} finally {
 					cursor.close();
 				}
+				coverageIndex.setComplete(true);
+				log.debug("Coverage index of tile store db \"" + mapSourceName + "\" rebuilt");
 			}
+		}
+
+		public TileDbEntry get(TileDbKey key) throws DatabaseException {
+			TileDbEntry tile = pendingTiles.get(key);
+			if (tile != null)
+				return tile;
+			tile = tileIndex.get(key);
+			if (tile == null)
+				return null;
+			return loadData(tile);
+		}
+
+		/**
+		 * Reads the tile without loading the data from its {@link TileDbBlob}. Tiles missing in the coverage index
+		 * are not looked up at all.
+		 * 
+		 * @return the tile or <code>null</code>. The data of the returned tile is <code>null</code> if it is stored
+		 *         as {@link TileDbBlob}.
+		 */
+		public TileDbEntry getMetadata(TileDbKey key) throws DatabaseException {
+			TileDbEntry tile = pendingTiles.get(key);
+			if (tile != null)
+				return tile;
+			if (coverageIndex.isComplete() && !coverageIndex.contains(key.x, key.y, key.zoom))
+				return null;
+			return tileIndex.get(key);
+		}
+
+		/**
+		 * Loads the data of the tile from its {@link TileDbBlob}.
+		 * 
+		 * @return the tile or <code>null</code> if its data does no longer exist
+		 */
+		protected TileDbEntry loadData(TileDbEntry tile) throws DatabaseException {
+			if (tile.getDataHash() == null)
+				return tile;
+			TileDbBlob blob = blobIndex.get(tile.getDataHash());
+			if (blob == null)
+				// The tile has been replaced concurrently and its old data has been deleted
+				return null;
+			tile.setData(blob.getData());
+			return tile;
+		}
+
+		/**
+		 * Searches the first column in the range <code>fromX</code> to <code>toX</code> that contains a tile between
+		 * <code>fromY</code> and <code>toY</code>. Allows to skip empty columns without reading each of them.
+		 * 
+		 * @return the x coordinate of the column or <code>-1</code> if all columns of the range are empty. The column
+		 *         may be empty if it only contains tiles outside of the y range.
+		 */
+		protected int findColumn(int zoom, int fromX, int fromY, int toX, int toY) throws DatabaseException {
+			int column = -1;
+			for (TileDbKey key : pendingTiles.keySet()) {
+				if (key.zoom == zoom && key.x >= fromX && key.x <= toX && key.y >= fromY && key.y <= toY
+						&& (column < 0 || key.x < column))
+					column = key.x;
+			}
+			synchronized (sweepLock) {
+				if (dbClosed)
+					throw new IllegalStateException("Tile store db \"" + mapSourceName + "\" has been closed");
+				EntityCursor<TileDbKey> cursor = tileIndex.keys(new TileDbKey(fromX, fromY, zoom), true, new TileDbKey(
+						toX, toY, zoom), true);
+				try {
+					// The first key may be outside of the y range. Reading that column is unnecessary but harmless.
+					TileDbKey key = cursor.next();
+					if (key != null && (column < 0 || key.x < column))
+						column = key.x;
+				} finally {
+					cursor.close();
+				}
+			}
+			return column;
+		}
+
+		/**
+		 * Reads at most <code>maxTiles</code> tiles of column <code>x</code> in the range <code>fromY</code> to
+		 * <code>toY</code> ordered by y. Tiles still queued for the writer thread are included.
+		 * 
+		 * @return the y coordinate of the last tile examined or <code>toY</code> if the end of the range has been
+		 *         reached
+		 */
+		protected int readColumn(int zoom, int x, int fromY, int toY, int maxTiles, List<TileDbEntry> tiles)
+				throws DatabaseException {
+			TreeMap<Integer, TileDbEntry> column = new TreeMap<Integer, TileDbEntry>();
+			// Pending tiles have to be collected first: the writer removes a tile from the pending tiles after it has
+			// been written
+			for (TileDbEntry tile : pendingTiles.values()) {
+				TileDbKey key = tile.tileKey;
+				if (key.zoom == zoom && key.x == x && key.y >= fromY && key.y <= toY)
+					column.put(key.y, tile);
+			}
+			int lastY = toY;
+			synchronized (sweepLock) {
+				if (dbClosed)
+					throw new IllegalStateException("Tile store db \"" + mapSourceName + "\" has been closed");
+				EntityCursor<TileDbEntry> cursor = tileIndex.entities(new TileDbKey(x, fromY, zoom), true,
+						new TileDbKey(x, toY, zoom), true);
+				try {
+					int count = 0;
+					TileDbEntry tile;
+					while (count < maxTiles && (tile = cursor.next()) != null) {
+						count++;
+						int y = tile.tileKey.y;
+						if (count == maxTiles)
+							lastY = y;
+						if (!column.containsKey(y) && loadData(tile) != null)
+							column.put(y, tile);
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+			tiles.addAll(column.headMap(lastY, true).values());
+			return lastY;
+		}
+
+		public PrimaryIndex<TileDbKey, TileDbEntry> getTileIndex() {
+			return tileIndex;
+		}
+
+		public BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax) throws DatabaseException,
+				InterruptedException {
+			log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+			ensureCoverageIndex();
+			BufferedImage image = createCoverageImage(tileNumMin, tileNumMax);
+			if (image == null)
+				return null;
+			WritableRaster raster = image.getRaster();
+			// Pending tiles have to be processed first: the writer adds a tile to the coverage index before it removes
+			// it from the pending tiles
+			for (TileDbKey key : pendingTiles.keySet()) {
+				if (key.zoom != zoom || key.x < tileNumMin.x || key.x > tileNumMax.x || key.y < tileNumMin.y
+						|| key.y > tileNumMax.y)
+					continue;
+				raster.setSample(key.x - tileNumMin.x, key.y - tileNumMin.y, 0, 1);
+			}
+			coverageIndex.paintCoverage(raster, zoom, tileNumMin, tileNumMax);
 			return image;
 		}
 
-		protected void purge() {
-			try {
-				store.sync();
-				env.cleanLog();
-			} catch (DatabaseException e) {
-				log.error("database compression failed: ", e);
+		/**
+		 * Cleans at most <code>maxCleanedFiles</code> log files and writes a checkpoint so that the cleaned files can
+		 * be deleted.
+		 */
+		protected void purge(int maxCleanedFiles) {
+			synchronized (sweepLock) {
+				if (dbClosed)
+					return;
+				try {
+					DelayedInterruptThread.pauseCurrentInterrupt();
+					store.sync();
+					int cleanedFiles = 0;
+					int cleaned;
+					do {
+						cleaned = env.cleanLog();
+						cleanedFiles += cleaned;
+					} while (cleaned > 0 && cleanedFiles < maxCleanedFiles);
+					CheckpointConfig checkpointConfig = new CheckpointConfig();
+					checkpointConfig.setForce(true);
+					env.checkpoint(checkpointConfig);
+					log.debug("Tile store db \"" + mapSourceName + "\" purged: " + cleanedFiles + " log files cleaned");
+				} catch (DatabaseException e) {
+					log.error("database compression failed: ", e);
+				} finally {
+					DelayedInterruptThread.resumeCurrentInterrupt();
+				}
 			}
 		}
 
@@ -611,27 +1419,33 @@ public class BerkeleyDbTileStore extends TileStore {
 						tileDbMap.remove(mapSourceName);
 				}
 			}
-			DelayedInterruptThread t = (DelayedInterruptThread) Thread.currentThread();
 			try {
-				t.pauseInterrupt();
-				try {
-					log.debug("Closing tile store db \"" + mapSourceName + "\"");
-					if (store != null)
-						store.close();
-				} catch (Exception e) {
-					log.error("", e);
-				}
-				try {
-					env.close();
-				} catch (Exception e) {
-					log.error("", e);
-				} finally {
-					dbClosed = true;
+				DelayedInterruptThread.pauseCurrentInterrupt();
+				synchronized (sweepLock) {
+					if (dbClosed)
+						return;
+					stopWriterThread();
+					saveCoverageIndex();
+					saveStatistics();
+					try {
+						log.debug("Closing tile store db \"" + mapSourceName + "\"");
+						if (store != null)
+							store.close();
+					} catch (Exception e) {
+						log.error("", e);
+					}
+					try {
+						env.close();
+					} catch (Exception e) {
+						log.error("", e);
+					} finally {
+						dbClosed = true;
+					}
 				}
 			} finally {
-				if (t.interruptedWhilePaused())
+				if (DelayedInterruptThread.currentInterruptedWhilePaused())
 					close();
-				t.resumeInterrupt();
+				DelayedInterruptThread.resumeCurrentInterrupt();
 			}
 		}
 
@@ -641,5 +1455,41 @@ public class BerkeleyDbTileStore extends TileStore {
 			super.finalize();
 		}
 
+		/**
+		 * Drains {@link TileDatabase#writeQueue} and writes the tiles in batches so that download threads never have
+		 * to wait for database IO.
+		 */
+		protected class TileWriterThread extends DelayedInterruptThread {
+
+			public TileWriterThread() {
+				super("TileDbWriter " + mapSourceName);
+				setDaemon(true);
+			}
+
+			@Override
+			public void run() {
+				List<TileDbEntry> batch = new ArrayList<TileDbEntry>(WRITE_BATCH_SIZE);
+				boolean stop = false;
+				while (!stop || !writeQueue.isEmpty()) {
+					try {
+						batch.add(writeQueue.take());
+					} catch (InterruptedException e) {
+						continue;
+					}
+					writeQueue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+					try {
+						pauseInterrupt();
+						synchronized (writeLock) {
+							if (writeTiles(batch))
+								stop = true;
+						}
+					} finally {
+						resumeInterrupt();
+					}
+					batch.clear();
+				}
+				log.debug("Tile writer of tile store db \"" + mapSourceName + "\" stopped");
+			}
+		}
 	}
 }
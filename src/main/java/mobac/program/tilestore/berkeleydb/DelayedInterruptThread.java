@@ -63,6 +63,34 @@ public class DelayedInterruptThread extends Thread {
 		return interruptedWhilePaused;
 	}
 
+	/**
+	 * Calls {@link #pauseInterrupt()} if the current thread is a {@link DelayedInterruptThread}. Other threads (e.g.
+	 * the atlas creation thread reading tiles from the tile store) are not affected.
+	 */
+	public static void pauseCurrentInterrupt() {
+		Thread t = Thread.currentThread();
+		if (t instanceof DelayedInterruptThread)
+			((DelayedInterruptThread) t).pauseInterrupt();
+	}
+
+	/**
+	 * Calls {@link #resumeInterrupt()} if the current thread is a {@link DelayedInterruptThread}.
+	 */
+	public static void resumeCurrentInterrupt() {
+		Thread t = Thread.currentThread();
+		if (t instanceof DelayedInterruptThread)
+			((DelayedInterruptThread) t).resumeInterrupt();
+	}
+
+	/**
+	 * @return <code>true</code> if the current thread is a {@link DelayedInterruptThread} that has been interrupted
+	 *         while interrupt was disabled
+	 */
+	public static boolean currentInterruptedWhilePaused() {
+		Thread t = Thread.currentThread();
+		return (t instanceof DelayedInterruptThread) && ((DelayedInterruptThread) t).interruptedWhilePaused();
+	}
+
 	public static ThreadFactory createThreadFactory() {
 		return new DIThreadFactory();
 	}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.berkeleydb;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * Tile data shared by all {@link TileDbEntry} instances with identical content. The blob is identified by the SHA-1
+ * hash of the data and deleted as soon as no tile references it anymore.
+ */
+@Entity
+public class TileDbBlob {
+
+	@PrimaryKey
+	protected String hash;
+
+	private byte[] data;
+
+	/**
+	 * Number of {@link TileDbEntry} referencing this blob
+	 */
+	private int refCount;
+
+	protected TileDbBlob() {
+		// required for deserialization
+	}
+
+	public TileDbBlob(String hash, byte[] data) {
+		this.hash = hash;
+		this.data = data;
+		this.refCount = 0;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getRefCount() {
+		return refCount;
+	}
+
+	public int incrementRefCount() {
+		return ++refCount;
+	}
+
+	public int decrementRefCount() {
+		return --refCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TileDbBlob %s size=%d refs=%d", hash, data.length, refCount);
+	}
+
+}
@@ -25,7 +25,12 @@ import com.sleepycat.persist.model.KeyField;
 import com.sleepycat.persist.model.Persistent;
 import com.sleepycat.persist.model.PrimaryKey;
 
-@Entity(version = 3)
+/**
+ * Since version 4 the tile data is not stored inline anymore. Instead {@link #dataHash} references a
+ * {@link TileDbBlob} that is shared between all tiles with identical content. Entries written by older versions still
+ * contain their data inline.
+ */
+@Entity(version = 4)
 public class TileDbEntry implements TileStoreEntry {
 
 	@PrimaryKey
@@ -34,6 +39,11 @@ public class TileDbEntry implements TileStoreEntry {
 	private byte[] data;
 	private String eTag = null;
 
+	/**
+	 * SHA-1 hash of the tile data stored as {@link TileDbBlob} or <code>null</code> if the data is stored inline
+	 */
+	private String dataHash = null;
+
 	private long timeDownloaded;
 
 	private long timeLastModified;
@@ -63,6 +73,12 @@ public class TileDbEntry implements TileStoreEntry {
 		this.timeExpires = timeExpires;
 	}
 
+	public TileStoreEntry copy() {
+		TileDbEntry copy = createBlobReference(dataHash);
+		copy.data = data;
+		return copy;
+	}
+
 	public int getX() {
 		return tileKey.x;
 	}
@@ -79,6 +95,37 @@ public class TileDbEntry implements TileStoreEntry {
 		return data;
 	}
 
+	/**
+	 * @return hash of the {@link TileDbBlob} containing the tile data or <code>null</code> if the data is stored
+	 *         inline
+	 */
+	String getDataHash() {
+		return dataHash;
+	}
+
+	/**
+	 * Sets the data of an entry loaded from the database that references a {@link TileDbBlob}.
+	 */
+	void setData(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * Creates the entry that is written to the database instead of this entry. It references the tile data via
+	 * <code>dataHash</code> and does not contain the data itself.
+	 */
+	TileDbEntry createBlobReference(String dataHash) {
+		TileDbEntry ref = new TileDbEntry();
+		ref.tileKey = tileKey;
+		ref.data = null;
+		ref.dataHash = dataHash;
+		ref.eTag = eTag;
+		ref.timeDownloaded = timeDownloaded;
+		ref.timeLastModified = timeLastModified;
+		ref.timeExpires = timeExpires;
+		return ref;
+	}
+
 	public String geteTag() {
 		return eTag;
 	}
@@ -129,6 +176,21 @@ public class TileDbEntry implements TileStoreEntry {
 			this.zoom = zoom;
 		}
 
+		@Override
+		public int hashCode() {
+			return (31 * (31 * zoom + x)) + y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileDbKey))
+				return false;
+			TileDbKey other = (TileDbKey) obj;
+			return (x == other.x) && (y == other.y) && (zoom == other.zoom);
+		}
+
 		@Override
 		public String toString() {
 			return "[x=" + x + ", y=" + y + ", zoom=" + zoom + "]";
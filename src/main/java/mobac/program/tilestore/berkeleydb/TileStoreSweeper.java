@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.berkeleydb;
+
+import java.util.concurrent.TimeUnit;
+
+import mobac.program.model.Settings;
+import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore.TileDatabase;
+import mobac.program.tilestore.berkeleydb.TileDbEntry.TileDbKey;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Low priority background thread that maintains the stores of a {@link BerkeleyDbTileStore} while no tiles are read
+ * or written. Only stores whose database is already open are processed - the sweeper never opens a database itself.
+ * The stores are processed one after the other in small steps: each step deletes the tiles within the next
+ * {@link #SWEEP_BATCH_SIZE} entries that have been downloaded longer than {@link Settings#tileMaxExpirationTime} ago.
+ * After a store has been swept completely its log files are cleaned and a checkpoint is written.
+ */
+public class TileStoreSweeper extends DelayedInterruptThread {
+
+	private static final Logger log = Logger.getLogger(TileStoreSweeper.class);
+
+	/**
+	 * Number of tile entries examined in one step
+	 */
+	private static final int SWEEP_BATCH_SIZE = 1000;
+
+	/**
+	 * Pause between two steps - limits the IO caused by the sweeper
+	 */
+	private static final long STEP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * Time without tile reads and writes after which the tile store is considered idle
+	 */
+	private static final long IDLE_TIME = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Pause after all stores have been swept
+	 */
+	private static final long ROUND_INTERVAL = TimeUnit.HOURS.toMillis(6);
+
+	/**
+	 * Max number of log files cleaned after a store has been swept
+	 */
+	private static final int MAX_CLEANED_FILES = 20;
+
+	private final BerkeleyDbTileStore tileStore;
+
+	private String[] storeNames = new String[0];
+	private int storeIndex = 0;
+	private TileDbKey sweepPosition = null;
+
+	public TileStoreSweeper(BerkeleyDbTileStore tileStore) {
+		super("TileStoreSweeper");
+		this.tileStore = tileStore;
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+	}
+
+	@Override
+	public void run() {
+		log.debug("Tile store sweeper started");
+		try {
+			while (true) {
+				sleep(STEP_INTERVAL);
+				if (!tileStore.isIdle(IDLE_TIME))
+					continue;
+				if (storeIndex >= storeNames.length) {
+					if (storeNames.length > 0) {
+						log.debug("All tile stores have been swept");
+						sleep(ROUND_INTERVAL);
+					}
+					storeNames = tileStore.getOpenStoreNames();
+					storeIndex = 0;
+					sweepPosition = null;
+					if (storeNames.length == 0)
+						sleep(ROUND_INTERVAL);
+					continue;
+				}
+				sweepStep(storeNames[storeIndex]);
+			}
+		} catch (InterruptedException e) {
+			log.debug("Tile store sweeper stopped");
+		}
+	}
+
+	protected void sweepStep(String storeName) {
+		try {
+			TileDatabase db = tileStore.getOpenTileDatabase(storeName);
+			if (db == null) {
+				// Closed in the meantime
+				storeIndex++;
+				return;
+			}
+			long downloadedBefore = System.currentTimeMillis() - Settings.getInstance().tileMaxExpirationTime;
+			sweepPosition = db.sweepOutdatedTiles(sweepPosition, SWEEP_BATCH_SIZE, downloadedBefore);
+			if (sweepPosition == null) {
+				db.purge(MAX_CLEANED_FILES);
+				storeIndex++;
+			}
+		} catch (Exception e) {
+			log.error("Sweeping tile store \"" + storeName + "\" failed: " + e.getMessage());
+			sweepPosition = null;
+			storeIndex++;
+		}
+	}
+
+	/**
+	 * Stops the sweeper and waits until the current step has been finished.
+	 */
+	public void shutdown() {
+		interrupt();
+		try {
+			join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			log.error("", e);
+		}
+	}
+}
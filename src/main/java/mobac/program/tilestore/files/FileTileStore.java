@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.files;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.interfaces.MapSource;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.BasicTileStoreEntry;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.TileStoreInfo;
+import mobac.utilities.Utilities;
+import mobac.utilities.file.DirectoryFileFilter;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Tile store implementation that uses plain files. The tiles of each map source are stored in the directory
+ * <code>files-&lt;name&gt;</code>:
+ * <ul>
+ * <li><code>blobs/&lt;h0h1&gt;/&lt;h2h3&gt;/&lt;sha1&gt;</code> contains the tile image data. The file name is the
+ * SHA-1 hash of the content, therefore identical tiles (e.g. empty sea tiles) are stored only once. The first two
+ * bytes of the hash are used for sharding the files over 65536 directories.</li>
+ * <li><code>tiles/&lt;zoom&gt;/&lt;x&gt;/&lt;y&gt;</code> contains the meta data of a tile (hash of the image data,
+ * download, modification and expiration time and the eTag).</li>
+ * </ul>
+ * All files are written to a temporary file first and then renamed, therefore concurrent readers never see partially
+ * written files. Image data no longer referenced by any tile is not deleted until the store is cleared.
+ */
+public class FileTileStore extends TileStore {
+
+	private static final String DIR_PREFIX = "files-";
+	private static final String BLOB_DIR = "blobs";
+	private static final String TILES_DIR = "tiles";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int META_DATA_VERSION = 1;
+
+	public FileTileStore() throws TileStoreException {
+		super();
+		acquireTileStoreLock();
+	}
+
+	@Override
+	public TileStoreEntry createNewEntry(int x, int y, int zoom, byte[] data, long timeLastModified, long timeExpires,
+			String eTag) {
+		return new BasicTileStoreEntry(x, y, zoom, data, timeLastModified, timeExpires, eTag);
+	}
+
+	@Override
+	public TileStoreEntry createNewEmptyEntry(int x, int y, int zoom) {
+		long time = System.currentTimeMillis();
+		long timeExpires = time + Settings.getInstance().tileDefaultExpirationTime;
+		return new BasicTileStoreEntry(x, y, zoom, new byte[] {}, time, timeExpires, "");
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException {
+		this.putTileData(tileData, x, y, zoom, mapSource, -1, -1, null);
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource, long timeLastModified,
+			long timeExpires, String eTag) throws IOException {
+		putTile(new BasicTileStoreEntry(x, y, zoom, tileData, timeLastModified, timeExpires, eTag), mapSource);
+	}
+
+	@Override
+	public void putTile(TileStoreEntry tile, MapSource mapSource) {
+		try {
+			if (log.isTraceEnabled())
+				log.trace("Saved " + mapSource.getName() + " " + tile);
+			File storeDir = getStoreDir(mapSource.getName());
+			String hash = DigestUtils.shaHex(tile.getData());
+			File blobFile = getBlobFile(storeDir, hash);
+			if (!blobFile.isFile())
+				writeFile(blobFile, tile.getData());
+
+			ByteArrayOutputStream meta = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(meta);
+			out.writeInt(META_DATA_VERSION);
+			out.writeUTF(hash);
+			out.writeLong(tile.getTimeDownloaded());
+			out.writeLong(tile.getTimeLastModified());
+			out.writeLong(tile.getTimeExpires());
+			String eTag = tile.geteTag();
+			out.writeBoolean(eTag != null);
+			if (eTag != null)
+				out.writeUTF(eTag);
+			out.close();
+			writeFile(getTileFile(storeDir, tile.getX(), tile.getY(), tile.getZoom()), meta.toByteArray());
+		} catch (Exception e) {
+			log.error("Faild to write tile to tile store \"" + mapSource.getName() + "\"", e);
+		}
+	}
+
+	@Override
+	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
+		try {
+			File storeDir = getStoreDir(mapSource.getName());
+			File tileFile = getTileFile(storeDir, x, y, zoom);
+			if (!tileFile.isFile()) {
+				if (log.isTraceEnabled())
+					log.trace("Tile store cache miss: (x,y,z)" + x + "/" + y + "/" + zoom + " " + mapSource.getName());
+				return null;
+			}
+			DataInputStream in = new DataInputStream(new FileInputStream(tileFile));
+			String hash;
+			long timeDownloaded;
+			long timeLastModified;
+			long timeExpires;
+			String eTag = null;
+			try {
+				int version = in.readInt();
+				if (version != META_DATA_VERSION)
+					throw new IOException("Unsupported tile meta data version " + version + ": " + tileFile);
+				hash = in.readUTF();
+				timeDownloaded = in.readLong();
+				timeLastModified = in.readLong();
+				timeExpires = in.readLong();
+				if (in.readBoolean())
+					eTag = in.readUTF();
+			} finally {
+				Utilities.closeStream(in);
+			}
+			File blobFile = getBlobFile(storeDir, hash);
+			if (!blobFile.isFile()) {
+				log.warn("Tile data missing for " + tileFile + ": " + blobFile);
+				return null;
+			}
+			TileStoreEntry tile = new BasicTileStoreEntry(x, y, zoom, Utilities.getFileBytes(blobFile),
+					timeDownloaded, timeLastModified, timeExpires, eTag);
+			if (log.isTraceEnabled())
+				log.trace("Loaded " + mapSource.getName() + " " + tile);
+			return tile;
+		} catch (Exception e) {
+			log.error("failed to retrieve tile from tile store \"" + mapSource.getName() + "\"", e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
+		return getTileFile(getStoreDir(mapSource.getName()), x, y, zoom).isFile();
+	}
+
+	@Override
+	public void prepareTileStore(MapSource mapSource) {
+	}
+
+	@Override
+	public void clearStore(String storeName) {
+		File storeDir = getStoreDir(storeName);
+		if (!storeDir.exists())
+			return;
+		int deleted = deleteRecursive(storeDir);
+		log.debug("Tilestore " + storeName + " cleared: " + deleted + " files deleted");
+	}
+
+	@Override
+	public String[] getAllStoreNames() {
+		File[] dirs = tileStoreDir.listFiles(new DirectoryFileFilter());
+		if (dirs == null)
+			return new String[0];
+		ArrayList<String> storeNames = new ArrayList<String>(dirs.length);
+		for (File d : dirs) {
+			String name = d.getName();
+			if (name.startsWith(DIR_PREFIX))
+				storeNames.add(name.substring(DIR_PREFIX.length()));
+		}
+		String[] result = new String[storeNames.size()];
+		storeNames.toArray(result);
+		return result;
+	}
+
+	@Override
+	public boolean storeExists(MapSource mapSource) {
+		return getStoreDir(mapSource.getName()).isDirectory();
+	}
+
+	@Override
+	public TileStoreInfo getStoreInfo(String storeName) throws InterruptedException {
+		File storeDir = getStoreDir(storeName);
+		long[] blobInfo = new long[2];
+		long[] tileInfo = new long[2];
+		walkDirectory(new File(storeDir, BLOB_DIR), blobInfo);
+		walkDirectory(new File(storeDir, TILES_DIR), tileInfo);
+		return new TileStoreInfo(blobInfo[1] + tileInfo[1], (int) tileInfo[0]);
+	}
+
+	@Override
+	public BufferedImage getCacheCoverage(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+		File zoomDir = new File(new File(getStoreDir(mapSource.getName()), TILES_DIR), Integer.toString(zoom));
+		BufferedImage image = createCoverageImage(tileNumMin, tileNumMax);
+		if (image == null)
+			return null;
+		WritableRaster raster = image.getRaster();
+		String[] xDirs = zoomDir.list();
+		if (xDirs == null)
+			return image;
+		for (String xName : xDirs) {
+			int x = parseTileNumber(xName);
+			if (x < tileNumMin.x || x > tileNumMax.x)
+				continue;
+			String[] yFiles = new File(zoomDir, xName).list();
+			if (yFiles == null)
+				continue;
+			for (String yName : yFiles) {
+				int y = parseTileNumber(yName);
+				if (y < tileNumMin.y || y > tileNumMax.y)
+					continue;
+				raster.setSample(x - tileNumMin.x, y - tileNumMin.y, 0, 1);
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				log.debug("Cache coverage loading aborted");
+				throw new InterruptedException();
+			}
+		}
+		return image;
+	}
+
+	@Override
+	public void closeAll() {
+		// Nothing to do - all files are closed after each operation
+	}
+
+	/**
+	 * @param storeName
+	 * @return directory used for storing the tiles belonging to the store <code>storeName</code>
+	 */
+	protected File getStoreDir(String storeName) {
+		return new File(tileStoreDir, DIR_PREFIX + storeName);
+	}
+
+	protected File getBlobFile(File storeDir, String hash) {
+		File shard = new File(new File(new File(storeDir, BLOB_DIR), hash.substring(0, 2)), hash.substring(2, 4));
+		return new File(shard, hash);
+	}
+
+	protected File getTileFile(File storeDir, int x, int y, int zoom) {
+		File xDir = new File(new File(new File(storeDir, TILES_DIR), Integer.toString(zoom)), Integer.toString(x));
+		return new File(xDir, Integer.toString(y));
+	}
+
+	/**
+	 * Writes <code>data</code> to a temporary file in the target directory and renames it to <code>file</code>
+	 * afterwards.
+	 */
+	protected void writeFile(File file, byte[] data) throws IOException {
+		File dir = file.getParentFile();
+		Utilities.mkDirs(dir);
+		File tempFile = File.createTempFile("tmp-" + file.getName(), TEMP_SUFFIX, dir);
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(data);
+			} finally {
+				Utilities.closeStream(out);
+			}
+			if (tempFile.renameTo(file))
+				return;
+			// On Windows an existing target file prevents renaming
+			file.delete();
+			Utilities.renameFile(tempFile, file);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	/**
+	 * @return the tile number or <code>-1</code> for files that do not represent a tile (e.g. temporary files)
+	 */
+	protected static int parseTileNumber(String name) {
+		try {
+			return Integer.parseInt(name);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds the number of files to <code>info[0]</code> and their size to <code>info[1]</code>.
+	 */
+	protected static void walkDirectory(File dir, final long[] info) throws InterruptedException {
+		try {
+			dir.listFiles(new FileFilter() {
+
+				public boolean accept(File f) {
+					Utilities.checkForInterruptionRt();
+					if (f.isDirectory()) {
+						f.listFiles(this);
+					} else if (!f.getName().endsWith(TEMP_SUFFIX)) {
+						info[0]++;
+						info[1] += f.length();
+					}
+					return false;
+				}
+			});
+		} catch (RuntimeException e) {
+			throw new InterruptedException();
+		}
+	}
+
+	protected static int deleteRecursive(File dir) {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files) {
+				if (f.isDirectory())
+					count += deleteRecursive(f);
+				else if (f.delete())
+					count++;
+			}
+		dir.delete();
+		return count;
+	}
+
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.sqlite;
+
+import java.awt.Point;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.interfaces.MapSource;
+import mobac.program.model.TileImageType;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreCursor;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.utilities.Utilities;
+import mobac.utilities.jdbc.SQLiteLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies the tiles of one map source between a {@link TileStore} and a MBTiles file. The tile data is copied as it is
+ * without decoding the images. Tiles are read from the tile store via {@link TileStore#getTiles} and written via
+ * {@link TileStore#putTiles} so that both directions run as sequential scans.
+ * <p>
+ * Exported files use the schema of {@link SQLiteTileStore} which extends the MBTiles tiles table by the cache meta
+ * data of each tile. Any other MBTiles file can be imported as well.
+ * </p>
+ */
+public class MBTilesTransfer {
+
+	private static final Logger log = Logger.getLogger(MBTilesTransfer.class);
+
+	/**
+	 * Number of exported tiles after which the progress is logged
+	 */
+	private static final int EXPORT_LOG_INTERVAL = 10000;
+
+	/**
+	 * Number of tiles passed to {@link TileStore#putTiles} at once
+	 */
+	private static final int IMPORT_BATCH_SIZE = 1000;
+
+	private static final String SELECT_TILES = "SELECT zoom_level, tile_column, tile_row, tile_data";
+	private static final String SELECT_TILES_CACHE_COLUMNS = ", time_last_modified, time_expires, etag";
+	private static final String SELECT_TILES_FROM = " FROM tiles ORDER BY zoom_level, tile_column, tile_row DESC";
+
+	private final TileStore tileStore;
+	private final MapSource mapSource;
+
+	public MBTilesTransfer(TileStore tileStore, MapSource mapSource) {
+		this.tileStore = tileStore;
+		this.mapSource = mapSource;
+	}
+
+	/**
+	 * Writes all tiles of the map source stored in the tile store to the MBTiles file. Tiles already present in the
+	 * file are replaced. All tiles are written in one transaction: if reading the tile store fails or the export is
+	 * interrupted no tiles are added to the file.
+	 * 
+	 * @return number of tiles exported
+	 * @throws TileStoreException
+	 *             if reading the tiles from the tile store failed
+	 */
+	public long exportTiles(File mbtilesFile) throws SQLException, InterruptedException, TileStoreException {
+		SQLiteLoader.loadSQLite();
+		log.info("Exporting tile store \"" + mapSource.getName() + "\" to \"" + mbtilesFile + "\"");
+		Connection conn = openConnection(mbtilesFile);
+		long count = 0;
+		try {
+			Statement stat = conn.createStatement();
+			try {
+				// The file is only written by the export and can simply be recreated after a crash
+				stat.execute("PRAGMA synchronous=OFF");
+				stat.execute("PRAGMA journal_mode=MEMORY");
+				stat.executeUpdate(SQLiteTileStore.TABLE_TILES);
+				stat.executeUpdate(SQLiteTileStore.INDEX_TILES);
+				stat.executeUpdate(SQLiteTileStore.TABLE_METADATA);
+				stat.executeUpdate(SQLiteTileStore.INDEX_METADATA);
+			} finally {
+				stat.close();
+			}
+			writeMetadata(conn);
+			conn.setAutoCommit(false);
+			PreparedStatement insertStmt = conn.prepareStatement(SQLiteTileStore.INSERT_TILE);
+			try {
+				for (int zoom = mapSource.getMinZoom(); zoom <= mapSource.getMaxZoom(); zoom++) {
+					int max = (1 << zoom) - 1;
+					TileStoreCursor cursor = tileStore.getTiles(mapSource, zoom, new Point(0, 0), new Point(max, max));
+					try {
+						TileStoreEntry tile;
+						while ((tile = cursor.next()) != null) {
+							insertStmt.setInt(1, zoom);
+							insertStmt.setInt(2, tile.getX());
+							insertStmt.setInt(3, SQLiteTileStore.flipY(tile.getY(), zoom));
+							insertStmt.setBytes(4, tile.getData());
+							insertStmt.setLong(5, tile.getTimeDownloaded());
+							insertStmt.setLong(6, tile.getTimeLastModified());
+							insertStmt.setLong(7, tile.getTimeExpires());
+							insertStmt.setString(8, tile.geteTag());
+							insertStmt.executeUpdate();
+							if (++count % EXPORT_LOG_INTERVAL == 0)
+								log.debug(count + " tiles exported");
+						}
+					} finally {
+						cursor.close();
+					}
+				}
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} catch (TileStoreException e) {
+				conn.rollback();
+				throw e;
+			} catch (InterruptedException e) {
+				conn.rollback();
+				throw e;
+			} catch (RuntimeException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				insertStmt.close();
+			}
+		} finally {
+			SQLiteLoader.closeConnection(conn);
+		}
+		log.info(count + " tiles exported to \"" + mbtilesFile + "\"");
+		return count;
+	}
+
+	/**
+	 * Writes all tiles of the MBTiles file to the tile store of the map source. Tiles already present in the tile
+	 * store are replaced.
+	 * 
+	 * @return number of tiles imported
+	 */
+	public long importTiles(File mbtilesFile) throws SQLException, InterruptedException {
+		SQLiteLoader.loadSQLite();
+		log.info("Importing \"" + mbtilesFile + "\" into tile store \"" + mapSource.getName() + "\"");
+		Connection conn = openConnection(mbtilesFile);
+		long count = 0;
+		try {
+			boolean cacheColumns = hasColumn(conn, "tiles", "etag");
+			String sql = SELECT_TILES + (cacheColumns ? SELECT_TILES_CACHE_COLUMNS : "") + SELECT_TILES_FROM;
+			Statement stat = conn.createStatement();
+			try {
+				ResultSet rs = stat.executeQuery(sql);
+				List<TileStoreEntry> batch = new ArrayList<TileStoreEntry>(IMPORT_BATCH_SIZE);
+				while (rs.next()) {
+					int zoom = rs.getInt(1);
+					int x = rs.getInt(2);
+					int y = SQLiteTileStore.flipY(rs.getInt(3), zoom);
+					byte[] data = rs.getBytes(4);
+					if (data == null)
+						continue;
+					long timeLastModified = -1;
+					long timeExpires = -1;
+					String eTag = null;
+					if (cacheColumns) {
+						timeLastModified = rs.getLong(5);
+						timeExpires = rs.getLong(6);
+						eTag = rs.getString(7);
+					}
+					batch.add(tileStore.createNewEntry(x, y, zoom, data, timeLastModified, timeExpires, eTag));
+					if (batch.size() >= IMPORT_BATCH_SIZE) {
+						Utilities.checkForInterruption();
+						tileStore.putTiles(batch, mapSource);
+						count += batch.size();
+						batch.clear();
+						log.debug(count + " tiles imported");
+					}
+				}
+				rs.close();
+				tileStore.putTiles(batch, mapSource);
+				count += batch.size();
+			} finally {
+				stat.close();
+			}
+		} finally {
+			SQLiteLoader.closeConnection(conn);
+		}
+		log.info(count + " tiles imported into tile store \"" + mapSource.getName() + "\"");
+		return count;
+	}
+
+	protected Connection openConnection(File mbtilesFile) throws SQLException {
+		return DriverManager.getConnection("jdbc:sqlite:/" + mbtilesFile.getAbsolutePath());
+	}
+
+	protected void writeMetadata(Connection conn) throws SQLException {
+		PreparedStatement metaStmt = conn.prepareStatement(SQLiteTileStore.INSERT_METADATA);
+		try {
+			TileImageType tileType = mapSource.getTileImageType();
+			String[][] metadata = { { "name", mapSource.getName() }, { "type", "baselayer" }, { "version", "1.1" },
+					{ "format", (tileType != null) ? tileType.getFileExt() : null },
+					{ "minzoom", Integer.toString(mapSource.getMinZoom()) },
+					{ "maxzoom", Integer.toString(mapSource.getMaxZoom()) } };
+			for (String[] entry : metadata) {
+				if (entry[1] == null)
+					continue;
+				metaStmt.setString(1, entry[0]);
+				metaStmt.setString(2, entry[1]);
+				metaStmt.executeUpdate();
+			}
+		} finally {
+			metaStmt.close();
+		}
+	}
+
+	protected static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+		Statement stat = conn.createStatement();
+		try {
+			ResultSet rs = stat.executeQuery("PRAGMA table_info(" + table + ")");
+			try {
+				while (rs.next()) {
+					if (column.equalsIgnoreCase(rs.getString("name")))
+						return true;
+				}
+				return false;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stat.close();
+		}
+	}
+}
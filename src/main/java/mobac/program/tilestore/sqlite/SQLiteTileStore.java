@@ -0,0 +1,653 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.program.tilestore.sqlite;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import mobac.exceptions.TileStoreException;
+import mobac.program.interfaces.MapSource;
+import mobac.program.model.Settings;
+import mobac.program.tilestore.BasicTileStoreEntry;
+import mobac.program.tilestore.TileStore;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.TileStoreInfo;
+import mobac.utilities.jdbc.SQLiteLoader;
+
+/**
+ * Tile store implementation that keeps the tiles of each map source in a separate SQLite database
+ * <code>sqlite-&lt;name&gt;.mbtiles</code>. The database uses the MBTiles schema (TMS tile rows) extended by the
+ * columns required for the tile expiration handling, therefore it can be opened directly by MBTiles viewers.
+ * <p>
+ * The databases are operated in WAL journal mode. New tiles are collected and written in batches of
+ * {@link #INSERT_BATCH_SIZE} tiles within one transaction. Tiles not yet written are served from the pending batch.
+ * A timer writes batches that are older than {@link #INSERT_BATCH_MAX_DELAY} when no further tiles arrive.
+ * </p>
+ */
+public class SQLiteTileStore extends TileStore {
+
+	/**
+	 * Max count of tile databases opened
+	 */
+	private static final int MAX_CONCURRENT_DATABASES = 5;
+
+	/**
+	 * Max number of tiles collected before they are written in one transaction
+	 */
+	private static final int INSERT_BATCH_SIZE = 100;
+
+	/**
+	 * Max time in milliseconds a tile is kept in the pending batch. Checked on each put and every
+	 * {@link #FLUSH_CHECK_INTERVAL} milliseconds by the flush timer.
+	 */
+	private static final long INSERT_BATCH_MAX_DELAY = 2000;
+
+	private static final long FLUSH_CHECK_INTERVAL = INSERT_BATCH_MAX_DELAY / 4;
+
+	private static final String FILE_PREFIX = "sqlite-";
+	private static final String FILE_SUFFIX = ".mbtiles";
+
+	static final String TABLE_TILES = "CREATE TABLE IF NOT EXISTS tiles (zoom_level integer, "
+			+ "tile_column integer, tile_row integer, tile_data blob, time_downloaded integer, "
+			+ "time_last_modified integer, time_expires integer, etag text)";
+	static final String INDEX_TILES = "CREATE UNIQUE INDEX IF NOT EXISTS tiles_idx ON tiles "
+			+ "(zoom_level, tile_column, tile_row)";
+	static final String TABLE_METADATA = "CREATE TABLE IF NOT EXISTS metadata (name text, value text)";
+	static final String INDEX_METADATA = "CREATE UNIQUE INDEX IF NOT EXISTS metadata_idx ON metadata (name)";
+
+	static final String INSERT_METADATA = "INSERT OR IGNORE INTO metadata (name, value) VALUES (?, ?)";
+	static final String INSERT_TILE = "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, "
+			+ "tile_data, time_downloaded, time_last_modified, time_expires, etag) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String SELECT_TILE = "SELECT tile_data, time_downloaded, time_last_modified, time_expires, "
+			+ "etag FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+	private static final String CONTAINS_TILE = "SELECT 1 FROM tiles WHERE zoom_level=? AND tile_column=? "
+			+ "AND tile_row=?";
+	private static final String SELECT_COVERAGE = "SELECT tile_column, tile_row FROM tiles WHERE zoom_level=? "
+			+ "AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+	private static final String COUNT_TILES = "SELECT COUNT(*) FROM tiles";
+
+	private Map<String, TileDatabase> tileDbMap;
+
+	private final Timer flushTimer = new Timer("SQLiteTileStoreFlush", true);
+
+	public SQLiteTileStore() throws TileStoreException {
+		super();
+		try {
+			SQLiteLoader.loadSQLite();
+		} catch (SQLException e) {
+			throw new TileStoreException(e.getMessage(), e);
+		}
+		acquireTileStoreLock();
+		tileDbMap = new TreeMap<String, TileDatabase>();
+		Runtime.getRuntime().addShutdownHook(new ShutdownThread(true));
+		flushTimer.schedule(new FlushTask(), FLUSH_CHECK_INTERVAL, FLUSH_CHECK_INTERVAL);
+	}
+
+	@Override
+	public TileStoreEntry createNewEntry(int x, int y, int zoom, byte[] data, long timeLastModified, long timeExpires,
+			String eTag) {
+		return new BasicTileStoreEntry(x, y, zoom, data, timeLastModified, timeExpires, eTag);
+	}
+
+	@Override
+	public TileStoreEntry createNewEmptyEntry(int x, int y, int zoom) {
+		long time = System.currentTimeMillis();
+		long timeExpires = time + Settings.getInstance().tileDefaultExpirationTime;
+		return new BasicTileStoreEntry(x, y, zoom, new byte[] {}, time, timeExpires, "");
+	}
+
+	private TileDatabase getTileDatabase(String storeName) throws TileStoreException {
+		if (storeName == null)
+			return null;
+		try {
+			synchronized (this) {
+				if (tileDbMap == null)
+					// Tile store has been closed already
+					return null;
+				TileDatabase db = tileDbMap.get(storeName);
+				if (db == null) {
+					cleanupDatabases();
+					db = new TileDatabase(storeName);
+					tileDbMap.put(storeName, db);
+				}
+				db.lastAccess = System.currentTimeMillis();
+				return db;
+			}
+		} catch (SQLException e) {
+			log.error("Error creating tile store db \"" + storeName + "\"", e);
+			throw new TileStoreException(e);
+		}
+	}
+
+	@Override
+	public TileStoreInfo getStoreInfo(String storeName) throws InterruptedException {
+		int tileCount = 0;
+		if (getStoreFile(storeName).isFile()) {
+			try {
+				tileCount = getTileDatabase(storeName).entryCount();
+			} catch (Exception e) {
+				log.error("", e);
+				tileCount = -1;
+			}
+		}
+		return new TileStoreInfo(getStoreSize(storeName), tileCount);
+	}
+
+	public long getStoreSize(String storeName) {
+		long size = 0;
+		for (File f : getStoreFiles(storeName))
+			size += f.length();
+		return size;
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource) throws IOException {
+		this.putTileData(tileData, x, y, zoom, mapSource, -1, -1, null);
+	}
+
+	@Override
+	public void putTileData(byte[] tileData, int x, int y, int zoom, MapSource mapSource, long timeLastModified,
+			long timeExpires, String eTag) throws IOException {
+		putTile(new BasicTileStoreEntry(x, y, zoom, tileData, timeLastModified, timeExpires, eTag), mapSource);
+	}
+
+	@Override
+	public void putTile(TileStoreEntry tile, MapSource mapSource) {
+		TileDatabase db = null;
+		try {
+			if (log.isTraceEnabled())
+				log.trace("Saved " + mapSource.getName() + " " + tile);
+			db = getTileDatabase(mapSource.getName());
+			if (db != null)
+				db.put(tile);
+		} catch (Exception e) {
+			if (db != null)
+				db.close();
+			log.error("Faild to write tile to tile store \"" + mapSource.getName() + "\"", e);
+		}
+	}
+
+	@Override
+	public TileStoreEntry getTile(int x, int y, int zoom, MapSource mapSource) {
+		TileDatabase db = null;
+		try {
+			db = getTileDatabase(mapSource.getName());
+			if (db == null)
+				return null;
+			TileStoreEntry tile = db.get(x, y, zoom);
+			if (log.isTraceEnabled()) {
+				if (tile == null)
+					log.trace("Tile store cache miss: (x,y,z)" + x + "/" + y + "/" + zoom + " " + mapSource.getName());
+				else
+					log.trace("Loaded " + mapSource.getName() + " " + tile);
+			}
+			return tile;
+		} catch (Exception e) {
+			if (db != null)
+				db.close();
+			log.error("failed to retrieve tile from tile store \"" + mapSource.getName() + "\"", e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean contains(int x, int y, int zoom, MapSource mapSource) {
+		try {
+			TileDatabase db = getTileDatabase(mapSource.getName());
+			return (db != null) && db.contains(x, y, zoom);
+		} catch (Exception e) {
+			log.error("", e);
+			return false;
+		}
+	}
+
+	@Override
+	public void prepareTileStore(MapSource mapSource) {
+		try {
+			getTileDatabase(mapSource.getName());
+		} catch (TileStoreException e) {
+		}
+	}
+
+	@Override
+	public void clearStore(String storeName) {
+		synchronized (this) {
+			if (tileDbMap != null) {
+				TileDatabase db = tileDbMap.remove(storeName);
+				if (db != null)
+					db.close(false);
+			}
+			int deleted = 0;
+			for (File f : getStoreFiles(storeName))
+				if (f.delete())
+					deleted++;
+			log.debug("Tilestore " + storeName + " cleared: " + deleted + " files deleted");
+		}
+	}
+
+	@Override
+	public String[] getAllStoreNames() {
+		File[] files = tileStoreDir.listFiles(new FileFilter() {
+
+			public boolean accept(File f) {
+				String name = f.getName();
+				return f.isFile() && name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new String[0];
+		String[] result = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			result[i] = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean storeExists(MapSource mapSource) {
+		return getStoreFile(mapSource.getName()).isFile();
+	}
+
+	@Override
+	public BufferedImage getCacheCoverage(MapSource mapSource, int zoom, Point tileNumMin, Point tileNumMax)
+			throws InterruptedException {
+		try {
+			TileDatabase db = getTileDatabase(mapSource.getName());
+			if (db == null)
+				return null;
+			return db.getCacheCoverage(zoom, tileNumMin, tileNumMax);
+		} catch (TileStoreException e) {
+			log.error("", e);
+			return null;
+		} catch (SQLException e) {
+			log.error("", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the least recently used databases if more than {@link #MAX_CONCURRENT_DATABASES} are open. Has to be
+	 * called while holding the tile store monitor.
+	 */
+	protected void cleanupDatabases() {
+		if (tileDbMap.size() < MAX_CONCURRENT_DATABASES)
+			return;
+		List<TileDatabase> list = new ArrayList<TileDatabase>(tileDbMap.values());
+		Collections.sort(list, new Comparator<TileDatabase>() {
+
+			public int compare(TileDatabase o1, TileDatabase o2) {
+				if (o1.lastAccess == o2.lastAccess)
+					return 0;
+				return (o1.lastAccess < o2.lastAccess) ? -1 : 1;
+			}
+		});
+		for (int i = 0; i < list.size() - 2; i++) {
+			TileDatabase db = list.get(i);
+			tileDbMap.remove(db.storeName);
+			db.close(false);
+		}
+	}
+
+	@Override
+	public void closeAll() {
+		closeDatabases(false);
+	}
+
+	protected void closeDatabases(boolean shutdown) {
+		log.debug("Closing all tile databases...");
+		synchronized (this) {
+			if (tileDbMap == null)
+				return;
+			for (TileDatabase db : tileDbMap.values())
+				db.close(false);
+			tileDbMap.clear();
+			if (shutdown) {
+				flushTimer.cancel();
+				tileDbMap = null;
+				releaseTileStoreLock();
+			}
+		}
+		log.debug("All tile databases has been closed");
+	}
+
+	/**
+	 * @param storeName
+	 * @return the MBTiles database file belonging to the store <code>storeName</code>
+	 */
+	protected File getStoreFile(String storeName) {
+		return new File(tileStoreDir, FILE_PREFIX + storeName + FILE_SUFFIX);
+	}
+
+	/**
+	 * @param storeName
+	 * @return the database file and the SQLite journal files belonging to the store <code>storeName</code>
+	 */
+	protected File[] getStoreFiles(String storeName) {
+		File dbFile = getStoreFile(storeName);
+		String path = dbFile.getPath();
+		return new File[] { dbFile, new File(path + "-wal"), new File(path + "-shm"), new File(path + "-journal") };
+	}
+
+	/**
+	 * MBTiles uses the TMS tiling scheme which counts tile rows from the bottom.
+	 */
+	protected static int flipY(int y, int zoom) {
+		return (1 << zoom) - 1 - y;
+	}
+
+	/**
+	 * Packs the tile coordinate into a map key for the pending batch
+	 */
+	protected static long tileKey(int x, int y, int zoom) {
+		return ((long) zoom << 56) | ((long) x << 28) | y;
+	}
+
+	private class ShutdownThread extends Thread {
+
+		private final boolean shutdown;
+
+		public ShutdownThread(boolean shutdown) {
+			super("DBShutdown");
+			this.shutdown = shutdown;
+		}
+
+		@Override
+		public void run() {
+			closeDatabases(shutdown);
+		}
+	}
+
+	/**
+	 * Writes the pending batches that have not been written by {@link TileDatabase#put(TileStoreEntry)} in time
+	 * because no further tiles have been added.
+	 */
+	private class FlushTask extends TimerTask {
+
+		@Override
+		public void run() {
+			List<TileDatabase> databases;
+			// The tile store monitor has to be acquired before the database monitor
+			synchronized (SQLiteTileStore.this) {
+				if (tileDbMap == null)
+					return;
+				databases = new ArrayList<TileDatabase>(tileDbMap.values());
+			}
+			for (TileDatabase db : databases) {
+				try {
+					db.flushExpiredBatch();
+				} catch (SQLException e) {
+					log.error("Failed to write pending tiles to tile store \"" + db.storeName + "\"", e);
+				}
+			}
+		}
+	}
+
+	protected class TileDatabase {
+
+		final String storeName;
+		final Connection conn;
+
+		final PreparedStatement insertStmt;
+		final PreparedStatement selectStmt;
+		final PreparedStatement containsStmt;
+
+		/**
+		 * Tiles written to the database with the next batch
+		 */
+		final Map<Long, TileStoreEntry> pendingTiles = new LinkedHashMap<Long, TileStoreEntry>();
+
+		long pendingSince = 0;
+
+		boolean dbClosed = false;
+
+		long lastAccess;
+
+		public TileDatabase(String storeName) throws SQLException {
+			this.storeName = storeName;
+			File dbFile = getStoreFile(storeName);
+			log.debug("Opening tile store db: \"" + dbFile + "\"");
+			lastAccess = System.currentTimeMillis();
+			String url = "jdbc:sqlite:/" + dbFile.getAbsolutePath();
+			conn = DriverManager.getConnection(url);
+			try {
+				Statement stat = conn.createStatement();
+				try {
+					try {
+						stat.execute("PRAGMA journal_mode=WAL");
+						stat.execute("PRAGMA synchronous=NORMAL");
+					} catch (SQLException e) {
+						log.warn("SQLite WAL mode not supported: " + e.getMessage());
+					}
+					stat.executeUpdate(TABLE_TILES);
+					stat.executeUpdate(INDEX_TILES);
+					stat.executeUpdate(TABLE_METADATA);
+					stat.executeUpdate(INDEX_METADATA);
+				} finally {
+					stat.close();
+				}
+				PreparedStatement metaStmt = conn.prepareStatement(INSERT_METADATA);
+				try {
+					metaStmt.setString(1, "name");
+					metaStmt.setString(2, storeName);
+					metaStmt.executeUpdate();
+					metaStmt.setString(1, "type");
+					metaStmt.setString(2, "baselayer");
+					metaStmt.executeUpdate();
+					metaStmt.setString(1, "version");
+					metaStmt.setString(2, "1.1");
+					metaStmt.executeUpdate();
+				} finally {
+					metaStmt.close();
+				}
+				insertStmt = conn.prepareStatement(INSERT_TILE);
+				selectStmt = conn.prepareStatement(SELECT_TILE);
+				containsStmt = conn.prepareStatement(CONTAINS_TILE);
+			} catch (SQLException e) {
+				SQLiteLoader.closeConnection(conn);
+				throw e;
+			}
+		}
+
+		protected void checkOpen() throws SQLException {
+			if (dbClosed)
+				throw new SQLException("Tile store db \"" + storeName + "\" has been closed");
+		}
+
+		public synchronized int entryCount() throws SQLException {
+			checkOpen();
+			flush();
+			Statement stat = conn.createStatement();
+			try {
+				ResultSet rs = stat.executeQuery(COUNT_TILES);
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				stat.close();
+			}
+		}
+
+		public synchronized void put(TileStoreEntry tile) throws SQLException {
+			checkOpen();
+			if (pendingTiles.isEmpty())
+				pendingSince = System.currentTimeMillis();
+			pendingTiles.put(tileKey(tile.getX(), tile.getY(), tile.getZoom()), tile);
+			if (pendingTiles.size() >= INSERT_BATCH_SIZE
+					|| System.currentTimeMillis() - pendingSince > INSERT_BATCH_MAX_DELAY)
+				flush();
+		}
+
+		/**
+		 * Writes the pending tiles if the oldest of them has been added more than {@link #INSERT_BATCH_MAX_DELAY}
+		 * milliseconds ago.
+		 */
+		protected synchronized void flushExpiredBatch() throws SQLException {
+			if (dbClosed || pendingTiles.isEmpty())
+				return;
+			if (System.currentTimeMillis() - pendingSince >= INSERT_BATCH_MAX_DELAY)
+				flush();
+		}
+
+		/**
+		 * Writes all pending tiles within one transaction
+		 */
+		protected synchronized void flush() throws SQLException {
+			if (pendingTiles.isEmpty())
+				return;
+			conn.setAutoCommit(false);
+			try {
+				for (TileStoreEntry tile : pendingTiles.values()) {
+					int zoom = tile.getZoom();
+					insertStmt.setInt(1, zoom);
+					insertStmt.setInt(2, tile.getX());
+					insertStmt.setInt(3, flipY(tile.getY(), zoom));
+					insertStmt.setBytes(4, tile.getData());
+					insertStmt.setLong(5, tile.getTimeDownloaded());
+					insertStmt.setLong(6, tile.getTimeLastModified());
+					insertStmt.setLong(7, tile.getTimeExpires());
+					insertStmt.setString(8, tile.geteTag());
+					insertStmt.addBatch();
+				}
+				insertStmt.executeBatch();
+				conn.commit();
+				pendingTiles.clear();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		}
+
+		public synchronized boolean contains(int x, int y, int zoom) throws SQLException {
+			checkOpen();
+			if (pendingTiles.containsKey(tileKey(x, y, zoom)))
+				return true;
+			containsStmt.setInt(1, zoom);
+			containsStmt.setInt(2, x);
+			containsStmt.setInt(3, flipY(y, zoom));
+			ResultSet rs = containsStmt.executeQuery();
+			try {
+				return rs.next();
+			} finally {
+				rs.close();
+			}
+		}
+
+		public synchronized TileStoreEntry get(int x, int y, int zoom) throws SQLException {
+			checkOpen();
+			TileStoreEntry tile = pendingTiles.get(tileKey(x, y, zoom));
+			if (tile != null)
+				return tile;
+			selectStmt.setInt(1, zoom);
+			selectStmt.setInt(2, x);
+			selectStmt.setInt(3, flipY(y, zoom));
+			ResultSet rs = selectStmt.executeQuery();
+			try {
+				if (!rs.next())
+					return null;
+				byte[] data = rs.getBytes(1);
+				if (data == null)
+					data = new byte[] {};
+				return new BasicTileStoreEntry(x, y, zoom, data, rs.getLong(2), rs.getLong(3), rs.getLong(4),
+						rs.getString(5));
+			} finally {
+				rs.close();
+			}
+		}
+
+		public synchronized BufferedImage getCacheCoverage(int zoom, Point tileNumMin, Point tileNumMax)
+				throws SQLException, InterruptedException {
+			log.debug("Loading cache coverage for region " + tileNumMin + " " + tileNumMax + " of zoom level " + zoom);
+			checkOpen();
+			flush();
+			BufferedImage image = createCoverageImage(tileNumMin, tileNumMax);
+			if (image == null)
+				return null;
+			WritableRaster raster = image.getRaster();
+			Thread t = Thread.currentThread();
+			PreparedStatement stmt = conn.prepareStatement(SELECT_COVERAGE);
+			try {
+				stmt.setInt(1, zoom);
+				stmt.setInt(2, tileNumMin.x);
+				stmt.setInt(3, tileNumMax.x);
+				stmt.setInt(4, flipY(tileNumMax.y, zoom));
+				stmt.setInt(5, flipY(tileNumMin.y, zoom));
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					int pixelx = rs.getInt(1) - tileNumMin.x;
+					int pixely = flipY(rs.getInt(2), zoom) - tileNumMin.y;
+					raster.setSample(pixelx, pixely, 0, 1);
+					if (t.isInterrupted()) {
+						log.debug("Cache coverage loading aborted");
+						throw new InterruptedException();
+					}
+				}
+				rs.close();
+			} finally {
+				stmt.close();
+			}
+			return image;
+		}
+
+		public void close() {
+			close(true);
+		}
+
+		public void close(boolean removeFromMap) {
+			// The tile store monitor has to be acquired before the database monitor
+			if (removeFromMap) {
+				synchronized (SQLiteTileStore.this) {
+					if (tileDbMap != null && tileDbMap.get(storeName) == this)
+						tileDbMap.remove(storeName);
+				}
+			}
+			synchronized (this) {
+				if (dbClosed)
+					return;
+				log.debug("Closing tile store db \"" + storeName + "\"");
+				try {
+					flush();
+				} catch (SQLException e) {
+					log.error("Failed to write " + pendingTiles.size() + " pending tiles to tile store \""
+							+ storeName + "\"", e);
+				}
+				SQLiteLoader.closeConnection(conn);
+				dbClosed = true;
+			}
+		}
+
+	}
+}
@@ -423,14 +423,16 @@ public class Utilities {
 	public static void mkDir(File dir) throws IOException {
 		if (dir.isDirectory())
 			return;
-		if (!dir.mkdir())
+		// The directory may have been created concurrently by another thread
+		if (!dir.mkdir() && !dir.isDirectory())
 			throw new IOException("Failed to create directory \"" + dir.getAbsolutePath() + "\"");
 	}
 
 	public static void mkDirs(File dir) throws IOException {
 		if (dir.isDirectory())
 			return;
-		if (dir.mkdirs())
+		// The directory may have been created concurrently by another thread
+		if (dir.mkdirs() || dir.isDirectory())
 			return;
 
 		if (Logging.isCONFIGURED())
@@ -444,7 +446,7 @@ public class Utilities {
 			Thread.sleep(100);
 		} catch (InterruptedException e) {
 		}
-		if (dir.mkdirs())
+		if (dir.mkdirs() || dir.isDirectory())
 			return;
 
 		throw new IOException("Failed to create directory \"" + dir.getAbsolutePath() + "\"");
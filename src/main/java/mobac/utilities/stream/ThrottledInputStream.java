@@ -22,16 +22,24 @@ package mobac.utilities.stream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 /**
- * The global throtteled InputStream. All downloads should pipe their data through this stream.
+ * The global throtteled InputStream. All downloads should pipe their data through this stream. The data read is
+ * charged to the global {@link TokenBucket} and optionally to a second one, e.g. of the tile server host.
  */
 public class ThrottledInputStream extends FilterInputStream {
 
 	// --- Data Field(s) ---
 
-	private static ThrottleSupport ts = new ThrottleSupport();
-	private int unused = 0;
+	/**
+	 * Maximum number of bytes read at once - limits the size of a burst exceeding the bandwidth
+	 */
+	private static final int MAX_READ_SIZE = 8192;
+
+	private static final TokenBucket globalBandwidth = new TokenBucket(0, MAX_READ_SIZE);
+
+	private final TokenBucket bandwidth;
 
 	// --- Constructor(s) ---
 
@@ -40,22 +48,66 @@ public class ThrottledInputStream extends FilterInputStream {
 	 *            {@link InputStream} with implemented/working {@link InputStream#available()} method.
 	 */
 	public ThrottledInputStream(InputStream in) {
+		this(in, null);
+	}
+
+	/**
+	 * @param in
+	 * @param bandwidth
+	 *            additional bandwidth limit in bytes per second or <code>null</code>
+	 */
+	public ThrottledInputStream(InputStream in, TokenBucket bandwidth) {
 		super(in);
+		this.bandwidth = bandwidth;
 	}
 
 	// --- Method(s) ---
 
+	/**
+	 * @param newValue
+	 *            global bandwidth limit in bytes per second, 0 = unlimited
+	 */
 	public static void setBandwidth(long newValue) {
-		ts.setBandwidth(newValue);
+		globalBandwidth.setLimit(newValue, getBurstCapacity(newValue));
 	}
 
+	/**
+	 * @param bandwidth
+	 *            bytes per second
+	 * @return burst size in bytes for a {@link TokenBucket} limiting the bandwidth: 100 ms of data but at least one
+	 *         read
+	 */
+	public static double getBurstCapacity(double bandwidth) {
+		return Math.max(bandwidth / 10, MAX_READ_SIZE);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			consume(1);
+		return b;
+	}
+
+	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		int allowedlen = ts.allocate(len);
-		if (allowedlen < len) {
-			allowedlen = Math.min(allowedlen + unused, len);
-		}
-		int read = in.read(b, off, allowedlen);
-		unused = len - read;
+		int read = in.read(b, off, Math.min(len, MAX_READ_SIZE));
+		if (read > 0)
+			consume(read);
 		return read;
 	}
+
+	/**
+	 * Blocks until the bandwidth limits allow the bytes that have been read.
+	 */
+	protected void consume(int bytes) throws InterruptedIOException {
+		try {
+			globalBandwidth.acquire(bytes);
+			if (bandwidth != null)
+				bandwidth.acquire(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+		}
+	}
 }
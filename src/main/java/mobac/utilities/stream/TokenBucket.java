@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.stream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket rate limiter with nanosecond refill resolution.
+ * <p>
+ * Instead of a token counter that is refilled periodically the bucket stores the point in time at which it will be
+ * empty. Taking tokens moves this point into the future via compare-and-set, the caller then sleeps until it has
+ * passed. Therefore callers never wait on a monitor and are not woken up in bursts at tick boundaries.
+ * </p>
+ */
+public class TokenBucket {
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Point in time ({@link System#nanoTime()}) at which all tokens taken so far have been refilled
+	 */
+	private final AtomicLong emptyTime = new AtomicLong(System.nanoTime() - TimeUnit.HOURS.toNanos(1));
+
+	/**
+	 * Tokens per second, 0 = unlimited
+	 */
+	private volatile double rate;
+
+	/**
+	 * Maximum number of tokens that can be accumulated while the bucket is not used
+	 */
+	private volatile double capacity;
+
+	/**
+	 * @param rate
+	 *            tokens per second, 0 = unlimited
+	 * @param capacity
+	 *            maximum burst size in tokens
+	 */
+	public TokenBucket(double rate, double capacity) {
+		setLimit(rate, capacity);
+	}
+
+	/**
+	 * @param rate
+	 *            tokens per second, 0 = unlimited
+	 * @param capacity
+	 *            maximum burst size in tokens
+	 */
+	public void setLimit(double rate, double capacity) {
+		if (this.rate != rate)
+			this.rate = Math.max(0, rate);
+		if (this.capacity != capacity)
+			this.capacity = Math.max(0, capacity);
+	}
+
+	public boolean isLimited() {
+		return rate > 0;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Takes the specified number of tokens from the bucket and blocks until they are available. An interrupted
+	 * caller does not return the tokens.
+	 * 
+	 * @param tokens
+	 * @throws InterruptedException
+	 */
+	public void acquire(long tokens) throws InterruptedException {
+		double r = rate;
+		if (r <= 0 || tokens <= 0)
+			return;
+		long cost = (long) (tokens * NANOS_PER_SECOND / r);
+		long capacityNanos = (long) (capacity * NANOS_PER_SECOND / r);
+		long now;
+		long newEmptyTime;
+		while (true) {
+			long oldEmptyTime = emptyTime.get();
+			now = System.nanoTime();
+			// Tokens exceeding the capacity are lost while the bucket is not used
+			long fullTime = now - capacityNanos;
+			long start = (oldEmptyTime - fullTime < 0) ? fullTime : oldEmptyTime;
+			newEmptyTime = start + cost;
+			if (emptyTime.compareAndSet(oldEmptyTime, newEmptyTime))
+				break;
+		}
+		long remaining = newEmptyTime - now;
+		while (remaining > 0) {
+			LockSupport.parkNanos(this, remaining);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			remaining = newEmptyTime - System.nanoTime();
+		}
+	}
+}
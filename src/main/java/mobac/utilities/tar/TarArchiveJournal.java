@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package mobac.utilities.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * On-disk journal of a {@link TarIndexedArchive} that records which tiles of the archive's tile area have been
+ * completely written to the archive or have been marked as store reference. It consists of a small header and two
+ * bitmaps with one bit per tile. The bitmaps are kept in memory and updated without locking. Changed parts are written
+ * in batches every {@link #FLUSH_CHANGES} changes and when the journal is closed. After a crash the journal may miss
+ * the latest changes - the affected tiles are downloaded again when the archive is resumed.
+ */
+public class TarArchiveJournal {
+
+	private static final Logger log = Logger.getLogger(TarArchiveJournal.class);
+
+	private static final int MAGIC = 0x4D544A31; // "MTJ1"
+
+	private static final int HEADER_SIZE = 6 * 4;
+
+	/**
+	 * Number of changes after which the changed parts of the bitmaps are written to the journal file
+	 */
+	private static final int FLUSH_CHANGES = 256;
+
+	/**
+	 * The bitmaps are written in blocks of 128 ints (512 bytes)
+	 */
+	private static final int BLOCK_BITS = 7;
+
+	private final File journalFile;
+	private RandomAccessFile journalRAFile;
+	private FileChannel journalChannel;
+
+	private final int xMin;
+	private final int yMin;
+	private final int width;
+
+	/**
+	 * Bitmap of the archived tiles followed by the bitmap of the store references. Bit <code>i</code> is stored in byte
+	 * <code>i / 8</code> of the journal file bitmaps, so each int holds four consecutive bytes in little endian order.
+	 */
+	private final AtomicIntegerArray bitmaps;
+
+	/**
+	 * One entry per block of {@link #bitmaps}: <code>1</code> if the block has been changed since the last flush
+	 */
+	private final AtomicIntegerArray dirtyBlocks;
+
+	private final AtomicInteger unflushedChanges = new AtomicInteger(0);
+
+	/**
+	 * Size of one bitmap in bytes
+	 */
+	private final int bitmapSize;
+
+	private final boolean resumed;
+
+	private boolean closed = false;
+
+	/**
+	 * Opens the journal file. An existing journal is only reused if it has been created for the same tile area,
+	 * otherwise it is reset.
+	 * 
+	 * @param journalFile
+	 * @param xMin
+	 * @param yMin
+	 * @param xMax
+	 *            inclusive
+	 * @param yMax
+	 *            inclusive
+	 * @throws IOException
+	 */
+	public TarArchiveJournal(File journalFile, int xMin, int yMin, int xMax, int yMax) throws IOException {
+		this.journalFile = journalFile;
+		this.xMin = xMin;
+		this.yMin = yMin;
+		this.width = xMax - xMin + 1;
+		long count = (long) width * (long) (yMax - yMin + 1);
+		bitmapSize = (int) ((count + 7) / 8);
+		byte[] bitmapBytes = new byte[2 * bitmapSize];
+		bitmaps = new AtomicIntegerArray((bitmapBytes.length + 3) / 4);
+		dirtyBlocks = new AtomicIntegerArray((bitmaps.length() >> BLOCK_BITS) + 1);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(xMin).putInt(yMin).putInt(xMax).putInt(yMax).putInt(bitmapSize);
+
+		openFile();
+		boolean valid = false;
+		try {
+			if (journalRAFile.length() == HEADER_SIZE + bitmapBytes.length) {
+				byte[] existingHeader = new byte[HEADER_SIZE];
+				journalRAFile.readFully(existingHeader);
+				if (ByteBuffer.wrap(existingHeader).equals(ByteBuffer.wrap(header.array()))) {
+					journalRAFile.readFully(bitmapBytes);
+					for (int i = 0; i < bitmapBytes.length; i++)
+						bitmaps.set(i >> 2, bitmaps.get(i >> 2) | ((bitmapBytes[i] & 0xFF) << ((i & 3) << 3)));
+					valid = true;
+				}
+			}
+			if (!valid) {
+				journalRAFile.setLength(0);
+				journalRAFile.write(header.array());
+				journalRAFile.write(bitmapBytes);
+			}
+		} catch (IOException e) {
+			journalRAFile.close();
+			throw e;
+		}
+		resumed = valid;
+		if (resumed)
+			log.debug("Resuming tile archive journal " + journalFile);
+	}
+
+	private void openFile() throws IOException {
+		journalRAFile = new RandomAccessFile(journalFile, "rw");
+		journalChannel = journalRAFile.getChannel();
+	}
+
+	/**
+	 * @return <code>true</code> if the journal has been loaded from an existing file
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	private int getIndex(int x, int y) {
+		return (y - yMin) * width + (x - xMin);
+	}
+
+	private boolean isSet(int index) {
+		return (bitmaps.get(index >> 5) & (1 << (index & 31))) != 0;
+	}
+
+	private void set(int index, boolean value) throws IOException {
+		int word = index >> 5;
+		int mask = 1 << (index & 31);
+		while (true) {
+			int current = bitmaps.get(word);
+			int updated = value ? (current | mask) : (current & ~mask);
+			if (updated == current)
+				return;
+			if (bitmaps.compareAndSet(word, current, updated))
+				break;
+		}
+		dirtyBlocks.set(word >> BLOCK_BITS, 1);
+		if (unflushedChanges.incrementAndGet() >= FLUSH_CHANGES)
+			flush();
+	}
+
+	public boolean isArchived(int x, int y) {
+		return isSet(getIndex(x, y));
+	}
+
+	public boolean isStoreReference(int x, int y) {
+		return isSet(bitmapSize * 8 + getIndex(x, y));
+	}
+
+	/**
+	 * Records that the tile has been completely written to the archive.
+	 */
+	public void setArchived(int x, int y, boolean archived) throws IOException {
+		set(getIndex(x, y), archived);
+	}
+
+	public void setStoreReference(int x, int y) throws IOException {
+		set(bitmapSize * 8 + getIndex(x, y), true);
+	}
+
+	/**
+	 * Writes all changed blocks of the bitmaps to the journal file via positional writes.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (closed)
+			return;
+		unflushedChanges.set(0);
+		int bitmapBytes = 2 * bitmapSize;
+		for (int block = 0; block < dirtyBlocks.length(); block++) {
+			if (dirtyBlocks.getAndSet(block, 0) == 0)
+				continue;
+			int firstWord = block << BLOCK_BITS;
+			int lastWord = Math.min(bitmaps.length(), firstWord + (1 << BLOCK_BITS)) - 1;
+			int pos = firstWord * 4;
+			ByteBuffer buf = ByteBuffer.allocate(Math.min(bitmapBytes, (lastWord + 1) * 4) - pos);
+			for (int i = pos; buf.hasRemaining(); i++)
+				buf.put((byte) (bitmaps.get(i >> 2) >>> ((i & 3) << 3)));
+			buf.flip();
+			try {
+				write(buf, HEADER_SIZE + pos);
+			} catch (IOException e) {
+				dirtyBlocks.set(block, 1);
+				throw e;
+			}
+		}
+	}
+
+	private void write(ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			try {
+				pos += journalChannel.write(buf, pos);
+			} catch (ClosedChannelException e) {
+				// Closed by an interrupt of the writing thread
+				log.debug("Reopening tile archive journal " + journalFile);
+				close(journalRAFile);
+				openFile();
+				throw e;
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		try {
+			flush();
+		} catch (IOException e) {
+			log.error("Failed to write tile archive journal " + journalFile + ": " + e.getMessage());
+		}
+		closed = true;
+		close(journalRAFile);
+	}
+
+	private static void close(RandomAccessFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public void delete() {
+		close();
+		if (!journalFile.delete() && journalFile.isFile())
+			journalFile.deleteOnExit();
+	}
+
+	public File getJournalFile() {
+		return journalFile;
+	}
+}
@@ -16,51 +16,133 @@
  ******************************************************************************/
 package mobac.utilities.tar;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Read access to the tiles of a tar archive written by {@link TarIndexedArchive}. Offset and length of each tile are
+ * taken from the {@link TarIndexTable}, therefore the tile data is read by one positional read without parsing the tar
+ * header. Positional reads do not modify the file pointer - multiple threads can read tiles concurrently.
+ */
 public class TarIndex {
 
 	private static final Logger log = Logger.getLogger(TarIndex.class);
 	private File tarFile;
 	private RandomAccessFile tarRAFile;
+	private volatile FileChannel tarChannel;
+	private volatile boolean closed = false;
 
 	private TarIndexTable tarIndex;
 
+	/**
+	 * Journal of the archive deleted together with it or <code>null</code>
+	 */
+	private File journalFile;
+
 	public TarIndex(File tarFile, TarIndexTable tarIndex) throws FileNotFoundException {
+		this(tarFile, tarIndex, null);
+	}
+
+	public TarIndex(File tarFile, TarIndexTable tarIndex, File journalFile) throws FileNotFoundException {
 		super();
 		this.tarFile = tarFile;
 		this.tarIndex = tarIndex;
+		this.journalFile = journalFile;
+		openChannel();
+	}
+
+	private void openChannel() throws FileNotFoundException {
 		tarRAFile = new RandomAccessFile(tarFile, "r");
+		tarChannel = tarRAFile.getChannel();
+	}
+
+	/**
+	 * An interrupt of a thread while reading closes the {@link FileChannel} for all threads. Therefore we have to
+	 * reopen the channel in such a case.
+	 * 
+	 * @param brokenChannel
+	 *            the channel that has been closed
+	 * @return the new channel
+	 * @throws IOException
+	 */
+	private synchronized FileChannel reopenChannel(FileChannel brokenChannel) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		if (tarChannel == brokenChannel) {
+			log.debug("Reopening tar file channel");
+			close(tarRAFile);
+			openChannel();
+		}
+		return tarChannel;
 	}
 
-	public byte[] getEntryContent(String entryName) throws IOException {
-		long off = tarIndex.getEntryOffset(entryName);
+	/**
+	 * @param x
+	 * @param y
+	 * @return the content of the tile entry or <code>null</code> if the tile is not present in the archive
+	 * @throws IOException
+	 */
+	public byte[] getTileContent(int x, int y) throws IOException {
+		long off = tarIndex.getEntryOffset(x, y);
 		if (off < 0)
 			return null;
-		tarRAFile.seek(off);
-		byte[] buf = new byte[512];
-		tarRAFile.readFully(buf);
-		TarHeader th = new TarHeader();
-		th.read(buf);
-		int fileSize = th.getFileSizeInt();
-		log.trace("reading file " + entryName + " off=" + off + " size=" + fileSize);
+		int fileSize = tarIndex.getEntryLength(x, y);
+		if (log.isTraceEnabled())
+			log.trace("reading tile x=" + x + " y=" + y + " off=" + off + " size=" + fileSize);
 		byte[] data = new byte[fileSize];
-		tarRAFile.readFully(data);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		// skip the tar header
+		long pos = off + 512;
+		FileChannel channel = tarChannel;
+		while (buf.hasRemaining()) {
+			int read;
+			try {
+				read = channel.read(buf, pos);
+			} catch (ClosedByInterruptException e) {
+				reopenChannel(channel);
+				throw e;
+			} catch (ClosedChannelException e) {
+				// Closed because another reading thread has been interrupted
+				channel = reopenChannel(channel);
+				continue;
+			}
+			if (read < 0)
+				throw new EOFException("Unexpected end of tar file at offset " + pos);
+			pos += read;
+		}
 		return data;
 	}
 
+	/**
+	 * @param x
+	 * @param y
+	 * @return <code>true</code> if the tile is not contained in the archive but in the tile store
+	 */
+	public boolean isStoreReference(int x, int y) {
+		return tarIndex.isStoreReference(x, y);
+	}
+
 	public int size() {
 		return tarIndex.size();
 	}
 
-	public void close() {
+	public synchronized void close() {
+		closed = true;
+		close(tarRAFile);
+	}
+
+	private static void close(RandomAccessFile file) {
 		try {
-			tarRAFile.close();
+			file.close();
 		} catch (IOException e) {
 		}
 	}
@@ -69,5 +151,9 @@ public class TarIndex {
 		close();
 		tarFile.deleteOnExit();
 		tarFile.delete();
+		if (journalFile != null) {
+			journalFile.deleteOnExit();
+			journalFile.delete();
+		}
 	}
 }
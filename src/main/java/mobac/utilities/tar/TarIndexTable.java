@@ -16,34 +16,139 @@
  ******************************************************************************/
 package mobac.utilities.tar;
 
-import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+/**
+ * Dense index of the tiles stored in a tar archive. The index covers a rectangular tile area (the tile bounds of a
+ * map) and maps the tile coordinates (x, y) directly to the TAR block index and the length of the tile entry.
+ * Therefore the memory required by the index is fixed (8 bytes per tile of the covered area) and no tile names have to
+ * be formatted or hashed for a lookup.
+ * 
+ * Additionally a tile can be marked as store reference: Such a tile is not contained in the tar archive as it can be
+ * retrieved from the tile store.
+ * 
+ * Entries can be added and read concurrently by multiple threads.
+ */
 public class TarIndexTable {
 
+	private final int xMin;
+	private final int yMin;
+	private final int width;
+	private final int height;
+
+	private static final int STORE_REFERENCE = -1;
+
 	/**
-	 * Maps tile name to TAR block index (each block has 512 bytes).
+	 * TAR block index (each block has 512 bytes) of each tile entry plus one. A value of <code>0</code> indicates that
+	 * the tile is not present in the archive, {@link #STORE_REFERENCE} marks a tile that is present in the tile store.
 	 */
-	private Hashtable<String, Integer> hashTable;
+	private final AtomicIntegerArray blockIndexes;
+
+	/**
+	 * Size in bytes of each tile entry (without tar header). Published by the following write to
+	 * {@link #blockIndexes}.
+	 */
+	private final int[] tileLengths;
+
+	private final AtomicInteger size = new AtomicInteger(0);
 
-	public TarIndexTable(int initialCapacity) {
-		hashTable = new Hashtable<String, Integer>(initialCapacity);
+	/**
+	 * @param xMin
+	 * @param yMin
+	 * @param xMax
+	 *            inclusive
+	 * @param yMax
+	 *            inclusive
+	 */
+	public TarIndexTable(int xMin, int yMin, int xMax, int yMax) {
+		this.xMin = xMin;
+		this.yMin = yMin;
+		this.width = xMax - xMin + 1;
+		this.height = yMax - yMin + 1;
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid tile bounds: x=" + xMin + "-" + xMax + " y=" + yMin + "-"
+					+ yMax);
+		long count = (long) width * (long) height;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Tile area too large: " + count + " tiles");
+		blockIndexes = new AtomicIntegerArray((int) count);
+		tileLengths = new int[(int) count];
 	}
 
-	public void addTarEntry(String filename, long streamPos) {
-		assert ((streamPos & 0x1F) == 0);
-		int tarBlockIndex = (int) (streamPos >> 9);
-		hashTable.put(filename, new Integer(tarBlockIndex));
+	private int getIndex(int x, int y) {
+		x -= xMin;
+		y -= yMin;
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return -1;
+		return y * width + x;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param streamPos
+	 *            offset of the tar header of the tile entry
+	 * @param length
+	 *            size of the tile data
+	 */
+	public void addTarEntry(int x, int y, long streamPos, int length) {
+		assert ((streamPos & 0x1FF) == 0);
+		int index = getIndex(x, y);
+		if (index < 0)
+			throw new IllegalArgumentException("Tile x=" + x + " y=" + y + " outside of the index bounds");
+		tileLengths[index] = length;
+		if (blockIndexes.getAndSet(index, (int) (streamPos >> 9) + 1) == 0)
+			size.incrementAndGet();
 	}
 
-	public long getEntryOffset(String filename) {
-		Integer tarBlockIndex = hashTable.get(filename);
-		if (tarBlockIndex == null)
+	/**
+	 * Marks the tile as present in the tile store.
+	 * 
+	 * @param x
+	 * @param y
+	 */
+	public void addStoreReference(int x, int y) {
+		int index = getIndex(x, y);
+		if (index < 0)
+			throw new IllegalArgumentException("Tile x=" + x + " y=" + y + " outside of the index bounds");
+		if (blockIndexes.getAndSet(index, STORE_REFERENCE) == 0)
+			size.incrementAndGet();
+	}
+
+	public boolean isStoreReference(int x, int y) {
+		int index = getIndex(x, y);
+		return (index >= 0) && (blockIndexes.get(index) == STORE_REFERENCE);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return offset of the tar header of the tile entry or <code>-1</code> if the tile is not present
+	 */
+	public long getEntryOffset(int x, int y) {
+		int index = getIndex(x, y);
+		if (index < 0)
+			return -1;
+		int tarBlockIndex = blockIndexes.get(index) - 1;
+		if (tarBlockIndex < 0) // not present or store reference
+			return -1;
+		return ((long) tarBlockIndex) << 9;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return size of the tile data or <code>-1</code> if the tile is not present
+	 */
+	public int getEntryLength(int x, int y) {
+		int index = getIndex(x, y);
+		if (index < 0 || blockIndexes.get(index) <= 0)
 			return -1;
-		long offset = ((long) (tarBlockIndex)) << 9;
-		return offset;
+		return tileLengths[index];
 	}
 
 	public int size() {
-		return hashTable.size();
+		return size.get();
 	}
 }
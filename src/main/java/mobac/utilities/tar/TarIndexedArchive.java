@@ -19,39 +19,276 @@ package mobac.utilities.tar;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 /**
- * Extended version of {@link TarArchive} that automatically creates
- * {@link Hashtable} with the starting offsets of every archived file.
+ * Tar archive for storing map tiles that automatically creates a {@link TarIndexTable} with the starting offsets of
+ * every tile written via {@link #writeTile(int, int, byte[])}.
+ * 
+ * The archive can be written by multiple threads concurrently without locking: Each writer reserves the file region
+ * for its tar entry (header, data and padding) by atomically advancing the archive position and then writes header and
+ * data via positional writes. The padding is not written at all - the gaps in the file are filled with zeros by the
+ * file system. Written tiles are immediately readable via {@link #getTarIndex()}. An interrupt of a writing thread
+ * closes the file channel for all threads - in that case the channel is reopened and the other writers retry.
+ * 
+ * Optionally the archive keeps a {@link TarArchiveJournal}. If the journal file already exists from an aborted run
+ * the archive is resumed: all tiles recorded in the journal are taken over and new tiles are appended.
  */
-public class TarIndexedArchive extends TarArchive {
+public class TarIndexedArchive {
+
+	private static final Logger log = Logger.getLogger(TarIndexedArchive.class);
+
+	private static final int TAR_BLOCK_SIZE = 512;
+
+	private final File tarFile;
+	private volatile RandomAccessFile tarRAFile;
+	private volatile FileChannel tarChannel;
+	private volatile boolean closed = false;
+
+	/**
+	 * Position of the next tar entry
+	 */
+	private final AtomicLong tarFilePos = new AtomicLong(0);
+
+	private final TarIndexTable tarIndex;
+
+	private final TarArchiveJournal journal;
+
+	/**
+	 * @param tarFile
+	 * @param xMin
+	 *            tile bounds of the map - see {@link TarIndexTable#TarIndexTable(int, int, int, int)}
+	 * @param yMin
+	 * @param xMax
+	 * @param yMax
+	 * @throws IOException
+	 */
+	public TarIndexedArchive(File tarFile, int xMin, int yMin, int xMax, int yMax) throws IOException {
+		this(tarFile, null, xMin, yMin, xMax, yMax);
+	}
+
+	/**
+	 * @param tarFile
+	 * @param journalFile
+	 *            file of the {@link TarArchiveJournal} or <code>null</code> for an archive without journal
+	 * @param xMin
+	 *            tile bounds of the map - see {@link TarIndexTable#TarIndexTable(int, int, int, int)}
+	 * @param yMin
+	 * @param xMax
+	 * @param yMax
+	 * @throws IOException
+	 */
+	public TarIndexedArchive(File tarFile, File journalFile, int xMin, int yMin, int xMax, int yMax)
+			throws IOException {
+		this.tarFile = tarFile;
+		tarIndex = new TarIndexTable(xMin, yMin, xMax, yMax);
+		tarRAFile = new RandomAccessFile(tarFile, "rw");
+		tarChannel = tarRAFile.getChannel();
+		try {
+			journal = (journalFile != null) ? new TarArchiveJournal(journalFile, xMin, yMin, xMax, yMax) : null;
+			if (journal != null && journal.isResumed())
+				recover(xMin, yMin, xMax, yMax);
+			else
+				tarRAFile.setLength(0);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the existing archive. Only entries recorded as completely written in the journal are
+	 * used, all other tiles have to be downloaded again. New entries are appended to the end of the archive.
+	 */
+	private void recover(int xMin, int yMin, int xMax, int yMax) throws IOException {
+		long length = tarRAFile.length();
+		byte[] header = new byte[TAR_BLOCK_SIZE];
+		long pos = 0;
+		while (pos + TAR_BLOCK_SIZE <= length) {
+			tarRAFile.seek(pos);
+			tarRAFile.readFully(header);
+			int[] entry = parseTileHeader(header);
+			if (entry == null) {
+				// End of archive marker or the header of an entry that has not been written
+				pos += TAR_BLOCK_SIZE;
+				continue;
+			}
+			int x = entry[0];
+			int y = entry[1];
+			int size = entry[2];
+			if (x >= xMin && x <= xMax && y >= yMin && y <= yMax && journal.isArchived(x, y))
+				tarIndex.addTarEntry(x, y, pos, size);
+			pos += TAR_BLOCK_SIZE + TarRecord.calculateFileSizeInTar(size);
+		}
+		tarFilePos.set((length + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE);
+		int storeReferences = 0;
+		for (int y = yMin; y <= yMax; y++) {
+			for (int x = xMin; x <= xMax; x++) {
+				if (journal.isStoreReference(x, y)) {
+					tarIndex.addStoreReference(x, y);
+					storeReferences++;
+				} else if (journal.isArchived(x, y) && tarIndex.getEntryOffset(x, y) < 0)
+					journal.setArchived(x, y, false);
+			}
+		}
+		log.info("Resumed tile archive " + tarFile + ": " + (tarIndex.size() - storeReferences)
+				+ " archived tiles, " + storeReferences + " store references");
+	}
+
+	/**
+	 * @return <code>{x, y, size}</code> of a valid tile entry header written by {@link #writeTile(int, int, byte[])}
+	 *         or <code>null</code>
+	 */
+	private static int[] parseTileHeader(byte[] header) {
+		int checksum = 0;
+		for (int i = 0; i < TAR_BLOCK_SIZE; i++)
+			checksum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+		try {
+			if (header[0] != 'x' || checksum != Integer.parseInt(new String(header, 148, 6, "US-ASCII").trim(), 8))
+				return null;
+			String name = new String(header, 0, 100, "US-ASCII");
+			name = name.substring(0, name.indexOf(0));
+			int yPos = name.indexOf('y');
+			int x = Integer.parseInt(name.substring(1, yPos));
+			int y = Integer.parseInt(name.substring(yPos + 1));
+			int size = Integer.parseInt(new String(header, 124, 12, "US-ASCII").trim(), 8);
+			return new int[] { x, y, size };
+		} catch (Exception e) {
+			return null;
+		}
+	}
 
-	private TarIndexTable tarIndex;
+	public long getTarFilePos() {
+		return tarFilePos.get();
+	}
+
+	/**
+	 * Writes the tile data as new tar entry and adds it to the index. This method is thread safe.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param tileData
+	 * @throws IOException
+	 */
+	public void writeTile(int x, int y, byte[] tileData) throws IOException {
+		byte[] header = new TarHeader("x" + x + "y" + y, tileData.length, false).getBytes();
+		int entrySize = TAR_BLOCK_SIZE + TarRecord.calculateFileSizeInTar(tileData.length);
+		long entryPos = tarFilePos.getAndAdd(entrySize);
+		write(header, entryPos);
+		write(tileData, entryPos + TAR_BLOCK_SIZE);
+		tarIndex.addTarEntry(x, y, entryPos, tileData.length);
+		if (journal != null)
+			journal.setArchived(x, y, true);
+	}
 
-	public TarIndexedArchive(File tarFile, int approxFileCount) throws IOException {
-		super(tarFile, null);
-		tarIndex = new TarIndexTable(approxFileCount);
+	/**
+	 * @return <code>true</code> if the tile has been written to the archive or added as store reference - either in
+	 *         this run or in a resumed run
+	 */
+	public boolean containsTile(int x, int y) {
+		return tarIndex.getEntryOffset(x, y) >= 0 || tarIndex.isStoreReference(x, y);
 	}
 
-	@Override
-	protected void writeTarHeader(TarHeader th) throws IOException {
-		long streamPos = getTarFilePos();
-		tarIndex.addTarEntry(th.getFileName(), streamPos);
-		super.writeTarHeader(th);
+	/**
+	 * Adds a tile to the index that is not written to the archive as it is available in the tile store. This method is
+	 * thread safe.
+	 * 
+	 * @param x
+	 * @param y
+	 * @throws IOException
+	 * @see TarIndex#isStoreReference(int, int)
+	 */
+	public void addStoreReference(int x, int y) throws IOException {
+		tarIndex.addStoreReference(x, y);
+		if (journal != null)
+			journal.setStoreReference(x, y);
 	}
 
+	private void write(byte[] data, long pos) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		FileChannel channel = tarChannel;
+		while (buf.hasRemaining()) {
+			try {
+				pos += channel.write(buf, pos);
+			} catch (ClosedByInterruptException e) {
+				reopenChannel(channel);
+				throw e;
+			} catch (ClosedChannelException e) {
+				// Closed because another writing thread has been interrupted
+				channel = reopenChannel(channel);
+			}
+		}
+	}
+
+	/**
+	 * @param brokenChannel
+	 *            the channel that has been closed by an interrupt
+	 * @return the new channel
+	 * @throws IOException
+	 */
+	private synchronized FileChannel reopenChannel(FileChannel brokenChannel) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		if (tarChannel == brokenChannel) {
+			log.debug("Reopening tar file channel");
+			try {
+				tarRAFile.close();
+			} catch (IOException e) {
+			}
+			tarRAFile = new RandomAccessFile(tarFile, "rw");
+			tarChannel = tarRAFile.getChannel();
+		}
+		return tarChannel;
+	}
+
+	/**
+	 * Must only be called after all tiles have been written.
+	 * 
+	 * @throws IOException
+	 */
+	public void writeEndofArchive() throws IOException {
+		write(new byte[2 * TAR_BLOCK_SIZE], tarFilePos.getAndAdd(2 * TAR_BLOCK_SIZE));
+	}
+
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		try {
+			tarRAFile.close();
+		} catch (IOException e) {
+		}
+		if (journal != null)
+			journal.close();
+	}
+
+	/**
+	 * Deletes the archive and its journal
+	 */
 	public void delete() {
 		if (tarFile != null) {
 			boolean b = tarFile.delete();
 			if (!b && tarFile.isFile())
 				tarFile.deleteOnExit();
 		}
+		if (journal != null)
+			journal.delete();
+	}
+
+	public File getTarFile() {
+		return tarFile;
 	}
 
 	public TarIndex getTarIndex() {
 		try {
-			return new TarIndex(tarFile, tarIndex);
+			return new TarIndex(tarFile, tarIndex, (journal != null) ? journal.getJournalFile() : null);
 		} catch (FileNotFoundException e) {
 			// should never happen
 			return null;
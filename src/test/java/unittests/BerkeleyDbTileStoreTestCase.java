@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.mapsources.impl.LocalhostTestSource;
+import mobac.program.interfaces.MapSource;
+import mobac.program.model.Settings;
+import mobac.program.model.TileImageType;
+import mobac.program.tilestore.TileStoreEntry;
+import mobac.program.tilestore.berkeleydb.BerkeleyDbTileStore;
+import mobac.program.tilestore.berkeleydb.TileDbBlob;
+import mobac.program.tilestore.berkeleydb.TileStoreSweeper;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.StoreConfig;
+
+/**
+ * Tests the write queue and the deduplication of identical tile data in the {@link BerkeleyDbTileStore}. Each test
+ * uses a new tile store in a temporary directory. The stored {@link TileDbBlob}s are checked by opening the database
+ * directly after all tile databases have been closed.
+ */
+public class BerkeleyDbTileStoreTestCase extends TestCase {
+
+	private static final byte[] DATA_A = new byte[] { 1, 2, 3, 4 };
+	private static final byte[] DATA_B = new byte[] { 5, 6, 7, 8, 9 };
+
+	private final MapSource mapSource = new LocalhostTestSource("Dedup test", TileImageType.PNG);
+
+	private File tileStoreDir;
+	private String oldTileStoreDirectory;
+	private long oldTileMaxExpirationTime;
+	private BerkeleyDbTileStore tileStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		tileStoreDir = File.createTempFile("tilestore", "");
+		tileStoreDir.delete();
+		Settings s = Settings.getInstance();
+		oldTileStoreDirectory = s.directories.tileStoreDirectory;
+		oldTileMaxExpirationTime = s.tileMaxExpirationTime;
+		s.directories.tileStoreDirectory = tileStoreDir.getAbsolutePath();
+		tileStore = new BerkeleyDbTileStore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		tileStore.clearStore(mapSource.getName());
+		Settings s = Settings.getInstance();
+		s.directories.tileStoreDirectory = oldTileStoreDirectory;
+		s.tileMaxExpirationTime = oldTileMaxExpirationTime;
+		File[] files = tileStoreDir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		tileStoreDir.delete();
+	}
+
+	public void testReadPendingTiles() throws Exception {
+		// More tiles than fit into the write queue
+		int count = 3000;
+		for (int x = 0; x < count; x++) {
+			tileStore.putTileData(createData(x), x, 0, 0, mapSource);
+			TileStoreEntry tile = tileStore.getTile(x, 0, 0, mapSource);
+			assertNotNull(tile);
+			assertEquals(x, readData(tile.getData()));
+			assertTrue(tileStore.contains(x, 0, 0, mapSource));
+		}
+		tileStore.closeAll();
+
+		assertEquals(count, tileStore.getStoreInfo(mapSource.getName()).getTileCount());
+		for (int x = 0; x < count; x++)
+			assertEquals(x, readData(tileStore.getTile(x, 0, 0, mapSource).getData()));
+		tileStore.closeAll();
+		assertEquals(count, readBlobs().size());
+	}
+
+	public void testLatestVersionWins() throws Exception {
+		int count = 3000;
+		for (int i = 0; i < count; i++) {
+			tileStore.putTileData(createData(i), 0, 0, 0, mapSource);
+			assertEquals(i, readData(tileStore.getTile(0, 0, 0, mapSource).getData()));
+		}
+		tileStore.closeAll();
+
+		assertEquals(count - 1, readData(tileStore.getTile(0, 0, 0, mapSource).getData()));
+		assertEquals(1, tileStore.getStoreInfo(mapSource.getName()).getTileCount());
+		tileStore.closeAll();
+		Map<String, Integer> blobs = readBlobs();
+		assertEquals(1, blobs.size());
+		assertEquals(Integer.valueOf(1), blobs.get(DigestUtils.shaHex(createData(count - 1))));
+	}
+
+	public void testOverwriteWithSameData() throws Exception {
+		tileStore.putTileData(DATA_A, 0, 0, 0, mapSource);
+		tileStore.putTileData(DATA_A, 1, 0, 0, mapSource);
+		tileStore.closeAll();
+		tileStore.putTileData(DATA_A, 0, 0, 0, mapSource);
+		tileStore.closeAll();
+
+		Map<String, Integer> blobs = readBlobs();
+		assertEquals(1, blobs.size());
+		assertEquals(Integer.valueOf(2), blobs.get(DigestUtils.shaHex(DATA_A)));
+		assertEquals(2, tileStore.getStoreInfo(mapSource.getName()).getTileCount());
+	}
+
+	public void testOverwriteWithNewData() throws Exception {
+		tileStore.putTileData(DATA_A, 0, 0, 0, mapSource);
+		tileStore.closeAll();
+		tileStore.putTileData(DATA_B, 0, 0, 0, mapSource);
+		tileStore.closeAll();
+
+		Map<String, Integer> blobs = readBlobs();
+		assertEquals(1, blobs.size());
+		assertEquals(Integer.valueOf(1), blobs.get(DigestUtils.shaHex(DATA_B)));
+		TileStoreEntry tile = tileStore.getTile(0, 0, 0, mapSource);
+		assertNotNull(tile);
+		assertEquals(DATA_B.length, tile.getData().length);
+	}
+
+	public void testDeleteLastReference() throws Exception {
+		tileStore.putTileData(DATA_A, 0, 0, 0, mapSource);
+		tileStore.closeAll();
+		Thread.sleep(200);
+		long deletedBefore = System.currentTimeMillis();
+		Thread.sleep(200);
+		tileStore.putTileData(DATA_A, 1, 0, 0, mapSource);
+		tileStore.putTileData(DATA_B, 2, 0, 0, mapSource);
+		tileStore.closeAll();
+
+		// Reopen the database for the sweeper
+		assertNotNull(tileStore.getTile(0, 0, 0, mapSource));
+		Sweeper sweeper = new Sweeper(tileStore);
+		Settings s = Settings.getInstance();
+		s.tileMaxExpirationTime = System.currentTimeMillis() - deletedBefore;
+		sweeper.sweep();
+		assertNull(tileStore.getTile(0, 0, 0, mapSource));
+		assertNotNull(tileStore.getTile(1, 0, 0, mapSource));
+		tileStore.closeAll();
+
+		Map<String, Integer> blobs = readBlobs();
+		assertEquals(2, blobs.size());
+		assertEquals(Integer.valueOf(1), blobs.get(DigestUtils.shaHex(DATA_A)));
+		assertEquals(Integer.valueOf(1), blobs.get(DigestUtils.shaHex(DATA_B)));
+
+		// Deletes all tiles
+		assertNotNull(tileStore.getTile(1, 0, 0, mapSource));
+		s.tileMaxExpirationTime = -60000;
+		sweeper.sweep();
+		tileStore.closeAll();
+		assertEquals(0, readBlobs().size());
+		assertEquals(0, tileStore.getStoreInfo(mapSource.getName()).getTileCount());
+	}
+
+	private static byte[] createData(int value) {
+		return new byte[] { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+	}
+
+	private static int readData(byte[] data) {
+		assertEquals(4, data.length);
+		return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+	}
+
+	/**
+	 * @return reference count of each blob by its hash
+	 */
+	private Map<String, Integer> readBlobs() throws Exception {
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		envConfig.setReadOnly(true);
+		Environment env = new Environment(new File(tileStoreDir, "db-" + mapSource.getName()), envConfig);
+		try {
+			StoreConfig storeConfig = new StoreConfig();
+			storeConfig.setReadOnly(true);
+			EntityStore store = new EntityStore(env, "TilesEntityStore", storeConfig);
+			try {
+				Map<String, Integer> blobs = new HashMap<String, Integer>();
+				EntityCursor<TileDbBlob> cursor = store.getPrimaryIndex(String.class, TileDbBlob.class).entities();
+				try {
+					for (TileDbBlob blob : cursor)
+						blobs.put(blob.getHash(), blob.getRefCount());
+				} finally {
+					cursor.close();
+				}
+				return blobs;
+			} finally {
+				store.close();
+			}
+		} finally {
+			env.close();
+		}
+	}
+
+	/**
+	 * Executes a complete sweep of the test store in the calling thread. Never started as thread.
+	 */
+	private class Sweeper extends TileStoreSweeper {
+
+		public Sweeper(BerkeleyDbTileStore tileStore) {
+			super(tileStore);
+		}
+
+		public void sweep() {
+			sweepStep(mapSource.getName());
+		}
+
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(BerkeleyDbTileStoreTestCase.class);
+	}
+
+}
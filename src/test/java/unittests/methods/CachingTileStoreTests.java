@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.program.tilestore.BasicTileStoreEntry;
+import mobac.program.tilestore.CachingTileStore;
+import mobac.program.tilestore.TileStoreEntry;
+import unittests.methods.CachingTileStoreTests.CacheAccess.ShardTester;
+
+/**
+ * Tests the LRU shards of {@link CachingTileStore}. The shards are tested directly as creating a tile store requires
+ * the application settings.
+ */
+public class CachingTileStoreTests extends TestCase {
+
+	private static final int TILE_SIZE = 1000;
+
+	/**
+	 * Size of a cache entry including the estimated overhead
+	 */
+	private static final int ENTRY_SIZE = TILE_SIZE + 128;
+
+	public void testLeastRecentlyUsedEviction() {
+		ShardTester shard = new ShardTester(2 * ENTRY_SIZE);
+		shard.put(0);
+		shard.put(1);
+		assertEquals(2 * ENTRY_SIZE, shard.getBytes());
+
+		// Accessing tile 0 makes tile 1 the least recently used one
+		assertTrue(shard.get(0));
+		shard.put(2);
+		assertTrue(shard.get(0));
+		assertFalse(shard.get(1));
+		assertTrue(shard.get(2));
+		assertEquals(2 * ENTRY_SIZE, shard.getBytes());
+	}
+
+	public void testSizeLimit() {
+		ShardTester shard = new ShardTester(10 * ENTRY_SIZE + ENTRY_SIZE / 2);
+		for (int x = 0; x < 100; x++)
+			shard.put(x);
+		assertEquals(10 * ENTRY_SIZE, shard.getBytes());
+		for (int x = 90; x < 100; x++)
+			assertTrue(shard.get(x));
+		assertFalse(shard.get(89));
+
+		// Tiles larger than the shard are never cached
+		ShardTester smallShard = new ShardTester(TILE_SIZE);
+		smallShard.put(0);
+		assertFalse(smallShard.get(0));
+		assertEquals(0, smallShard.getBytes());
+	}
+
+	public void testRemove() {
+		ShardTester shard = new ShardTester(10 * ENTRY_SIZE);
+		shard.put(0);
+		shard.put(1);
+		shard.remove(0);
+		assertFalse(shard.get(0));
+		assertTrue(shard.get(1));
+		assertEquals(ENTRY_SIZE, shard.getBytes());
+
+		shard.removeStore("Other");
+		assertTrue(shard.get(1));
+		shard.removeStore(ShardTester.STORE_NAME);
+		assertFalse(shard.get(1));
+		assertEquals(0, shard.getBytes());
+	}
+
+	public void testConcurrentRemove() {
+		ShardTester shard = new ShardTester(10 * ENTRY_SIZE);
+		// A tile loaded before it has been removed must not be cached
+		long loadVersion = shard.getVersion();
+		shard.remove(0);
+		shard.put(0, loadVersion);
+		assertFalse(shard.get(0));
+		shard.put(0, shard.getVersion());
+		assertTrue(shard.get(0));
+	}
+
+	public void testEntryCopy() {
+		byte[] data = new byte[TILE_SIZE];
+		TileStoreEntry tile = new BasicTileStoreEntry(1, 2, 3, data, 100, 200, 300, "tag");
+		TileStoreEntry copy = tile.copy();
+		assertEquals(1, copy.getX());
+		assertEquals(2, copy.getY());
+		assertEquals(3, copy.getZoom());
+		assertSame(data, copy.getData());
+		assertEquals(100, copy.getTimeDownloaded());
+		assertEquals(200, copy.getTimeLastModified());
+		assertEquals(300, copy.getTimeExpires());
+		assertEquals("tag", copy.geteTag());
+
+		// Updating the copy handed out by the cache must not change the cached entry
+		copy.update(400);
+		assertEquals(300, tile.getTimeExpires());
+		assertEquals(100, tile.getTimeDownloaded());
+	}
+
+	/**
+	 * Gives access to the shard implementation of {@link CachingTileStore}. Never instantiated.
+	 */
+	protected static class CacheAccess extends CachingTileStore {
+
+		private CacheAccess() {
+			super(null, 0);
+		}
+
+		protected static class ShardTester {
+
+			protected static final String STORE_NAME = "Test";
+
+			private final Shard shard;
+
+			public ShardTester(long maxBytes) {
+				shard = new Shard(maxBytes);
+			}
+
+			public void put(int x) {
+				put(x, shard.getVersion());
+			}
+
+			public void put(int x, long loadVersion) {
+				TileStoreEntry tile = new BasicTileStoreEntry(x, 0, 0, new byte[TILE_SIZE], 0, 0, null);
+				shard.put(new CacheKey(STORE_NAME, x, 0, 0), tile, loadVersion);
+			}
+
+			public boolean get(int x) {
+				return shard.get(new CacheKey(STORE_NAME, x, 0, 0)) != null;
+			}
+
+			public void remove(int x) {
+				shard.remove(new CacheKey(STORE_NAME, x, 0, 0));
+			}
+
+			public void removeStore(String storeName) {
+				shard.removeStore(storeName);
+			}
+
+			public long getBytes() {
+				return shard.getBytes();
+			}
+
+			public long getVersion() {
+				return shard.getVersion();
+			}
+
+		}
+
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(CachingTileStoreTests.class);
+	}
+
+}
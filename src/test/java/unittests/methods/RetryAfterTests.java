@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.exceptions.DownloadFailedException;
+
+/**
+ * Tests the parsing of the <code>Retry-After</code> header in {@link DownloadFailedException#getRetryAfter}
+ */
+public class RetryAfterTests extends TestCase {
+
+	public void testSeconds() throws IOException {
+		assertEquals(120000, getRetryAfter("120"));
+		assertEquals(5000, getRetryAfter(" 5 "));
+		assertEquals(0, getRetryAfter("0"));
+		assertEquals(0, getRetryAfter("-10"));
+	}
+
+	public void testHttpDate() throws IOException {
+		long delay = getRetryAfter(formatHttpDate(System.currentTimeMillis() + 120000));
+		// The HTTP date has a resolution of one second
+		assertTrue("Delay: " + delay, delay > 115000 && delay <= 120000);
+
+		// A date in the past allows an immediate retry
+		assertEquals(0, getRetryAfter(formatHttpDate(System.currentTimeMillis() - 60000)));
+	}
+
+	public void testMissingOrInvalid() throws IOException {
+		assertEquals(-1, getRetryAfter(null));
+		assertEquals(-1, getRetryAfter("soon"));
+		assertEquals(-1, getRetryAfter(""));
+	}
+
+	private static String formatHttpDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+
+	private static long getRetryAfter(String headerValue) throws IOException {
+		return DownloadFailedException.getRetryAfter(new RetryAfterConnection(headerValue));
+	}
+
+	/**
+	 * Connection that only provides the <code>Retry-After</code> header
+	 */
+	protected static class RetryAfterConnection extends HttpURLConnection {
+
+		private final String retryAfter;
+
+		public RetryAfterConnection(String retryAfter) throws IOException {
+			super(new URL("http://localhost/"));
+			this.retryAfter = retryAfter;
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			if ("Retry-After".equalsIgnoreCase(name))
+				return retryAfter;
+			return null;
+		}
+
+		@Override
+		public void connect() throws IOException {
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(RetryAfterTests.class);
+	}
+
+}
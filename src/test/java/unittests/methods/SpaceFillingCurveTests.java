@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.program.download.jobenumerators.DownloadJobOrder;
+import mobac.program.download.jobenumerators.SpaceFillingCurve;
+
+public class SpaceFillingCurveTests extends TestCase {
+
+	private static final DownloadJobOrder[] CURVES = { DownloadJobOrder.HILBERT, DownloadJobOrder.Z_ORDER };
+
+	private static List<Point> enumerate(DownloadJobOrder order, int xMin, int yMin, int xMax, int yMax) {
+		List<Point> tiles = new ArrayList<Point>();
+		SpaceFillingCurve curve = new SpaceFillingCurve(order, xMin, yMin, xMax, yMax);
+		while (curve.next())
+			tiles.add(new Point(curve.getX(), curve.getY()));
+		return tiles;
+	}
+
+	public void testAllTilesOnce() {
+		int[][] ranges = { { 0, 0, 0, 0 }, { 0, 0, 15, 15 }, { 3, 5, 40, 29 }, { 1000, 7, 1000, 300 },
+				{ 65530, 131000, 65600, 131010 } };
+		for (DownloadJobOrder order : CURVES) {
+			for (int[] r : ranges) {
+				List<Point> tiles = enumerate(order, r[0], r[1], r[2], r[3]);
+				assertEquals((r[2] - r[0] + 1) * (r[3] - r[1] + 1), tiles.size());
+				HashSet<Point> unique = new HashSet<Point>(tiles);
+				assertEquals(tiles.size(), unique.size());
+				for (Point p : tiles) {
+					assertTrue(p.x >= r[0] && p.x <= r[2]);
+					assertTrue(p.y >= r[1] && p.y <= r[3]);
+				}
+			}
+		}
+	}
+
+	public void testHilbertNeighbours() {
+		List<Point> tiles = enumerate(DownloadJobOrder.HILBERT, 0, 0, 31, 31);
+		for (int i = 1; i < tiles.size(); i++) {
+			Point a = tiles.get(i - 1);
+			Point b = tiles.get(i);
+			assertEquals(1, Math.abs(a.x - b.x) + Math.abs(a.y - b.y));
+		}
+	}
+
+	public void testZOrder() {
+		List<Point> tiles = enumerate(DownloadJobOrder.Z_ORDER, 0, 0, 3, 3);
+		assertEquals(new Point(0, 0), tiles.get(0));
+		assertEquals(new Point(1, 0), tiles.get(1));
+		assertEquals(new Point(0, 1), tiles.get(2));
+		assertEquals(new Point(1, 1), tiles.get(3));
+		assertEquals(new Point(2, 0), tiles.get(4));
+		assertEquals(new Point(3, 3), tiles.get(15));
+	}
+
+	/**
+	 * The tiles of each aligned 8x8 meta tile have to be enumerated without interruption
+	 */
+	public void testMetaTileLocality() {
+		for (DownloadJobOrder order : CURVES) {
+			List<Point> tiles = enumerate(order, 3, 5, 40, 29);
+			HashSet<Point> finished = new HashSet<Point>();
+			Point current = null;
+			for (int i = 0; i < tiles.size(); i++) {
+				Point metaTile = new Point(tiles.get(i).x / 8, tiles.get(i).y / 8);
+				if (!metaTile.equals(current)) {
+					assertFalse(order + " " + metaTile, finished.contains(metaTile));
+					if (current != null)
+						finished.add(current);
+					current = metaTile;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(SpaceFillingCurveTests.class);
+	}
+
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.utilities.tar.TarArchiveJournal;
+
+public class TarArchiveJournalTests extends TestCase {
+
+	private File journalFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		journalFile = File.createTempFile("journal", ".mtj");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		journalFile.delete();
+	}
+
+	public void testResume() throws IOException {
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 10, 20, 19, 29);
+		assertFalse(journal.isResumed());
+		journal.setArchived(10, 20, true);
+		journal.setArchived(19, 29, true);
+		journal.setArchived(15, 25, true);
+		journal.setArchived(15, 25, false);
+		journal.setStoreReference(11, 20);
+		journal.close();
+
+		journal = new TarArchiveJournal(journalFile, 10, 20, 19, 29);
+		assertTrue(journal.isResumed());
+		assertTrue(journal.isArchived(10, 20));
+		assertTrue(journal.isArchived(19, 29));
+		assertFalse(journal.isArchived(15, 25));
+		assertFalse(journal.isArchived(11, 20));
+		assertTrue(journal.isStoreReference(11, 20));
+		assertFalse(journal.isStoreReference(10, 20));
+		journal.close();
+	}
+
+	public void testManyChanges() throws IOException {
+		// Several bitmap blocks and automatic flushes
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 0, 0, 99, 99);
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 100; x++) {
+				if ((x + y) % 3 == 0)
+					journal.setArchived(x, y, true);
+				else if ((x + y) % 3 == 1)
+					journal.setStoreReference(x, y);
+			}
+		}
+		journal.close();
+
+		journal = new TarArchiveJournal(journalFile, 0, 0, 99, 99);
+		assertTrue(journal.isResumed());
+		for (int y = 0; y < 100; y++) {
+			for (int x = 0; x < 100; x++) {
+				assertEquals((x + y) % 3 == 0, journal.isArchived(x, y));
+				assertEquals((x + y) % 3 == 1, journal.isStoreReference(x, y));
+			}
+		}
+		journal.close();
+	}
+
+	public void testDifferentTileArea() throws IOException {
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 0, 0, 7, 7);
+		journal.setArchived(1, 1, true);
+		journal.close();
+
+		// Same journal size but different tile area
+		journal = new TarArchiveJournal(journalFile, 1, 1, 8, 8);
+		assertFalse(journal.isResumed());
+		assertFalse(journal.isArchived(1, 1));
+		journal.close();
+	}
+
+	public void testTruncatedJournal() throws IOException {
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 0, 0, 99, 99);
+		journal.setArchived(1, 1, true);
+		journal.close();
+
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		file.setLength(file.length() - 1);
+		file.close();
+
+		journal = new TarArchiveJournal(journalFile, 0, 0, 99, 99);
+		assertFalse(journal.isResumed());
+		assertFalse(journal.isArchived(1, 1));
+		journal.close();
+	}
+
+	public void testDelete() throws IOException {
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 0, 0, 1, 1);
+		journal.setArchived(0, 0, true);
+		journal.delete();
+		assertFalse(journalFile.exists());
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TarArchiveJournalTests.class);
+	}
+
+}
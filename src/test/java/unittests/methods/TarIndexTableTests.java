@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.utilities.tar.TarIndexTable;
+
+public class TarIndexTableTests extends TestCase {
+
+	public void testEntries() {
+		TarIndexTable index = new TarIndexTable(100, 200, 109, 204);
+		assertEquals(0, index.size());
+		index.addTarEntry(100, 200, 0, 1234);
+		index.addTarEntry(109, 204, 1024, 5);
+		assertEquals(2, index.size());
+		assertEquals(0, index.getEntryOffset(100, 200));
+		assertEquals(1234, index.getEntryLength(100, 200));
+		assertEquals(1024, index.getEntryOffset(109, 204));
+		assertEquals(5, index.getEntryLength(109, 204));
+
+		// Missing tiles and tiles outside of the bounds
+		assertEquals(-1, index.getEntryOffset(101, 200));
+		assertEquals(-1, index.getEntryLength(101, 200));
+		assertEquals(-1, index.getEntryOffset(99, 200));
+		assertEquals(-1, index.getEntryOffset(100, 205));
+		assertEquals(-1, index.getEntryLength(110, 204));
+
+		// Replacing an entry does not change the size
+		index.addTarEntry(100, 200, 2048, 99);
+		assertEquals(2, index.size());
+		assertEquals(2048, index.getEntryOffset(100, 200));
+		assertEquals(99, index.getEntryLength(100, 200));
+	}
+
+	public void testLargeOffset() {
+		TarIndexTable index = new TarIndexTable(0, 0, 0, 0);
+		long offset = 5L << 30;
+		index.addTarEntry(0, 0, offset, 100);
+		assertEquals(offset, index.getEntryOffset(0, 0));
+	}
+
+	public void testStoreReferences() {
+		TarIndexTable index = new TarIndexTable(0, 0, 3, 3);
+		index.addStoreReference(1, 2);
+		assertEquals(1, index.size());
+		assertTrue(index.isStoreReference(1, 2));
+		assertFalse(index.isStoreReference(2, 1));
+		assertFalse(index.isStoreReference(4, 4));
+		assertEquals(-1, index.getEntryOffset(1, 2));
+		assertEquals(-1, index.getEntryLength(1, 2));
+
+		// A tile written to the archive is no store reference anymore
+		index.addTarEntry(1, 2, 512, 10);
+		assertEquals(1, index.size());
+		assertFalse(index.isStoreReference(1, 2));
+		assertEquals(512, index.getEntryOffset(1, 2));
+	}
+
+	public void testInvalidBounds() {
+		try {
+			new TarIndexTable(10, 0, 9, 0);
+			fail("Invalid bounds have been accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new TarIndexTable(0, 0, 99999, 99999);
+			fail("Too large tile area has been accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		TarIndexTable index = new TarIndexTable(0, 0, 1, 1);
+		try {
+			index.addTarEntry(2, 0, 0, 1);
+			fail("Tile outside of the bounds has been accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TarIndexTableTests.class);
+	}
+
+}
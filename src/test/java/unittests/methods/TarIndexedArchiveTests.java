@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.utilities.tar.TarArchiveJournal;
+import mobac.utilities.tar.TarIndex;
+import mobac.utilities.tar.TarIndexedArchive;
+
+public class TarIndexedArchiveTests extends TestCase {
+
+	private File tarFile;
+	private File journalFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		tarFile = File.createTempFile("archive", ".tar");
+		journalFile = File.createTempFile("journal", ".mtj");
+		journalFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		tarFile.delete();
+		journalFile.delete();
+	}
+
+	public void testResume() throws IOException {
+		TarIndexedArchive archive = openArchive();
+		archive.writeTile(10, 20, createData(10, 100));
+		archive.writeTile(11, 20, createData(11, 600));
+		archive.writeTile(12, 20, createData(12, 512));
+		archive.addStoreReference(13, 20);
+		// Aborted without writing the end of archive marker
+		archive.close();
+
+		archive = openArchive();
+		assertTrue(archive.containsTile(10, 20));
+		assertTrue(archive.containsTile(11, 20));
+		assertTrue(archive.containsTile(12, 20));
+		assertTrue(archive.containsTile(13, 20));
+		assertFalse(archive.containsTile(14, 20));
+		archive.writeTile(14, 20, createData(14, 1000));
+		archive.writeEndofArchive();
+		archive.close();
+
+		TarIndex index = archive.getTarIndex();
+		try {
+			assertEquals(5, index.size());
+			assertTrue(Arrays.equals(createData(10, 100), index.getTileContent(10, 20)));
+			assertTrue(Arrays.equals(createData(11, 600), index.getTileContent(11, 20)));
+			assertTrue(Arrays.equals(createData(12, 512), index.getTileContent(12, 20)));
+			assertTrue(index.isStoreReference(13, 20));
+			assertNull(index.getTileContent(13, 20));
+			assertTrue(Arrays.equals(createData(14, 1000), index.getTileContent(14, 20)));
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testResumeIncompleteArchive() throws IOException {
+		TarIndexedArchive archive = openArchive();
+		archive.writeTile(10, 20, createData(10, 100));
+		archive.writeTile(11, 20, createData(11, 700));
+		archive.close();
+
+		// The last tile has not been recorded in the journal and the region of another tile has been reserved but
+		// not written when the download has been aborted
+		TarArchiveJournal journal = new TarArchiveJournal(journalFile, 10, 20, 19, 29);
+		journal.setArchived(11, 20, false);
+		journal.close();
+		RandomAccessFile raf = new RandomAccessFile(tarFile, "rw");
+		long reservedEnd = raf.length() + 1000;
+		raf.setLength(reservedEnd);
+		raf.close();
+
+		archive = openArchive();
+		assertTrue(archive.containsTile(10, 20));
+		assertFalse(archive.containsTile(11, 20));
+		assertTrue(archive.getTarFilePos() >= reservedEnd);
+		archive.writeTile(11, 20, createData(11, 300));
+		archive.close();
+
+		// A second resume finds the tile written again
+		archive = openArchive();
+		archive.close();
+		TarIndex index = archive.getTarIndex();
+		try {
+			assertEquals(2, index.size());
+			assertTrue(Arrays.equals(createData(10, 100), index.getTileContent(10, 20)));
+			assertTrue(Arrays.equals(createData(11, 300), index.getTileContent(11, 20)));
+		} finally {
+			index.close();
+		}
+	}
+
+	public void testNoResumeWithoutJournal() throws IOException {
+		TarIndexedArchive archive = new TarIndexedArchive(tarFile, 10, 20, 19, 29);
+		archive.writeTile(10, 20, createData(10, 100));
+		archive.close();
+		assertTrue(tarFile.length() > 0);
+
+		archive = openArchive();
+		assertFalse(archive.containsTile(10, 20));
+		assertEquals(0, tarFile.length());
+		archive.close();
+	}
+
+	private TarIndexedArchive openArchive() throws IOException {
+		return new TarIndexedArchive(tarFile, journalFile, 10, 20, 19, 29);
+	}
+
+	private static byte[] createData(int seed, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (seed + i);
+		return data;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TarIndexedArchiveTests.class);
+	}
+
+}
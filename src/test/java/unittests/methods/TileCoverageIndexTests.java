@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.program.tilestore.TileCoverageIndex;
+
+public class TileCoverageIndexTests extends TestCase {
+
+	public void testAddRemoveContains() {
+		TileCoverageIndex index = new TileCoverageIndex();
+		assertTrue(index.add(5, 7, 3));
+		assertFalse(index.add(5, 7, 3));
+		assertTrue(index.add(300, 7, 3));
+		assertTrue(index.add(5, 7, 4));
+		assertTrue(index.contains(5, 7, 3));
+		assertTrue(index.contains(300, 7, 3));
+		assertFalse(index.contains(7, 5, 3));
+		assertFalse(index.contains(5, 7, 5));
+		assertEquals(2, index.getTileCount(3));
+		assertEquals(1, index.getTileCount(4));
+
+		assertTrue(index.remove(5, 7, 3));
+		assertFalse(index.remove(5, 7, 3));
+		assertFalse(index.contains(5, 7, 3));
+		assertEquals(1, index.getTileCount(3));
+	}
+
+	/**
+	 * A block with more than 4096 tiles is converted from a sorted array to a bitmap
+	 */
+	public void testDenseBlock() {
+		TileCoverageIndex index = new TileCoverageIndex();
+		for (int y = 0; y < 256; y += 2)
+			for (int x = 0; x < 256; x++)
+				index.add(x, y, 10);
+		assertEquals(128 * 256, index.getTileCount(10));
+		for (int y = 0; y < 256; y++)
+			for (int x = 0; x < 256; x += 17)
+				assertEquals((y % 2) == 0, index.contains(x, y, 10));
+		assertTrue(index.remove(0, 0, 10));
+		assertFalse(index.contains(0, 0, 10));
+		assertEquals(128 * 256 - 1, index.getTileCount(10));
+	}
+
+	public void testPaintCoverage() throws InterruptedException {
+		TileCoverageIndex index = new TileCoverageIndex();
+		for (int x = 250; x < 262; x++)
+			index.add(x, 100, 8);
+		index.add(1000, 1000, 8);
+		Point min = new Point(255, 99);
+		Point max = new Point(264, 101);
+		BufferedImage image = new BufferedImage(10, 3, BufferedImage.TYPE_BYTE_BINARY);
+		WritableRaster raster = image.getRaster();
+		index.paintCoverage(raster, 8, min, max);
+		for (int y = 0; y < 3; y++)
+			for (int x = 0; x < 10; x++)
+				assertEquals(x + "/" + y, (y == 1 && x < 7) ? 1 : 0, raster.getSample(x, y, 0));
+	}
+
+	public void testFileRoundTrip() throws IOException {
+		TileCoverageIndex index = new TileCoverageIndex();
+		for (int x = 0; x < 5000; x++)
+			index.add(x % 256, x / 256, 12);
+		index.add(70000, 80000, 17);
+		File file = File.createTempFile("coverage", ".idx");
+		try {
+			index.writeToFile(file);
+			TileCoverageIndex loaded = new TileCoverageIndex();
+			loaded.readFromFile(file);
+			assertEquals(5000, loaded.getTileCount(12));
+			assertEquals(1, loaded.getTileCount(17));
+			assertTrue(loaded.contains(4999 % 256, 4999 / 256, 12));
+			assertFalse(loaded.contains(5000 % 256, 5000 / 256, 12));
+			assertTrue(loaded.contains(70000, 80000, 17));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TileCoverageIndexTests.class);
+	}
+
+}
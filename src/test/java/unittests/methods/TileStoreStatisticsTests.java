@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.program.tilestore.TileStoreInfo;
+import mobac.program.tilestore.TileStoreStatistics;
+
+public class TileStoreStatisticsTests extends TestCase {
+
+	public void testIncrementalUpdates() {
+		TileStoreStatistics statistics = new TileStoreStatistics();
+		statistics.tileWritten(-1, 1000);
+		statistics.tileWritten(-1, 500);
+		assertEquals(2, statistics.getTileCount());
+		assertEquals(1500, statistics.getDataSize());
+
+		// Replacing a tile does not change the tile count
+		statistics.tileWritten(1000, 300);
+		assertEquals(2, statistics.getTileCount());
+		assertEquals(800, statistics.getDataSize());
+
+		statistics.tileRemoved(500);
+		assertEquals(1, statistics.getTileCount());
+		assertEquals(300, statistics.getDataSize());
+
+		TileStoreInfo info = statistics.getStoreInfo();
+		assertEquals(1, info.getTileCount());
+		assertEquals(300, info.getStoreSize());
+
+		statistics.reset();
+		assertEquals(0, statistics.getTileCount());
+		assertEquals(0, statistics.getDataSize());
+	}
+
+	public void testFileRoundTrip() throws IOException {
+		TileStoreStatistics statistics = new TileStoreStatistics();
+		statistics.tileWritten(-1, 12345);
+		statistics.tileWritten(-1, 678);
+		File file = File.createTempFile("statistics", ".properties");
+		try {
+			statistics.writeToFile(file);
+			TileStoreStatistics loaded = new TileStoreStatistics();
+			loaded.readFromFile(file);
+			assertEquals(2, loaded.getTileCount());
+			assertEquals(13023, loaded.getDataSize());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testInvalidFile() throws IOException {
+		File file = File.createTempFile("statistics", ".properties");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write("tileCount=abc\n".getBytes("ISO-8859-1"));
+			out.close();
+			TileStoreStatistics statistics = new TileStoreStatistics();
+			statistics.tileWritten(-1, 100);
+			try {
+				statistics.readFromFile(file);
+				fail("Invalid statistics file has been accepted");
+			} catch (IOException e) {
+			}
+			assertEquals(0, statistics.getTileCount());
+			assertEquals(0, statistics.getDataSize());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TileStoreStatisticsTests.class);
+	}
+
+}
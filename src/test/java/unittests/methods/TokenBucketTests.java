@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) MOBAC developers
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package unittests.methods;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+import mobac.utilities.stream.TokenBucket;
+
+public class TokenBucketTests extends TestCase {
+
+	public void testUnlimited() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(0, 0);
+		assertFalse(bucket.isLimited());
+		long start = System.currentTimeMillis();
+		bucket.acquire(Long.MAX_VALUE / 2);
+		assertTrue(System.currentTimeMillis() - start < 100);
+	}
+
+	public void testBurst() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100, 1000);
+		// The bucket is full after creation
+		long start = System.currentTimeMillis();
+		bucket.acquire(1000);
+		assertTrue(System.currentTimeMillis() - start < 100);
+	}
+
+	public void testRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(10000, 0);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 50; i++)
+			bucket.acquire(100);
+		long time = System.currentTimeMillis() - start;
+		// 5000 tokens at 10000 tokens per second
+		assertTrue("Time: " + time, time >= 490);
+		assertTrue("Time: " + time, time < 2000);
+	}
+
+	public void testConcurrentRate() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(10000, 0);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 25; j++)
+							bucket.acquire(50);
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		long time = System.currentTimeMillis() - start;
+		// 5000 tokens at 10000 tokens per second
+		assertTrue("Time: " + time, time >= 490);
+		assertTrue("Time: " + time, time < 2000);
+	}
+
+	public void testInterrupt() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1, 0);
+		Thread.currentThread().interrupt();
+		try {
+			bucket.acquire(1000);
+			fail("Interrupt has been ignored");
+		} catch (InterruptedException e) {
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(TokenBucketTests.class);
+	}
+
+}